@@ -7,28 +7,35 @@
 
 import java.io.*;
 import java.util.*;
-import cpsc441.a2.WebServer;
+import cpsc441.a2.*;
 
 
 public class ServerDriver {
 
 	private static final int TERM_WAIT_TIME = 2000; // 2 seconds
-	private static final int DEFAULT_SERVER_PORT = 2525; // default server port
 
 	/**
 	 * running the server
 	 */
 	public static void main(String[] args) {
 
-		int serverPort = DEFAULT_SERVER_PORT;
+		ServerConfig config;
 
 		// parse command line args
-		if (args.length == 1)
-			serverPort = Integer.parseInt(args[0]);
+		if (args.length == 1) {
+			config = new ServerConfig();
+			config.port = Integer.parseInt(args[0]);
+		} else {
+			config = ServerConfig.fromCommandLine(parseCommandLine(args));
+		}
 
-		System.out.println("starting server on port " + serverPort);
+		System.out.println("starting " + config.serverMode + " server on port " + config.port);
 
-		WebServer server = new WebServer(serverPort);
+		BasicWebServer server;
+		if (config.serverMode.equals(ServerConfig.MODE_NIO))
+			server = new NioWebServer(config);
+		else
+			server = new WebServer(config);
 
 		server.start();
 		System.out.println("server started, type \"quit\" to stop");
@@ -51,4 +58,18 @@ public class ServerDriver {
 		System.exit(0);
 	}
 
+
+	// parse command line arguments
+	private static HashMap<String, String> parseCommandLine(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		int i = 0;
+		while ((i + 1) < args.length) {
+			params.put(args[i], args[i+1]);
+			i += 2;
+		}
+
+		return params;
+	}
+
 }
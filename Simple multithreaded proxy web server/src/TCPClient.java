@@ -1,54 +1,131 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import cpsc441.a2.LatencyHistogram;
 
 /**
  * A Simple Client used to test web server.
+ *
+ * It is a load generator: a number of connections send a mix of GET, HEAD
+ * and range requests to the server for a fixed time, and the throughput and
+ * latency percentiles are reported as text or JSON.
+ *
+ * In closed loop mode (the default) every connection sends its next request
+ * as soon as it has the response to the last one. In open loop mode (-r)
+ * requests are sent at a fixed rate, spread over the connections, and each
+ * latency is measured from the time the request was due to be sent rather
+ * than the time it was sent. A server that stalls then shows up as high
+ * latencies for every request that should have been sent during the stall,
+ * instead of only the one that was waiting (coordinated omission).
+ *
+ * Results are only reproducible against a known document root, so -g
+ * writes one with files of fixed sizes and contents, which are the files
+ * requested by default:
+ *
+ *	java TCPClient -g docroot
+ *	cd docroot && java -cp .. ServerDriver -p 2525
+ *	java TCPClient -c 16 -d 10
+ *
+ * Command line options of the form -flag value:
+ *
+ *	-h	Host of the server (default localhost).
+ *	-p	Port of the server (default 2525).
+ *	-c	Number of connections (default 8).
+ *	-d	How long to measure, in seconds (default 10).
+ *	-w	How long to warm up before measuring, in seconds (default 2).
+ *	-k	1 to keep connections open between requests, 0 to open a new
+ *		connection for every request (default 1).
+ *	-m	Request mix as percentages, for example get=80,head=10,range=10.
+ *	-f	Comma separated paths to request (default the generated files).
+ *	-r	Requests per second in open loop mode, 0 for closed loop (default 0).
+ *	-o	Report format, text or json (default text).
+ *	-s	Seed of the random choices, so runs send the same requests (default 441).
+ *	-g	Writes the document root to the given directory and exits.
  */
 
 public class TCPClient {
 
-	public static void main(String[] args) {
+	// Files written by -g, under GENERATED_DIR of the document root.
+	private static final String GENERATED_DIR = "load";
+	private static final int[] GENERATED_SIZES = {1024, 16 * 1024, 256 * 1024, 1024 * 1024};
+	private static final String[] GENERATED_NAMES = {"1k.bin", "16k.bin", "256k.bin", "1m.bin"};
 
-		DataOutputStream outputStream = null;
-		BufferedInputStream inputStream = null;
-		Socket socket = null;
+	// Range requests ask for RANGE_LENGTH bytes at an offset below the size
+	// of the smallest generated file, so they are always satisfiable.
+	private static final int RANGE_LENGTH = 4096;
+	private static final int RANGE_MAX_OFFSET = 1024;
 
+	// How long a connection waits for the server before giving up, in milliseconds.
+	private static final int SOCKET_TIMEOUT = 10000;
+	private static final int MAX_HEADER_SIZE = 16000;
 
-		try{
+	// Kinds of request.
+	private static final int GET = 0;
+	private static final int HEAD = 1;
+	private static final int RANGE = 2;
 
-			// Open socket.
-			socket = new Socket("localhost", 2525);
+	// Settings.
+	private static String host = "localhost";
+	private static int port = 2525;
+	private static int connections = 8;
+	private static int duration = 10;
+	private static int warmup = 2;
+	private static boolean keepAlive = true;
+	private static int[] mix = {80, 10, 10};
+	private static String[] paths;
+	private static double rate = 0;
+	private static String format = "text";
+	private static long seed = 441;
 
-			// Create required streams.
-			outputStream = new DataOutputStream(socket.getOutputStream());
-			inputStream = new BufferedInputStream(socket.getInputStream());
+	// Results, only counted for requests due after the warm up.
+	private static final LatencyHistogram latency = new LatencyHistogram("latency");
+	private static final LatencyHistogram serviceTime = new LatencyHistogram("service time");
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder bytesReceived = new LongAdder();
+	private static final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+	// When the last counted response arrived, an open loop run that falls
+	// behind keeps sending the requests that were due after the duration.
+	private static final LongAccumulator lastResponse = new LongAccumulator(Math::max, Long.MIN_VALUE);
+	private static double elapsed;
 
-			// Send HEADER request to server.
-//			String headerReq = "HEAD /~mghaderi/cpsc441/dots.txt HTTP/1.1\r\nHost: people.ucalgary.ca\r\nRange: bytes=0-19\r\n";
-//			String headerReq = "GET /nums.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=2500-9000\r\n\r\n";
-			String headerReq = "GET /dts.txt HTTP/1.1\r\nRange: bytes=0-19\r\n\r\n";
 
-			// Send request to server.
-			byte[] headerRequestInByes = headerReq.getBytes("UTF-8");
-			outputStream.write(headerRequestInByes);
-			outputStream.flush();
-
-			// Save the HEADER response.
-			byte[] headerResponseBytes = new byte[16000];
+	public static void main(String[] args) {
 
-			// Read in the HEADER response.
-			int read = inputStream.read(headerResponseBytes);
-			while(read>-1){
-				// Get the HEADER response as a String.
-				String headerResponseString = new String(headerResponseBytes, "UTF-8");
+		try{
+			HashMap<String, String> params = parseCommandLine(args);
+			if (params.containsKey("-g")){
+				generate(Paths.get(params.get("-g")));
+				return;
+			}
+			configure(params);
 
-				System.out.println(headerResponseString);
+			// Every connection runs on its own thread until the end of the run.
+			long start = System.nanoTime();
+			long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+			long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
 
-				read = inputStream.read(headerResponseBytes);
+			Thread[] threads = new Thread[connections];
+			for (int i = 0; i < connections; i++){
+				int id = i;
+				threads[i] = new Thread(() -> runConnection(id, start, measureStart, end), "load-" + i);
+				threads[i].start();
 			}
+			for (Thread thread : threads){
+				thread.join();
+			}
+			elapsed = Math.max(duration, (lastResponse.get() - measureStart) / 1e9);
 
-
+			if (format.equals("json")){
+				System.out.println(jsonReport());
+			} else {
+				System.out.println(textReport());
+			}
 
 		} catch (Exception ioe){
 			// Catch IO exceptions.
@@ -59,4 +136,331 @@ public class TCPClient {
 
 		}
 	}
+
+	// Reads the settings from the command line.
+	private static void configure(HashMap<String, String> params) {
+		host = params.getOrDefault("-h", host);
+		port = Integer.parseInt(params.getOrDefault("-p", Integer.toString(port)));
+		connections = Integer.parseInt(params.getOrDefault("-c", Integer.toString(connections)));
+		duration = Integer.parseInt(params.getOrDefault("-d", Integer.toString(duration)));
+		warmup = Integer.parseInt(params.getOrDefault("-w", Integer.toString(warmup)));
+		keepAlive = params.getOrDefault("-k", "1").equals("1");
+		rate = Double.parseDouble(params.getOrDefault("-r", "0"));
+		format = params.getOrDefault("-o", format);
+		seed = Long.parseLong(params.getOrDefault("-s", Long.toString(seed)));
+
+		if (params.containsKey("-m")){
+			mix = new int[3];
+			for (String part : params.get("-m").split(",")){
+				String[] kind = part.split("=", 2);
+				int share = Integer.parseInt(kind[1].trim());
+				switch (kind[0].trim().toLowerCase()){
+				case "get": mix[GET] = share; break;
+				case "head": mix[HEAD] = share; break;
+				case "range": mix[RANGE] = share; break;
+				default: throw new IllegalArgumentException("Unknown request kind: " + kind[0]);
+				}
+			}
+		}
+
+		if (params.containsKey("-f")){
+			paths = params.get("-f").split(",");
+		} else {
+			paths = new String[GENERATED_NAMES.length];
+			for (int i = 0; i < paths.length; i++){
+				paths[i] = "/" + GENERATED_DIR + "/" + GENERATED_NAMES[i];
+			}
+		}
+
+		if (connections < 1 || duration < 1 || warmup < 0 || rate < 0){
+			throw new IllegalArgumentException("Connections and duration must be at least 1, "
+					+ "and the warm up and rate can not be negative.");
+		}
+		if (mix[GET] < 0 || mix[HEAD] < 0 || mix[RANGE] < 0 || mix[GET] + mix[HEAD] + mix[RANGE] == 0){
+			throw new IllegalArgumentException("Request mix must have a positive total.");
+		}
+		if (!format.equals("text") && !format.equals("json")){
+			throw new IllegalArgumentException("Unknown report format: " + format);
+		}
+	}
+
+	// Writes the files requested by default, with contents that only depend on their size.
+	private static void generate(Path root) throws IOException {
+		Path dir = root.resolve(GENERATED_DIR);
+		Files.createDirectories(dir);
+		for (int i = 0; i < GENERATED_SIZES.length; i++){
+			byte[] data = new byte[GENERATED_SIZES[i]];
+			new Random(GENERATED_SIZES[i]).nextBytes(data);
+			Files.write(dir.resolve(GENERATED_NAMES[i]), data);
+		}
+		System.out.println("Document root written to " + root.toAbsolutePath()
+				+ ", start the server in that directory.");
+	}
+
+	// Sends requests on one connection until the end of the run.
+	private static void runConnection(int id, long start, long measureStart, long end) {
+		Random random = new Random(seed + id);
+		// In open loop mode each connection sends every interval, the
+		// connections staggered so the requests are evenly spread.
+		long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate) : 0;
+		long due = start + interval * id / connections;
+		byte[] buffer = new byte[64 * 1024];
+
+		Socket socket = null;
+		// Buffered stream of the socket, kept as long as the connection so
+		// no bytes read ahead are lost between responses.
+		InputStream in = null;
+		try{
+			while (true){
+				long now = System.nanoTime();
+				if (interval > 0){
+					// Wait until the request is due, unless it is already late.
+					if (due - now > 0){
+						TimeUnit.NANOSECONDS.sleep(due - now);
+					}
+				} else {
+					due = now;
+				}
+				if (due - end >= 0){
+					break;
+				}
+
+				int kind = pickKind(random);
+				String path = paths[random.nextInt(paths.length)];
+				byte[] request = buildRequest(kind, path, random.nextInt(RANGE_MAX_OFFSET));
+
+				long sent = System.nanoTime();
+				int status;
+				try{
+					if (socket == null){
+						socket = new Socket(host, port);
+						socket.setSoTimeout(SOCKET_TIMEOUT);
+						socket.setTcpNoDelay(true);
+						in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+					}
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.flush();
+					status = readResponse(in, kind == HEAD, buffer, due - measureStart >= 0);
+					if (status < 0){
+						// The server closed the connection after the response.
+						status = -status;
+						closeQuietly(socket);
+						socket = null;
+					}
+				} catch (IOException e){
+					// Includes malformed responses, counted as errors with status 0.
+					status = 0;
+					closeQuietly(socket);
+					socket = null;
+				}
+				long done = System.nanoTime();
+
+				if (due - measureStart >= 0){
+					requests.increment();
+					latency.record(done - due);
+					serviceTime.record(done - sent);
+					if (status == 0 || status >= 400){
+						errors.increment();
+					}
+					statuses.computeIfAbsent(status, code -> new LongAdder()).increment();
+					lastResponse.accumulate(done);
+				}
+				if (!keepAlive){
+					closeQuietly(socket);
+					socket = null;
+				}
+				due += interval;
+			}
+		} catch (InterruptedException e){
+			// Ok, stop
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	// Picks the kind of the next request according to the mix.
+	private static int pickKind(Random random) {
+		int pick = random.nextInt(mix[GET] + mix[HEAD] + mix[RANGE]);
+		if (pick < mix[GET]){
+			return GET;
+		}
+		return pick < mix[GET] + mix[HEAD] ? HEAD : RANGE;
+	}
+
+	private static byte[] buildRequest(int kind, String path, int rangeOffset) {
+		StringBuilder request = new StringBuilder();
+		request.append(kind == HEAD ? "HEAD " : "GET ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append("\r\n");
+		if (kind == RANGE){
+			request.append("Range: bytes=").append(rangeOffset).append('-')
+					.append(rangeOffset + RANGE_LENGTH - 1).append("\r\n");
+		}
+		if (!keepAlive){
+			request.append("Connection: close\r\n");
+		}
+		request.append("\r\n");
+		return request.toString().getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Reads a response, using Content-Length to find where it ends.
+	 *
+	 * @param in	Buffered input stream of the connection.
+	 * @return	The status code, negative if the server closes the
+	 *			connection after the response.
+	 * @throws IOException	If reading fails or the response is malformed.
+	 */
+	private static int readResponse(InputStream in, boolean head, byte[] buffer, boolean count) throws IOException {
+		// The header is scanned one byte at a time from the buffered stream,
+		// so the end of the header is found without a read call per byte.
+		ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+		int matched = 0;
+		while (matched < 4){
+			int b = in.read();
+			if (b == -1){
+				throw new EOFException("Server closed the connection before the response header ended.");
+			}
+			header.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+			if (header.size() > MAX_HEADER_SIZE){
+				throw new IOException("Response header is too large.");
+			}
+		}
+
+		String[] lines = header.toString("ISO-8859-1").split("\r\n");
+		String[] statusLine = lines[0].split(" ", 3);
+		int status;
+		long length = 0;
+		boolean close = false;
+		try{
+			status = Integer.parseInt(statusLine[1]);
+			for (int i = 1; i < lines.length; i++){
+				int colon = lines[i].indexOf(':');
+				if (colon == -1){
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")){
+					length = Long.parseLong(value);
+				} else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")){
+					close = true;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+			throw new IOException("Malformed response header: " + lines[0]);
+		}
+		if (status < 100 || status > 999 || length < 0){
+			throw new IOException("Malformed response header: " + lines[0]);
+		}
+
+		// HEAD and 304 responses have no body, whatever their Content-Length.
+		long received = header.size();
+		if (!head && status != 304){
+			long remaining = length;
+			while (remaining > 0){
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read == -1){
+					throw new EOFException("Server closed the connection part way through the body.");
+				}
+				remaining -= read;
+			}
+			received += length;
+		}
+		if (count){
+			bytesReceived.add(received);
+		}
+		return close ? -status : status;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try{
+			if (socket != null){
+				socket.close();
+			}
+		} catch (IOException e){
+			// Ok, ignore
+		}
+	}
+
+	// Describes the run, shared by both reports.
+	private static String describe() {
+		return host + ":" + port + ", " + connections + " connections, "
+				+ (rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop") + ", "
+				+ (keepAlive ? "keep-alive" : "new connection per request") + ", mix get=" + mix[GET]
+				+ " head=" + mix[HEAD] + " range=" + mix[RANGE];
+	}
+
+	private static String textReport() {
+		long count = requests.sum();
+		StringBuilder text = new StringBuilder();
+		text.append("target: ").append(describe()).append('\n');
+		text.append("measured: ").append(String.format("%.1f", elapsed)).append(" s after ").append(warmup).append(" s warm up\n");
+		text.append("requests: ").append(count).append(" (").append(String.format("%.1f", count / elapsed))
+				.append("/s), errors: ").append(errors.sum()).append('\n');
+		text.append("throughput: ").append(String.format("%.2f", bytesReceived.sum() / 1048576.0 / elapsed))
+				.append(" MB/s\n");
+		text.append("statuses:");
+		for (Map.Entry<Integer, LongAdder> status : new TreeMap<Integer, LongAdder>(statuses).entrySet()){
+			text.append(' ').append(status.getKey() == 0 ? "failed" : status.getKey().toString())
+					.append(' ').append(status.getValue().sum());
+		}
+		text.append('\n');
+		text.append(latency).append('\n');
+		text.append(serviceTime);
+		if (rate > 0){
+			text.append("\n(latency is measured from when each request was due, service time from when it was sent)");
+		}
+		return text.toString();
+	}
+
+	private static String jsonReport() {
+		long count = requests.sum();
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"host\":\"").append(host.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",");
+		json.append("\"port\":").append(port).append(',');
+		json.append("\"connections\":").append(connections).append(',');
+		json.append("\"mode\":\"").append(rate > 0 ? "open" : "closed").append("\",");
+		json.append("\"rate\":").append(rate).append(',');
+		json.append("\"keepAlive\":").append(keepAlive).append(',');
+		json.append("\"mix\":{\"get\":").append(mix[GET]).append(",\"head\":").append(mix[HEAD])
+				.append(",\"range\":").append(mix[RANGE]).append("},");
+		json.append("\"durationSeconds\":").append(elapsed).append(',');
+		json.append("\"warmupSeconds\":").append(warmup).append(',');
+		json.append("\"requests\":").append(count).append(',');
+		json.append("\"requestsPerSecond\":").append(count / elapsed).append(',');
+		json.append("\"errors\":").append(errors.sum()).append(',');
+		json.append("\"bytesPerSecond\":").append(bytesReceived.sum() / elapsed).append(',');
+		json.append("\"statuses\":{");
+		boolean first = true;
+		for (Map.Entry<Integer, LongAdder> status : new TreeMap<Integer, LongAdder>(statuses).entrySet()){
+			json.append(first ? "" : ",").append('"').append(status.getKey() == 0 ? "failed" : status.getKey().toString())
+					.append("\":").append(status.getValue().sum());
+			first = false;
+		}
+		json.append("},");
+		json.append("\"latencyMicros\":").append(jsonLatency(latency)).append(',');
+		json.append("\"serviceTimeMicros\":").append(jsonLatency(serviceTime));
+		return json.append('}').toString();
+	}
+
+	private static String jsonLatency(LatencyHistogram histogram) {
+		return "{\"mean\":" + histogram.mean() + ",\"p50\":" + histogram.percentile(50) + ",\"p90\":"
+				+ histogram.percentile(90) + ",\"p99\":" + histogram.percentile(99) + ",\"p999\":"
+				+ histogram.percentile(99.9) + ",\"max\":" + histogram.max() + "}";
+	}
+
+	// parse command line arguments
+	private static HashMap<String, String> parseCommandLine(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		int i = 0;
+		while ((i + 1) < args.length) {
+			params.put(args[i], args[i+1]);
+			i += 2;
+		}
+
+		return params;
+	}
 }
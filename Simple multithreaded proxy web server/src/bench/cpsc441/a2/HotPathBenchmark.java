@@ -0,0 +1,290 @@
+/**
+ * HotPathBenchmark Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Microbenchmarks of the per request CPU work outside of I/O: finding the
+ * end of the header, the old String based header parsing, the incremental
+ * RequestParser with the checks of properlyFormattedRequest, building the
+ * response header, and formatting the date. Each request step is run over
+ * the same corpora of requests: a small request, a browser request, a
+ * request with a 4KB cookie, one with 90 header fields, and a malformed
+ * request with a header line missing its colon and no empty line at the
+ * end.
+ *
+ * Every benchmark is warmed up, then timed over several iterations, and
+ * reports the mean time per operation and the bytes allocated per operation,
+ * read from the allocation counter of the benchmark thread. Results can be
+ * saved and later compared against, so a change to the parser or the
+ * header writer is measured against a baseline on the same machine:
+ *
+ *	javac -d out src/*.java src/cpsc441/a2/*.java src/bench/cpsc441/a2/*.java
+ *	java -cp out cpsc441.a2.HotPathBenchmark -s baseline.txt
+ *	java -cp out cpsc441.a2.HotPathBenchmark -b baseline.txt
+ *
+ * Command line options of the form -flag value:
+ *
+ *	-f	Only runs the benchmarks whose name contains the text.
+ *	-w	Number of warm up iterations (default 5).
+ *	-i	Number of timed iterations (default 5).
+ *	-t	Length of each iteration in milliseconds (default 500).
+ *	-s	Saves the results to the file.
+ *	-b	Compares the results with those saved in the file.
+ *
+ * It lives in its own source root, next to the server classes in package
+ * cpsc441.a2 so it can reach the package private methods, and is not part
+ * of the server build.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class HotPathBenchmark {
+
+	// Number of operations between reads of the clock.
+	private static final int BATCH = 256;
+
+	// An operation being measured, returning a value so its work is not
+	// optimised away.
+	private interface Operation {
+		long run();
+	}
+
+	private static class Result {
+		final String name;
+		final double nanosPerOp;
+		final double nanosError;
+		final double bytesPerOp;
+
+		Result(String name, double nanosPerOp, double nanosError, double bytesPerOp){
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.nanosError = nanosError;
+			this.bytesPerOp = bytesPerOp;
+		}
+	}
+
+	// Everything the benchmarks return is added here, and it is printed
+	// at the end so the compiler can not drop the work.
+	private static long sink = 0;
+
+	private static final byte[] SEPARATOR = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+
+	public static void main(String[] args) throws IOException {
+		HashMap<String, String> params = parseCommandLine(args);
+		String filter = params.getOrDefault("-f", "");
+		int warmups = Integer.parseInt(params.getOrDefault("-w", "5"));
+		int iterations = Integer.parseInt(params.getOrDefault("-i", "5"));
+		long iterationTime = Long.parseLong(params.getOrDefault("-t", "500")) * 1000000;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()){
+			System.out.println("This JVM does not count allocated bytes, allocation is reported as 0.");
+		}
+
+		LinkedHashMap<String, Operation> benchmarks = benchmarks();
+		List<Result> results = new ArrayList<Result>();
+		for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()){
+			if (benchmark.getKey().contains(filter)){
+				Result result = measure(benchmark.getKey(), benchmark.getValue(), warmups, iterations,
+						iterationTime, threads);
+				results.add(result);
+				System.out.println(format(result));
+			}
+		}
+
+		if (params.containsKey("-b")){
+			compare(results, load(Paths.get(params.get("-b"))));
+		}
+		if (params.containsKey("-s")){
+			save(results, Paths.get(params.get("-s")));
+		}
+		System.out.println("(" + sink + ")");
+	}
+
+	// Builds the benchmarks, in the order they are reported.
+	private static LinkedHashMap<String, Operation> benchmarks() throws IOException {
+		LinkedHashMap<String, Operation> benchmarks = new LinkedHashMap<String, Operation>();
+		ServerConfig config = new ServerConfig();
+
+		for (Map.Entry<String, String> corpus : corpora().entrySet()){
+			String text = corpus.getValue();
+			byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+			RequestParser parser = new RequestParser(config.maxRequestHeaderSize, config.maxRequestHeaders);
+
+			benchmarks.put("payloadSeparator/" + corpus.getKey(),
+					() -> UsefulHelpers.getIndexOfPayloadSeparator(SEPARATOR, bytes));
+			benchmarks.put("requestInfo/" + corpus.getKey(),
+					() -> UsefulHelpers.requestInfo(text).size());
+			benchmarks.put("parseAndCheck/" + corpus.getKey(), () -> {
+				parser.reset();
+				int result = parser.parse(bytes, bytes.length);
+				if (result != RequestParser.COMPLETE){
+					return result;
+				}
+				return Worker.properlyFormattedRequest(parser) + parser.header("Host").length();
+			});
+		}
+
+		// A file of the size of a typical page, so the header has real values.
+		File file = File.createTempFile("benchmark", ".html");
+		file.deleteOnExit();
+		Files.write(file.toPath(), new byte[12345]);
+		FileMeta meta = new FileMeta(file);
+		HeaderWriter writer = new HeaderWriter();
+
+		benchmarks.put("responseHeader/200", () -> remaining(Worker.responseHeader(writer, 1, "200 OK",
+				meta, -1, -1, 1)));
+		benchmarks.put("responseHeader/206", () -> remaining(Worker.responseHeader(writer, 1, "206 Partial Content",
+				meta, 100, 4195, 1)));
+		benchmarks.put("responseHeader/404", () -> remaining(Worker.responseHeader(writer, 0, "404 Not Found",
+				null, -1, -1, 0)));
+		benchmarks.put("date/getCurrentDate", () -> Utils.getCurrentDate().length());
+		benchmarks.put("date/httpDateNow", () -> HttpDate.now().length);
+		return benchmarks;
+	}
+
+	// Requests every request step is measured with.
+	private static LinkedHashMap<String, String> corpora(){
+		LinkedHashMap<String, String> corpora = new LinkedHashMap<String, String>();
+		corpora.put("small", "GET /a.txt HTTP/1.1\r\nHost: localhost:2525\r\n\r\n");
+
+		String browser = "GET /images/logo.png?v=3 HTTP/1.1\r\n"
+				+ "Host: localhost:2525\r\n"
+				+ "Connection: keep-alive\r\n"
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+				+ "Accept: image/avif,image/webp,image/apng,image/*,*/*;q=0.8\r\n"
+				+ "Accept-Encoding: gzip, deflate, br\r\n"
+				+ "Accept-Language: en-CA,en;q=0.9\r\n"
+				+ "Referer: http://localhost:2525/index.html\r\n"
+				+ "If-None-Match: \"3039-18b2f3a41c0\"\r\n"
+				+ "If-Modified-Since: Tue, 17 Oct 2023 10:15:32 GMT\r\n"
+				+ "\r\n";
+		corpora.put("browser", browser);
+
+		// Cookie values are generated from a fixed seed so every run parses the same bytes.
+		Random random = new Random(441);
+		StringBuilder cookie = new StringBuilder("Cookie: session=");
+		while (cookie.length() < 4096){
+			cookie.append(Long.toHexString(random.nextLong())).append("; c").append(cookie.length()).append('=');
+		}
+		cookie.append("end\r\n");
+		corpora.put("largeCookie", browser.substring(0, browser.length() - 2) + cookie + "\r\n");
+
+		StringBuilder many = new StringBuilder("GET /a.txt HTTP/1.1\r\nHost: localhost:2525\r\n");
+		for (int i = 0; i < 90; i++){
+			many.append("X-Header-").append(i).append(": value-").append(i).append("\r\n");
+		}
+		corpora.put("manyHeaders", many.append("\r\n").toString());
+
+		corpora.put("malformed", "GET /a.txt HTTP/1.1\r\nHost localhost:2525\r\nUser-Agent: curl/8.0\r\n");
+		return corpora;
+	}
+
+	// Runs the warm up and timed iterations of one benchmark.
+	private static Result measure(String name, Operation operation, int warmups, int iterations,
+			long iterationTime, com.sun.management.ThreadMXBean threads){
+		long threadId = Thread.currentThread().getId();
+		double[] nanosPerOp = new double[iterations];
+		long totalOps = 0;
+		long totalBytes = 0;
+
+		for (int i = 0; i < warmups + iterations; i++){
+			long ops = 0;
+			long value = 0;
+			long allocated = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			long now;
+			do {
+				for (int j = 0; j < BATCH; j++){
+					value += operation.run();
+				}
+				ops += BATCH;
+				now = System.nanoTime();
+			} while (now - start < iterationTime);
+			long bytes = threads.getThreadAllocatedBytes(threadId) - allocated;
+			sink += value;
+
+			if (i >= warmups){
+				nanosPerOp[i - warmups] = (double) (now - start) / ops;
+				totalOps += ops;
+				totalBytes += bytes;
+			}
+		}
+
+		double mean = 0;
+		for (double value : nanosPerOp){
+			mean += value / iterations;
+		}
+		double variance = 0;
+		for (double value : nanosPerOp){
+			variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+		}
+		return new Result(name, mean, Math.sqrt(variance), Math.max(0, (double) totalBytes / totalOps));
+	}
+
+	private static long remaining(ByteBuffer buffer){
+		return buffer.remaining();
+	}
+
+	private static String format(Result result){
+		return String.format("%-32s %10.1f ns/op  +- %7.1f  %10.1f B/op", result.name, result.nanosPerOp,
+				result.nanosError, result.bytesPerOp);
+	}
+
+	// Prints the change of every benchmark that is also in the baseline.
+	private static void compare(List<Result> results, Map<String, Result> baseline){
+		System.out.println();
+		System.out.println("compared with the baseline:");
+		for (Result result : results){
+			Result before = baseline.get(result.name);
+			if (before == null){
+				continue;
+			}
+			System.out.println(String.format("%-32s %+8.1f%% time  %+10.1f B/op", result.name,
+					(result.nanosPerOp / before.nanosPerOp - 1) * 100, result.bytesPerOp - before.bytesPerOp));
+		}
+	}
+
+	// Results are saved as one tab separated line per benchmark.
+	private static void save(List<Result> results, Path path) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (Result result : results){
+			lines.add(result.name + "\t" + result.nanosPerOp + "\t" + result.nanosError + "\t" + result.bytesPerOp);
+		}
+		Files.write(path, lines, StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, Result> load(Path path) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)){
+			String[] fields = line.split("\t");
+			if (fields.length == 4){
+				results.put(fields[0], new Result(fields[0], Double.parseDouble(fields[1]),
+						Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+			}
+		}
+		return results;
+	}
+
+	// parse command line arguments
+	private static HashMap<String, String> parseCommandLine(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		int i = 0;
+		while ((i + 1) < args.length) {
+			params.put(args[i], args[i+1]);
+			i += 2;
+		}
+
+		return params;
+	}
+}
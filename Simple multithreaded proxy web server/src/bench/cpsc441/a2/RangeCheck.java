@@ -0,0 +1,364 @@
+/**
+ * RangeCheck Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Self-checking test of byte range requests on files larger than 4GB. It
+ * creates a sparse file of a little over 5GB in the working directory, with
+ * known bytes around offset 0, 2GB, 4GB and the end of the file and holes in
+ * between, and starts a threaded and a non-blocking server in the working
+ * directory, one after the other. Each server is sent:
+ *
+ *	- a HEAD request for the whole file,
+ *	- single ranges across the 2GB and 4GB boundaries,
+ *	- a suffix range and an open ended range,
+ *	- a 6MB range across the 4GB boundary, which the threaded server sends
+ *	  from its bulk transfer pool,
+ *	- a multipart range with parts before 2GB, across 2GB, across 4GB and
+ *	  at the end of the file, and
+ *	- a range starting past the end of the file.
+ *
+ * Every response is checked for its status code, Content-Length and
+ * Content-Range, and every body byte against the file. The result of each
+ * check is printed, and the exit status is 1 if any of them failed. The
+ * file is deleted at the end.
+ *
+ *	javac -d out src/*.java src/cpsc441/a2/*.java src/bench/cpsc441/a2/*.java
+ *	java -cp out cpsc441.a2.RangeCheck
+ *
+ * Command line options of the form -flag value:
+ *
+ *	-p	Port of the threaded server, the non-blocking server uses the
+ *		next one (default 2540).
+ *
+ * The file system of the working directory must support sparse files,
+ * otherwise the file takes 5GB of disk space while the check runs.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class RangeCheck {
+
+	private static final long GB = 1L << 30;
+	// Length of the sparse file, past 5GB so no offset fits in an int.
+	private static final long SIZE = 5 * GB + 123;
+	// Offsets around which the file has known bytes, the rest is holes.
+	private static final long[] ANCHORS = {0, 2 * GB, 4 * GB, SIZE};
+	// Number of known bytes on each side of an anchor.
+	private static final int SPREAD = 64 * 1024;
+	// How long a response may take, in milliseconds.
+	private static final int TIMEOUT = 60000;
+
+	private static final String FILE_NAME = "range-check.bin";
+
+	private static int failures = 0;
+
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> params = parseCommandLine(args);
+		int port = Integer.parseInt(params.getOrDefault("-p", "2540"));
+
+		File file = new File(System.getProperty("user.dir"), FILE_NAME);
+		File log = File.createTempFile("range-check", ".log");
+		try {
+			writeFile(file);
+			run(ServerConfig.MODE_THREADED, port, log);
+			run(ServerConfig.MODE_NIO, port + 1, log);
+		} finally {
+			file.delete();
+			log.delete();
+		}
+
+		System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	// Byte of the file at an offset.
+	private static byte expected(long offset){
+		for (long anchor : ANCHORS){
+			if (offset >= anchor - SPREAD && offset < anchor + SPREAD){
+				return (byte) (offset % 251 + 1);
+			}
+		}
+		return 0;
+	}
+
+	// Creates the sparse file, writing only the bytes around the anchors.
+	private static void writeFile(File file) throws IOException {
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")){
+			out.setLength(SIZE);
+			for (long anchor : ANCHORS){
+				long start = Math.max(0, anchor - SPREAD);
+				long end = Math.min(SIZE, anchor + SPREAD);
+				byte[] data = new byte[(int) (end - start)];
+				for (int i = 0; i < data.length; i++){
+					data[i] = expected(start + i);
+				}
+				out.seek(start);
+				out.write(data);
+			}
+		}
+	}
+
+	// Starts a server in the working directory, runs every check against it
+	// and stops it.
+	private static void run(String mode, int port, File log) throws Exception {
+		System.out.println(mode + " server on port " + port);
+		ServerConfig config = new ServerConfig();
+		config.port = port;
+		config.serverMode = mode;
+		config.accessLog = log.getPath();
+		// Only files are requested, the proxy cache is not needed.
+		config.proxyCacheSize = 0;
+		BasicWebServer server = mode.equals(ServerConfig.MODE_NIO) ? new NioWebServer(config) : new WebServer(config);
+		server.start();
+		awaitStart(port);
+
+		try {
+			String path = "/" + FILE_NAME;
+			Response head = request(port, "HEAD", path, null);
+			if (check(mode + " HEAD", head, 200, null, SIZE) && checkEmpty(mode + " HEAD", head)){
+				pass(mode + " HEAD");
+			}
+
+			long[][] singles = {
+				{2 * GB - 8, 2 * GB + 7},
+				{4 * GB - 6, 4 * GB + 9},
+				{SIZE - 100, SIZE - 1},
+				{SIZE - SPREAD - 1000, SIZE - 1},
+				{4 * GB - 3 * 1024 * 1024, 4 * GB + 3 * 1024 * 1024 - 1},
+			};
+			String[] specs = {
+				(2 * GB - 8) + "-" + (2 * GB + 7),
+				(4 * GB - 6) + "-" + (4 * GB + 9),
+				"-100",
+				(SIZE - SPREAD - 1000) + "-",
+				(4 * GB - 3 * 1024 * 1024) + "-" + (4 * GB + 3 * 1024 * 1024 - 1),
+			};
+			for (int i = 0; i < singles.length; i++){
+				long first = singles[i][0];
+				long last = singles[i][1];
+				String name = mode + " bytes=" + specs[i];
+				Response response = request(port, "GET", path, "bytes=" + specs[i]);
+				if (check(name, response, 206, "bytes " + first + "-" + last + "/" + SIZE, last - first + 1)
+						&& checkBody(name, response.body, 0, first, last - first + 1)){
+					pass(name);
+				}
+			}
+
+			checkMultipart(mode, port, path);
+
+			Response unsatisfiable = request(port, "GET", path, "bytes=" + SIZE + "-");
+			if (check(mode + " bytes=" + SIZE + "-", unsatisfiable, 416, "bytes */" + SIZE, -1)){
+				pass(mode + " bytes=" + SIZE + "-");
+			}
+		} finally {
+			server.shutdown();
+			server.join(10000);
+		}
+	}
+
+	// Requests several ranges at once and checks every part.
+	private static void checkMultipart(String mode, int port, String path) throws IOException {
+		long[][] parts = {
+			{0, 9},
+			{2 * GB - 1, 2 * GB},
+			{4 * GB - 1, 4 * GB + 4},
+			{SIZE - 5, SIZE - 1},
+		};
+		String spec = "bytes=0-9," + (2 * GB - 1) + "-" + (2 * GB) + "," + (4 * GB - 1) + "-" + (4 * GB + 4) + ",-5";
+		String name = mode + " " + spec;
+		Response response = request(port, "GET", path, spec);
+		if (!check(name, response, 206, null, response.body.length)){
+			return;
+		}
+
+		String type = response.header("Content-Type");
+		int at = type == null ? -1 : type.indexOf("boundary=");
+		if (at == -1 || !type.startsWith("multipart/byteranges")){
+			fail(name, "Content-Type is " + type);
+			return;
+		}
+		byte[] delimiter = ("--" + type.substring(at + "boundary=".length()).trim()).getBytes(StandardCharsets.ISO_8859_1);
+
+		int pos = 0;
+		for (long[] part : parts){
+			pos = indexOf(response.body, delimiter, pos);
+			int headerEnd = indexOf(response.body, "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), pos);
+			if (pos == -1 || headerEnd == -1){
+				fail(name, "missing part " + part[0] + "-" + part[1]);
+				return;
+			}
+			String partHeader = new String(response.body, pos, headerEnd - pos, StandardCharsets.ISO_8859_1);
+			String range = "Content-Range: bytes " + part[0] + "-" + part[1] + "/" + SIZE;
+			if (!partHeader.contains(range)){
+				fail(name, "part header is " + partHeader.replace("\r\n", " | ") + ", expected " + range);
+				return;
+			}
+			long length = part[1] - part[0] + 1;
+			if (!checkBody(name, response.body, headerEnd + 4, part[0], length)){
+				return;
+			}
+			pos = headerEnd + 4 + (int) length;
+		}
+		pos = indexOf(response.body, delimiter, pos);
+		if (pos == -1 || pos + delimiter.length + 2 > response.body.length
+				|| response.body[pos + delimiter.length] != '-' || response.body[pos + delimiter.length + 1] != '-'){
+			fail(name, "missing closing boundary");
+			return;
+		}
+		pass(name);
+	}
+
+	// Checks the status code, Content-Range and Content-Length of a
+	// response, and that the body has that length. A null range or
+	// negative length is not checked.
+	private static boolean check(String name, Response response, int status, String range, long length){
+		if (response.status != status){
+			return fail(name, "status " + response.status + ", expected " + status);
+		}
+		if (range != null && !range.equals(response.header("Content-Range"))){
+			return fail(name, "Content-Range: " + response.header("Content-Range") + ", expected " + range);
+		}
+		if (length >= 0){
+			String contentLength = response.header("Content-Length");
+			if (contentLength == null || !contentLength.equals(Long.toString(length))){
+				return fail(name, "Content-Length: " + contentLength + ", expected " + length);
+			}
+			// HEAD responses have no body.
+			if (response.body.length != 0 && response.body.length != length){
+				return fail(name, response.body.length + " body bytes, expected " + length);
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkEmpty(String name, Response response){
+		if (response.body.length != 0){
+			return fail(name, response.body.length + " body bytes, expected none");
+		}
+		return true;
+	}
+
+	// Compares body[start...start + length) with the file from an offset.
+	private static boolean checkBody(String name, byte[] body, int start, long offset, long length){
+		if (start + length > body.length){
+			return fail(name, "body is too short");
+		}
+		for (int i = 0; i < length; i++){
+			if (body[start + i] != expected(offset + i)){
+				return fail(name, "byte at offset " + (offset + i) + " is " + body[start + i] + ", expected "
+						+ expected(offset + i));
+			}
+		}
+		return true;
+	}
+
+	private static boolean pass(String name){
+		System.out.println("  ok      " + name);
+		return true;
+	}
+
+	private static boolean fail(String name, String reason){
+		failures++;
+		System.out.println("  FAILED  " + name + ": " + reason);
+		return false;
+	}
+
+	// A response read until the server closed the connection.
+	private static class Response {
+		int status;
+		List<String> lines = new ArrayList<String>();
+		byte[] body;
+
+		String header(String name){
+			for (String line : lines){
+				int colon = line.indexOf(':');
+				if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)){
+					return line.substring(colon + 1).trim();
+				}
+			}
+			return null;
+		}
+	}
+
+	// Sends a request on a new connection and reads the whole response.
+	private static Response request(int port, String method, String path, String range) throws IOException {
+		try (Socket socket = new Socket("localhost", port)){
+			socket.setSoTimeout(TIMEOUT);
+			String request = method + " " + path + " HTTP/1.1\r\nHost: localhost:" + port + "\r\n"
+					+ (range != null ? "Range: " + range + "\r\n" : "") + "Connection: close\r\n\r\n";
+			OutputStream out = socket.getOutputStream();
+			out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1){
+				received.write(buffer, 0, read);
+			}
+
+			byte[] data = received.toByteArray();
+			int end = indexOf(data, "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), 0);
+			if (end == -1){
+				throw new IOException("Incomplete response to " + method + " " + path + " " + range);
+			}
+			Response response = new Response();
+			String[] lines = new String(data, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+			response.status = Integer.parseInt(lines[0].split(" ")[1]);
+			response.lines.addAll(Arrays.asList(lines).subList(1, lines.length));
+			response.body = Arrays.copyOfRange(data, end + 4, data.length);
+			return response;
+		}
+	}
+
+	// Waits until the server accepts connections.
+	private static void awaitStart(int port) throws Exception {
+		for (int i = 0; i < 100; i++){
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e){
+				Thread.sleep(100);
+			}
+		}
+		throw new IOException("Server did not start on port " + port);
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from){
+		if (from < 0){
+			return -1;
+		}
+		for (int i = from; i + pattern.length <= data.length; i++){
+			int j = 0;
+			while (j < pattern.length && data[i + j] == pattern[j]){
+				j++;
+			}
+			if (j == pattern.length){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// parse command line arguments
+	private static HashMap<String, String> parseCommandLine(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		int i = 0;
+		while ((i + 1) < args.length) {
+			params.put(args[i], args[i+1]);
+			i += 2;
+		}
+
+		return params;
+	}
+}
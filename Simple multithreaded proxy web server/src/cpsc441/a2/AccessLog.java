@@ -0,0 +1,301 @@
+/**
+ * AccessLog Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Writes a line for every request in the Combined Log Format, followed by
+ * the server mode and the parse, first byte and total times of the request
+ * in microseconds:
+ *
+ *	127.0.0.1 - - [17/Oct/2026:10:15:32 +0000] "GET /a.txt HTTP/1.1" 200 23 "-" "curl/8.0" web 15 207 511
+ *
+ * Error reports from UsefulHelpers go through the same log, so connections
+ * never write to standard output themselves and do not queue up on its lock.
+ *
+ * Connections only put a record in a bounded ring buffer, and a single
+ * background thread formats the records and writes them in batches through
+ * a buffered stream, flushing whenever the buffer has been emptied. Slots
+ * are claimed with a compare and set on the tail, so adding a record never
+ * takes a lock and never waits: when the ring buffer is full the record is
+ * dropped and counted instead.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+class AccessLog {
+
+	// Path that writes the log to standard output.
+	static final String STANDARD_OUTPUT = "-";
+
+	// How long the writer sleeps when there is nothing to write, in nanoseconds.
+	private static final long IDLE_WAIT = 10_000_000;
+	// Size of the output buffer, in bytes.
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	// How long close() waits for the writer to finish, in milliseconds.
+	private static final int CLOSE_WAIT = 5000;
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+			.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+	// A request, formatted by the writer thread.
+	private static class Entry {
+		final InetAddress client;
+		final long time;
+		final String requestLine;
+		final String referer;
+		final String userAgent;
+		final String mode;
+		final int status;
+		final long length;
+		final long parseTime;
+		final long firstByteTime;
+		final long totalTime;
+
+		Entry(InetAddress client, RequestParser request, String mode, int status, long length,
+				long start, long parsed, long firstByte, long end){
+			this.client = client;
+			this.time = System.currentTimeMillis();
+			this.requestLine = request == null ? null
+					: request.method() + " " + request.target() + " " + request.version();
+			this.referer = request == null ? null : request.header("Referer");
+			this.userAgent = request == null ? null : request.header("User-Agent");
+			this.mode = mode;
+			this.status = status;
+			this.length = length;
+			this.parseTime = micros(start, parsed);
+			this.firstByteTime = micros(start, firstByte);
+			this.totalTime = micros(start, end);
+		}
+
+		public String toString(){
+			StringBuilder line = new StringBuilder(160);
+			line.append(client == null ? "-" : client.getHostAddress()).append(" - - [");
+			TIME_FORMAT.formatTo(Instant.ofEpochMilli(time), line);
+			line.append("] ");
+			quote(line, requestLine).append(' ');
+			line.append(status == 0 ? "-" : Integer.toString(status)).append(' ');
+			line.append(length < 0 ? "-" : Long.toString(length)).append(' ');
+			quote(line, referer).append(' ');
+			quote(line, userAgent).append(' ');
+			line.append(mode == null ? "-" : mode).append(' ');
+			number(line, parseTime).append(' ');
+			number(line, firstByteTime).append(' ');
+			number(line, totalTime);
+			return line.toString();
+		}
+
+		// Microseconds between two System.nanoTime() values, -1 if either is unknown.
+		private static long micros(long start, long end){
+			return start == 0 || end == 0 ? -1 : (end - start) / 1000;
+		}
+
+		private static StringBuilder number(StringBuilder line, long value){
+			return line.append(value < 0 ? "-" : Long.toString(value));
+		}
+
+		// Quotes a field, escaping quotes and control characters so a client
+		// can not forge log lines.
+		private static StringBuilder quote(StringBuilder line, String value){
+			if (value == null){
+				return line.append("\"-\"");
+			}
+			line.append('"');
+			for (int i = 0; i < value.length(); i++){
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\'){
+					line.append('\\').append(c);
+				} else if (c < 0x20 || c == 0x7f){
+					line.append(String.format("\\x%02x", (int) c));
+				} else {
+					line.append(c);
+				}
+			}
+			return line.append('"');
+		}
+	}
+
+	private final String path;
+	private final int capacity;
+
+	// Ring buffer of records, each slot is null until its record has been
+	// added. Null until the log is started.
+	private volatile AtomicReferenceArray<Object> slots = null;
+	// Next slot to be claimed by a connection.
+	private final AtomicLong tail = new AtomicLong();
+	// Next slot to be written, only advanced by the writer thread.
+	private volatile long head = 0;
+
+	private Writer out = null;
+	private Thread writer = null;
+	private volatile boolean closed = false;
+
+	// Counters.
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param path		File the log is appended to, STANDARD_OUTPUT for
+	 *					standard output.
+	 * @param capacity	Number of records the ring buffer holds, rounded up
+	 *					to a power of two.
+	 */
+	AccessLog(String path, int capacity){
+		this.path = path;
+		this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+	}
+
+	/**
+	 * Opens the log and starts the writer thread.
+	 *
+	 * @throws IOException	If the log file can not be opened.
+	 */
+	synchronized void start() throws IOException {
+		OutputStream stream = path.equals(STANDARD_OUTPUT)
+				? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(path, true);
+		out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+		slots = new AtomicReferenceArray<Object>(capacity);
+		writer = new Thread(this::writeRecords, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Adds a request to the log.
+	 *
+	 * @param client		Address of the client.
+	 * @param request		The parsed request, null if it could not be parsed.
+	 * @param mode			Server mode the request was handled in, null if
+	 *						it was not handled.
+	 * @param status		Status code of the response, 0 if it is not known.
+	 * @param length		Number of bytes sent, -1 if it is not known.
+	 * @param start			Time the first byte of the request arrived, from
+	 *						System.nanoTime(). This and the other times are 0
+	 *						when they are not known.
+	 * @param parsed		Time the request header was parsed.
+	 * @param firstByte		Time the response started to be sent.
+	 * @param end			Time the response was sent.
+	 */
+	void access(InetAddress client, RequestParser request, String mode, int status, long length,
+			long start, long parsed, long firstByte, long end){
+		if (slots != null){
+			offer(new Entry(client, request, mode, status, length, start, parsed, firstByte, end));
+		}
+	}
+
+	/**
+	 * Adds an error report to the log.
+	 *
+	 * @param text	The report, which may span several lines.
+	 */
+	void error(String text){
+		offer(text);
+	}
+
+	/**
+	 * Writes the records still in the ring buffer and closes the log.
+	 */
+	void close(){
+		Thread thread;
+		synchronized (this){
+			if (writer == null || closed){
+				return;
+			}
+			closed = true;
+			thread = writer;
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(CLOSE_WAIT);
+		} catch (InterruptedException e){
+			// Ok, ignore
+		}
+	}
+
+	/**
+	 * @return	Summary of the log counters.
+	 */
+	public String toString(){
+		return "access log: " + written + " written, " + dropped.sum() + " dropped";
+	}
+
+	// Puts a record in the ring buffer, or drops it if the buffer is full.
+	private void offer(Object record){
+		AtomicReferenceArray<Object> ring = slots;
+		if (ring == null || closed){
+			dropped.increment();
+			return;
+		}
+		long claimed;
+		do {
+			claimed = tail.get();
+			if (claimed - head >= capacity){
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(claimed, claimed + 1));
+		ring.set((int) claimed & (capacity - 1), record);
+	}
+
+	// Runs on the writer thread until the log is closed.
+	private void writeRecords(){
+		try {
+			while (true){
+				if (drain() > 0){
+					continue;
+				}
+				out.flush();
+				if (closed && head == tail.get()){
+					break;
+				}
+				LockSupport.parkNanos(IDLE_WAIT);
+			}
+		} catch (IOException e){
+			System.out.println("Could not write the access log.");
+			System.out.println("Error message: " + e.getMessage());
+		} finally {
+			try {
+				if (path.equals(STANDARD_OUTPUT)){
+					out.flush();
+				} else {
+					out.close();
+				}
+			} catch (IOException e){
+				// Ok, ignore
+			}
+		}
+	}
+
+	// Writes the records that have been added so far. A slot that has been
+	// claimed but not filled yet stops the batch, the writer comes back to it.
+	private int drain() throws IOException {
+		AtomicReferenceArray<Object> ring = slots;
+		int count = 0;
+		long next = head;
+		Object record;
+		while ((record = ring.get((int) next & (capacity - 1))) != null){
+			ring.set((int) next & (capacity - 1), null);
+			out.write(record.toString());
+			out.write('\n');
+			next++;
+			head = next;
+			count++;
+		}
+		written += count;
+		return count;
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * AdmissionControl Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Decides which accepted connections the threaded WebServer handles and
+ * which ones it turns away, so that under overload connections do not pile
+ * up in the executor queue until their clients have given up on them.
+ *
+ * A connection is turned away with 503 Service Unavailable and a
+ * Retry-After header field when:
+ *
+ *	- maxConnections connections are already being handled or queued,
+ *	- its client IP address already has maxConnectionsPerClient connections,
+ *	- the executor queue is full, or
+ *	- it waited in the queue for longer than the target delay while the
+ *	  queue has been slow for a whole interval.
+ *
+ * The last check works like CoDel: a short burst that fills the queue for a
+ * moment is allowed, but once even the fastest connections of an interval
+ * waited for longer than the target, the queue is standing. Connections
+ * that waited too long are then turned away as they leave the queue, which
+ * drains it quickly, until one gets through within the target again.
+ *
+ * Connections waiting in the queue are counted in the server metrics.
+ *
+ * The 503 response is written straight away and the socket is closed a
+ * little later, so the client can read the response before the close.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class AdmissionControl {
+
+	// Seconds a turned away client is asked to wait before trying again.
+	private static final int RETRY_AFTER = 1;
+	// How long a turned away socket is kept open after the response, in milliseconds.
+	private static final int LINGER_TIME = 1000;
+
+	private final int maxConnectionsPerClient;
+	private final long target;
+	private final long interval;
+	private final ServerMetrics metrics;
+
+	// Connections being handled or queued.
+	private final Semaphore connections;
+	// Connections per client IP address.
+	private final ConcurrentHashMap<InetAddress, Integer> clients = new ConcurrentHashMap<InetAddress, Integer>();
+	// Closes turned away sockets once the client has had time to read the response.
+	private final ScheduledExecutorService closer;
+
+	// CoDel state, guarded by this. Time at which the queue counts as
+	// standing if no connection has got through within the target by then,
+	// 0 while connections are getting through quickly.
+	private long firstAboveTime = 0;
+	private boolean dropping = false;
+
+	// Counters.
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder shedConnections = new LongAdder();
+	private final LongAdder shedClient = new LongAdder();
+	private final LongAdder shedQueueFull = new LongAdder();
+	private final LongAdder shedDelay = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param config	The server configuration.
+	 * @param metrics	Metrics the queued connections are counted in.
+	 */
+	AdmissionControl(ServerConfig config, ServerMetrics metrics){
+		this.metrics = metrics;
+		this.maxConnectionsPerClient = config.maxConnectionsPerClient;
+		this.target = config.queueTarget;
+		this.interval = config.queueInterval;
+		this.connections = new Semaphore(config.maxConnections);
+		this.closer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "admission-closer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Admits an accepted connection and hands it to the executor, or turns
+	 * it away. Called by the accepting thread.
+	 *
+	 * @param socket	The accepted socket.
+	 * @param worker	Worker that handles the connection.
+	 * @param executor	Executor that runs the workers.
+	 */
+	void submit(Socket socket, Worker worker, Executor executor){
+		if (!connections.tryAcquire()){
+			shedConnections.increment();
+			shed(socket);
+			return;
+		}
+		InetAddress client = socket.getInetAddress();
+		if (!acquireClient(client)){
+			connections.release();
+			shedClient.increment();
+			shed(socket);
+			return;
+		}
+
+		long queued = System.nanoTime();
+		RequestEvents.Queue queueEvent = RequestEvents.startQueue();
+		metrics.connectionQueued();
+		Runnable release = () -> {
+			releaseClient(client);
+			connections.release();
+		};
+		// A connection handed to the bulk transfer pool is still open when the
+		// worker returns, and keeps its permits until the pool closes it.
+		worker.setAfterHandOff(release);
+		try {
+			executor.execute(() -> {
+				metrics.connectionDequeued();
+				try {
+					long now = System.nanoTime();
+					if (checkQueueDelay(now - queued, now)){
+						shedDelay.increment();
+						dequeued(queueEvent, client, 503);
+						shed(socket);
+						return;
+					}
+					admitted.increment();
+					dequeued(queueEvent, client, 0);
+					worker.run();
+				} finally {
+					if (!worker.handedOff()){
+						release.run();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e){
+			metrics.connectionDequeued();
+			releaseClient(client);
+			connections.release();
+			shedQueueFull.increment();
+			dequeued(queueEvent, client, 503);
+			shed(socket);
+		}
+	}
+
+	/**
+	 * Ends the Queue event of a connection.
+	 *
+	 * @param event		The event, null if Queue events are disabled.
+	 * @param client	Address of the client.
+	 * @param status	503 if the connection was turned away, 0 otherwise.
+	 */
+	private static void dequeued(RequestEvents.Queue event, InetAddress client, int status){
+		if (event == null){
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()){
+			event.client = client.getHostAddress();
+			event.status = status;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Stops the thread that closes turned away sockets, closing them now.
+	 */
+	void close(){
+		for (Runnable pending : closer.shutdownNow()){
+			pending.run();
+		}
+	}
+
+	/**
+	 * @return	Summary of the admission counters.
+	 */
+	public String toString(){
+		return "admission control: " + admitted.sum() + " admitted, " + shedConnections.sum()
+				+ " shed at the connection limit, " + shedClient.sum() + " shed at the per client limit, "
+				+ shedQueueFull.sum() + " shed with a full queue, " + shedDelay.sum() + " shed for queueing delay";
+	}
+
+	// Checks the time a connection spent in the queue, CoDel style. Returns
+	// true if the connection should be turned away.
+	private synchronized boolean checkQueueDelay(long sojourn, long now){
+		if (sojourn < TimeUnit.MILLISECONDS.toNanos(target)){
+			// The queue is draining, serve connections normally again.
+			firstAboveTime = 0;
+			dropping = false;
+			return false;
+		}
+		if (dropping){
+			return true;
+		}
+		if (firstAboveTime == 0){
+			firstAboveTime = now + TimeUnit.MILLISECONDS.toNanos(interval);
+			return false;
+		}
+		if (now - firstAboveTime >= 0){
+			// Nothing got through within the target for a whole interval.
+			dropping = true;
+			return true;
+		}
+		return false;
+	}
+
+	// Counts a connection of a client, returns false if it has too many.
+	private boolean acquireClient(InetAddress client){
+		boolean[] allowed = {false};
+		clients.compute(client, (address, count) -> {
+			int current = count == null ? 0 : count;
+			if (current >= maxConnectionsPerClient){
+				return count;
+			}
+			allowed[0] = true;
+			return current + 1;
+		});
+		return allowed[0];
+	}
+
+	private void releaseClient(InetAddress client){
+		clients.computeIfPresent(client, (address, count) -> count <= 1 ? null : count - 1);
+	}
+
+	// Sends 503 Service Unavailable and closes the socket a little later.
+	private void shed(Socket socket){
+		try {
+			ByteBuffer response = Worker.serviceUnavailableResponseHeader(new HeaderWriter(), RETRY_AFTER);
+			OutputStream out = socket.getOutputStream();
+			out.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+			out.flush();
+			socket.shutdownOutput();
+		} catch (IOException e){
+			// The client has gone already.
+		}
+		try {
+			closer.schedule(() -> closeQuietly(socket), LINGER_TIME, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e){
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket){
+		try {
+			socket.close();
+		} catch (IOException e){
+			// Ok, ignore
+		}
+	}
+}
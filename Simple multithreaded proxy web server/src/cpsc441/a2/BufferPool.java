@@ -0,0 +1,71 @@
+/**
+ * BufferPool Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A pool of direct ByteBuffers of the same size. Direct buffers are costly
+ * to allocate and are only freed by the garbage collector, so instead of
+ * allocating one per request they are taken from the pool and handed back
+ * once the request is done. At most maxPooled buffers are kept, anything
+ * released beyond that is left to the garbage collector.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param bufferSize	Size of each buffer in bytes.
+	 * @param maxPooled		Maximum number of idle buffers kept in the pool.
+	 */
+	BufferPool(int bufferSize, int maxPooled){
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one if the
+	 * pool is empty.
+	 *
+	 * @return	A cleared direct buffer.
+	 */
+	ByteBuffer acquire(){
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null){
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back to the pool. The buffer must not be used by the
+	 * caller afterwards.
+	 *
+	 * @param buffer	Buffer taken from this pool, may be null.
+	 */
+	void release(ByteBuffer buffer){
+		if (buffer == null || buffer.capacity() != bufferSize){
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled){
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.add(buffer);
+	}
+}
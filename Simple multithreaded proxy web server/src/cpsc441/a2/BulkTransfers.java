@@ -0,0 +1,347 @@
+/**
+ * BulkTransfers Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Sends large Web Server mode responses on a small pool of threads of its
+ * own, so a few long downloads can not hold every worker thread while short
+ * requests queue up behind them. Once a worker has parsed a request and
+ * found that the response body (the file, or the requested range of it) is
+ * at least the bulk threshold, it hands the response to this pool and goes
+ * back to serving other connections. Workers are left with the short jobs,
+ * so a small page is never stuck behind a multi-gigabyte file.
+ *
+ * Each sender thread owns a selector and drives its transfers in
+ * non-blocking mode, so a slow client never holds a thread. A transfer is
+ * only written to when its socket is ready for writing, and each turn sends
+ * at most CHUNK_SIZE bytes of it before the next ready transfer gets its
+ * turn, so every transfer in progress keeps moving. A transfer whose socket
+ * takes no bytes for writeTimeout milliseconds is ended. At most
+ * maxTransfers are in progress at once, further large responses are sent
+ * by the worker itself.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+class BulkTransfers {
+
+	// Largest number of bytes sent in one turn of a transfer.
+	static final int CHUNK_SIZE = 256 * 1024;
+
+	// A response being sent, one turn each time its socket is ready.
+	private class Transfer {
+		private final SocketChannel socket;
+		// Sent before the file, then empty.
+		private final ByteBuffer header;
+		private final FileChannel file;
+		private long position;
+		private long remaining;
+		// Called once with null when the response has been sent, or with the
+		// reason it could not be.
+		private final Consumer<IOException> done;
+		// Last time the socket took any bytes.
+		private long lastWrite = System.currentTimeMillis();
+
+		Transfer(SocketChannel socket, ByteBuffer header, FileChannel file, long position, long count,
+				Consumer<IOException> done){
+			this.socket = socket;
+			this.header = header;
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+			this.done = done;
+		}
+
+		/**
+		 * Writes up to CHUNK_SIZE bytes, stopping early once the socket
+		 * takes no more.
+		 *
+		 * @param now	Current time in milliseconds.
+		 * @return		True once the whole response has been sent.
+		 * @throws IOException	If the socket or the file fails.
+		 */
+		boolean send(long now) throws IOException {
+			if (header.hasRemaining()){
+				if (socket.write(header) > 0){
+					lastWrite = now;
+				}
+				if (header.hasRemaining()){
+					return false;
+				}
+			}
+			long turn = CHUNK_SIZE;
+			while (turn > 0 && remaining > 0){
+				long sent = file.transferTo(position, Math.min(turn, remaining), socket);
+				if (sent <= 0){
+					// The socket buffer is full, wait until it is ready again.
+					break;
+				}
+				position += sent;
+				remaining -= sent;
+				turn -= sent;
+				bytes.add(sent);
+				lastWrite = now;
+			}
+			if (turn < CHUNK_SIZE){
+				chunks.increment();
+			}
+			return remaining == 0;
+		}
+
+		void finish(IOException error){
+			slots.release();
+			done.accept(error);
+		}
+	}
+
+	// A thread driving the transfers registered with its selector.
+	private class Sender implements Runnable {
+		private final Selector selector;
+		// Transfers handed over by workers, registered by the sender thread.
+		private final ConcurrentLinkedQueue<Transfer> pending = new ConcurrentLinkedQueue<Transfer>();
+
+		Sender(int id) throws IOException {
+			this.selector = Selector.open();
+			Thread thread = new Thread(this, "bulk-transfer-" + id);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void add(Transfer transfer){
+			pending.add(transfer);
+			selector.wakeup();
+		}
+
+		public void run(){
+			long lastStallCheck = System.currentTimeMillis();
+
+			while (!closed){
+				try {
+					// Wake up every second to look for stalled transfers.
+					selector.select(1000);
+					registerPending();
+
+					long now = System.currentTimeMillis();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()){
+						SelectionKey key = keys.next();
+						keys.remove();
+						Transfer transfer = (Transfer) key.attachment();
+						try {
+							if (transfer.send(now)){
+								key.cancel();
+								transfer.finish(null);
+							}
+						} catch (IOException e){
+							key.cancel();
+							transfer.finish(e);
+						}
+					}
+
+					// End transfers whose client stopped reading.
+					if (now - lastStallCheck >= 1000){
+						lastStallCheck = now;
+						for (SelectionKey key : selector.keys()){
+							Transfer transfer = (Transfer) key.attachment();
+							if (key.isValid() && now - transfer.lastWrite >= writeTimeout){
+								key.cancel();
+								stalled.increment();
+								transfer.finish(new SocketTimeoutException("Client took no bytes for "
+										+ writeTimeout + " milliseconds."));
+							}
+						}
+					}
+				} catch (Exception e){
+					UsefulHelpers.handleException(e, "General exception occurred in the bulk transfer pool.");
+				}
+			}
+
+			// End every transfer still in progress.
+			for (SelectionKey key : selector.keys()){
+				if (key.isValid()){
+					key.cancel();
+					((Transfer) key.attachment()).finish(stopped());
+				}
+			}
+			Transfer transfer;
+			while ((transfer = pending.poll()) != null){
+				transfer.finish(stopped());
+			}
+			try {
+				selector.close();
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not properly close the bulk transfer selector.");
+			}
+		}
+
+		private void registerPending(){
+			Transfer transfer;
+			while ((transfer = pending.poll()) != null){
+				try {
+					transfer.socket.configureBlocking(false);
+					transfer.socket.register(selector, SelectionKey.OP_WRITE, transfer);
+				} catch (IOException e){
+					transfer.finish(e);
+				}
+			}
+		}
+	}
+
+	private final long threshold;
+	private final int maxTransfers;
+	private final int writeTimeout;
+	// Sender threads, started once the first transfer arrives.
+	private final Sender[] senders;
+	private final AtomicInteger nextSender = new AtomicInteger();
+	private volatile boolean closed = false;
+	// Transfers that may still be started.
+	private final Semaphore slots;
+
+	// Counters.
+	private final LongAdder started = new LongAdder();
+	private final LongAdder turnedAway = new LongAdder();
+	private final LongAdder stalled = new LongAdder();
+	private final LongAdder chunks = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param threshold		Smallest response body sent by the pool, in bytes,
+	 *						0 sends every response from the worker.
+	 * @param threads		Number of threads sending transfers.
+	 * @param maxTransfers	Maximum number of transfers in progress.
+	 * @param writeTimeout	How long a transfer may go without sending a byte,
+	 *						in milliseconds.
+	 */
+	BulkTransfers(long threshold, int threads, int maxTransfers, int writeTimeout){
+		this.threshold = threshold;
+		this.maxTransfers = maxTransfers;
+		this.writeTimeout = writeTimeout;
+		this.senders = new Sender[threads];
+		this.slots = new Semaphore(maxTransfers);
+	}
+
+	/**
+	 * @param bodyLength	Number of bytes of a response body that is one
+	 *						range of a file.
+	 * @return				True if the body is large enough to be sent by the pool.
+	 */
+	boolean isBulk(long bodyLength){
+		return threshold > 0 && bodyLength >= threshold;
+	}
+
+	/**
+	 * @param response	A Web Server mode response.
+	 * @return			True if the response should be sent by the pool: its
+	 *					body is one range of a file and at least the threshold.
+	 */
+	boolean isBulk(WebResponse response){
+		return response.meta != null && response.partCount() == 0
+				&& response.encodedBody() == null && isBulk(response.bodyLength());
+	}
+
+	/**
+	 * Takes a slot for a transfer, which must then be passed to send() or
+	 * given back with unreserve().
+	 *
+	 * @return	False if maxTransfers are already in progress.
+	 */
+	boolean reserve(){
+		if (!slots.tryAcquire()){
+			turnedAway.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back a slot taken by reserve() that was not used.
+	 */
+	void unreserve(){
+		slots.release();
+	}
+
+	/**
+	 * Starts sending a response on a slot taken by reserve(). The socket is
+	 * put in non-blocking mode, and must not be used by the caller until done
+	 * has been called.
+	 *
+	 * @param socket	Client socket channel.
+	 * @param header	Response header.
+	 * @param file		Open channel of the file.
+	 * @param position	Position in the file of the first byte to send.
+	 * @param count		Number of file bytes to send.
+	 * @param done		Called on a pool thread once the response has been sent,
+	 *					with null, or with the reason it could not be.
+	 */
+	void send(SocketChannel socket, ByteBuffer header, FileChannel file, long position, long count,
+			Consumer<IOException> done){
+		started.increment();
+		Transfer transfer = new Transfer(socket, header, file, position, count, done);
+		try {
+			sender().add(transfer);
+		} catch (IOException e){
+			transfer.finish(e);
+		}
+	}
+
+	/**
+	 * Picks the sender of the next transfer, starting it if needed.
+	 *
+	 * @return	The sender.
+	 * @throws IOException	If the pool has been stopped, or the selector
+	 *						of the sender could not be opened.
+	 */
+	private synchronized Sender sender() throws IOException {
+		if (closed){
+			throw stopped();
+		}
+		int index = Math.floorMod(nextSender.getAndIncrement(), senders.length);
+		if (senders[index] == null){
+			senders[index] = new Sender(index + 1);
+		}
+		return senders[index];
+	}
+
+	private static IOException stopped(){
+		return new IOException("Server stopped before the response was sent.");
+	}
+
+	/**
+	 * Stops the pool. Transfers still in progress are ended.
+	 */
+	synchronized void close(){
+		closed = true;
+		for (Sender sender : senders){
+			if (sender != null){
+				sender.selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * @return	Summary of the bulk transfer counters.
+	 */
+	public String toString(){
+		return "bulk transfers: " + started.sum() + " started, " + (maxTransfers - slots.availablePermits())
+				+ " in progress, " + turnedAway.sum() + " turned away, " + stalled.sum() + " stalled, "
+				+ chunks.sum() + " chunks, " + bytes.sum() + " bytes";
+	}
+}
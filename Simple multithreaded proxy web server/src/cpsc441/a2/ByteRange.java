@@ -0,0 +1,158 @@
+/**
+ * ByteRange Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A range of bytes of a file requested with the Range header field, and
+ * the parser for that header field (RFC 7233). The header field has the
+ * form "bytes=" followed by a comma separated list of ranges, each one of:
+ *
+ *	first-last	The bytes from first to last, inclusive.
+ *	first-		The bytes from first to the end of the file.
+ *	-suffix		The last suffix bytes of the file.
+ *
+ * Ranges that go past the end of the file are shortened, and ranges that
+ * start past the end of the file are dropped. Overlapping and adjacent
+ * ranges are merged, so the same bytes are never sent twice.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+class ByteRange {
+
+	// Requests with more ranges than this are answered with the whole file,
+	// so a client can not make the server send lots of tiny parts.
+	static final int MAX_RANGES = 64;
+
+	// Position of the first and last byte of the range, inclusive.
+	final long first;
+	final long last;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param first	Position of the first byte.
+	 * @param last	Position of the last byte.
+	 */
+	ByteRange(long first, long last){
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * @return	Number of bytes in the range.
+	 */
+	long length(){
+		return last - first + 1;
+	}
+
+	/**
+	 * Parses a Range header field for a file.
+	 *
+	 * @param header	Value of the Range header field.
+	 * @param length	Length of the file.
+	 * @return			The ranges to send, sorted by position. An empty array
+	 *					if none of the ranges overlap the file, which means the
+	 *					response is 416 Range Not Satisfiable. Null if the header
+	 *					field is malformed, uses another unit than bytes or asks
+	 *					for too many ranges, which means it is ignored and the
+	 *					whole file is sent.
+	 */
+	static ByteRange[] parse(String header, long length){
+		String value = header.trim();
+		int equals = value.indexOf('=');
+		if (equals == -1 || !value.substring(0, equals).trim().equalsIgnoreCase("bytes")){
+			return null;
+		}
+
+		String[] specs = value.substring(equals + 1).split(",", -1);
+		if (specs.length > MAX_RANGES){
+			return null;
+		}
+
+		ArrayList<ByteRange> ranges = new ArrayList<ByteRange>();
+		boolean hasSpec = false;
+		for (String spec : specs){
+			spec = spec.trim();
+			if (spec.isEmpty()){
+				// Empty list elements are allowed.
+				continue;
+			}
+			hasSpec = true;
+			int dash = spec.indexOf('-');
+			if (dash == -1){
+				return null;
+			}
+			String firstText = spec.substring(0, dash).trim();
+			String lastText = spec.substring(dash + 1).trim();
+
+			if (firstText.isEmpty()){
+				// Suffix range, the last n bytes.
+				long suffix = parseNumber(lastText);
+				if (suffix == -1){
+					return null;
+				}
+				if (suffix > 0 && length > 0){
+					ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+				}
+				continue;
+			}
+
+			long first = parseNumber(firstText);
+			long last = lastText.isEmpty() ? Long.MAX_VALUE : parseNumber(lastText);
+			if (first == -1 || last == -1 || last < first){
+				return null;
+			}
+			if (first < length){
+				ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+			}
+		}
+		if (!hasSpec){
+			return null;
+		}
+
+		return merge(ranges);
+	}
+
+	// Sorts the ranges and merges the ones that overlap or touch.
+	private static ByteRange[] merge(ArrayList<ByteRange> ranges){
+		ranges.sort(Comparator.comparingLong(range -> range.first));
+		ArrayList<ByteRange> merged = new ArrayList<ByteRange>();
+		for (ByteRange range : ranges){
+			ByteRange previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (previous != null && range.first <= previous.last + 1){
+				merged.set(merged.size() - 1, new ByteRange(previous.first, Math.max(previous.last, range.last)));
+			} else {
+				merged.add(range);
+			}
+		}
+		return merged.toArray(new ByteRange[0]);
+	}
+
+	// Parses a non-negative decimal number. Numbers too large for a long
+	// become Long.MAX_VALUE, since they are past the end of any file.
+	// Returns -1 if the text is not a number.
+	private static long parseNumber(String text){
+		if (text.isEmpty()){
+			return -1;
+		}
+		long number = 0;
+		for (int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c < '0' || c > '9'){
+				return -1;
+			}
+			if (number > (Long.MAX_VALUE - (c - '0')) / 10){
+				number = Long.MAX_VALUE;
+			} else if (number != Long.MAX_VALUE){
+				number = number * 10 + (c - '0');
+			}
+		}
+		return number;
+	}
+}
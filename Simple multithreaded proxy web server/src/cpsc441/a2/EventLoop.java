@@ -0,0 +1,190 @@
+/**
+ * EventLoop Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A single thread that owns a Selector and drives every NioConnection that
+ * has been registered with it. Connections are handed over by the
+ * NioWebServer accept thread through a queue, and the selector is woken up
+ * so they are registered by the loop thread itself. Work finished on other
+ * threads, such as host lookups, is handed back the same way with execute().
+ * Work that may block on the disk, such as building a Web Server mode
+ * response, is run on the file threads of the server with offload().
+ * Once a second the loop also closes persistent connections that have been
+ * idle for too long.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+
+class EventLoop extends Thread {
+
+	private final Selector selector;
+	private final ServerContext context;
+	// Runs work that may block on the disk.
+	private final Executor fileTasks;
+	// Connections accepted but not yet registered with the selector.
+	private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+	// Tasks to run on the loop thread.
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean shutdown = false;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param id		Index of the event loop, used to name the thread.
+	 * @param context	State shared by the connections of the server.
+	 * @param fileTasks	Executor for work that may block on the disk.
+	 * @throws IOException	If the selector could not be opened.
+	 */
+	EventLoop(int id, ServerContext context, Executor fileTasks) throws IOException {
+		super("event-loop-" + id);
+		this.selector = Selector.open();
+		this.context = context;
+		this.fileTasks = fileTasks;
+	}
+
+	/**
+	 * Hands an accepted connection over to this event loop.
+	 *
+	 * @param channel	The non-blocking client channel.
+	 */
+	void register(SocketChannel channel){
+		context.metrics.connectionQueued();
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread, for code that must touch connections
+	 * owned by this loop from another thread.
+	 *
+	 * @param task	The task.
+	 */
+	void execute(Runnable task){
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task that may block on the disk off the loop thread. The task
+	 * hands its result back with execute().
+	 *
+	 * @param task	The task.
+	 */
+	void offload(Runnable task){
+		fileTasks.execute(task);
+	}
+
+	/**
+	 * @return	The selector of this event loop.
+	 */
+	Selector selector(){
+		return selector;
+	}
+
+	/**
+	 * @return	State shared by the connections of the server.
+	 */
+	ServerContext context(){
+		return context;
+	}
+
+	/**
+	 * Runs the event loop until shutdown.
+	 */
+	public void run(){
+		long lastIdleCheck = System.currentTimeMillis();
+
+		while (!shutdown){
+			try {
+				// Wake up every second to check the shutdown status flag.
+				selector.select(1000);
+				registerPending();
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					NioConnection connection = (NioConnection) key.attachment();
+					connection.handle(key);
+				}
+
+				// Close idle persistent connections once a second.
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= 1000){
+					lastIdleCheck = now;
+					for (SelectionKey key : selector.keys()){
+						((NioConnection) key.attachment()).closeIfIdle(now, context.config.keepAliveTimeout);
+					}
+				}
+			} catch (Exception e){
+				UsefulHelpers.handleException(e, "General exception occurred in the event loop.");
+			}
+		}
+
+		// Close every connection still owned by this loop.
+		for (SelectionKey key : selector.keys()){
+			((NioConnection) key.attachment()).close();
+		}
+		SocketChannel channel;
+		while ((channel = pending.poll()) != null){
+			context.metrics.connectionDequeued();
+			try {
+				channel.close();
+			} catch (IOException e){
+				// Ok, ignore
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close the event loop selector.");
+		}
+	}
+
+	/**
+	 * Signals the event loop to shutdown.
+	 */
+	void shutdown(){
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	// Runs the tasks handed over by other threads.
+	private void runTasks(){
+		Runnable task;
+		while ((task = tasks.poll()) != null){
+			task.run();
+		}
+	}
+
+	// Registers the connections handed over by the accept thread.
+	private void registerPending(){
+		SocketChannel channel;
+		while ((channel = pending.poll()) != null){
+			context.metrics.connectionDequeued();
+			try {
+				NioConnection connection = new NioConnection(this, channel);
+				channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not register connection with the event loop.");
+				try {
+					channel.close();
+				} catch (IOException e2){
+					// Ok, ignore
+				}
+			}
+		}
+	}
+}
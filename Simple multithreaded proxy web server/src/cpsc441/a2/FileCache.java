@@ -0,0 +1,164 @@
+/**
+ * FileCache Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A size bounded cache of file contents for Web Server mode, so that small
+ * files requested over and over are not read from disk on every request.
+ * Files are held in direct ByteBuffers keyed by path. An entry is only used
+ * while the file's last modified time and length (as given by the FileIndex)
+ * still match the ones it was loaded with, otherwise the file is read
+ * again. When the cache is full the least recently used files are evicted.
+ *
+ * Hit, miss and eviction counters are kept so the cache can be sized.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+class FileCache {
+
+	// Files larger than this are never cached.
+	private static final long MAX_FILE_SIZE = 1024 * 1024;
+
+	// Cached file.
+	private static class Entry {
+		final ByteBuffer data;
+		final long lastModified;
+		final long length;
+
+		Entry(ByteBuffer data, long lastModified, long length){
+			this.data = data;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	private final long maxSize;
+	// Entries in least recently used order, guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+
+	// Counters.
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxSize	Maximum number of bytes held by the cache, 0 disables it.
+	 */
+	FileCache(long maxSize){
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the contents of the file, reading it into the cache if it is not
+	 * there yet or has changed since it was cached.
+	 *
+	 * @param meta	Metadata of the requested file.
+	 * @return		A read only buffer holding the whole file, or null if the
+	 *				file is too large to be cached.
+	 * @throws IOException	If the file could not be read.
+	 */
+	ByteBuffer get(FileMeta meta) throws IOException {
+		long length = meta.length;
+		if (maxSize == 0 || length > MAX_FILE_SIZE || length > maxSize){
+			return null;
+		}
+
+		File file = meta.file;
+		String path = file.getPath();
+		long lastModified = meta.lastModified;
+
+		synchronized (this){
+			Entry entry = entries.get(path);
+			if (entry != null && entry.lastModified == lastModified && entry.length == length){
+				hits.increment();
+				return entry.data.duplicate();
+			}
+		}
+		misses.increment();
+
+		// Read the file outside of the lock so other requests are not held up.
+		ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+		try (FileChannel channel = new FileInputStream(file).getChannel()){
+			while (data.hasRemaining()){
+				if (channel.read(data, data.position()) == -1){
+					// The file was truncated while it was being read.
+					throw new EOFException("File ended before it was read into the cache.");
+				}
+			}
+		}
+		data.flip();
+		Entry entry = new Entry(data.asReadOnlyBuffer(), lastModified, length);
+
+		synchronized (this){
+			Entry old = entries.put(path, entry);
+			if (old != null){
+				size -= old.length;
+			}
+			size += length;
+
+			// Evict the least recently used files until the cache fits.
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+			while (size > maxSize && eldest.hasNext()){
+				Entry evicted = eldest.next().getValue();
+				if (evicted == entry){
+					continue;
+				}
+				eldest.remove();
+				size -= evicted.length;
+				evictions.increment();
+			}
+		}
+
+		return entry.data.duplicate();
+	}
+
+	/**
+	 * @return	Number of requests served from the cache.
+	 */
+	long hits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return	Number of requests that had to read the file.
+	 */
+	long misses(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return	Number of files evicted to make room.
+	 */
+	long evictions(){
+		return evictions.sum();
+	}
+
+	/**
+	 * @return	Number of bytes currently held by the cache.
+	 */
+	synchronized long size(){
+		return size;
+	}
+
+	/**
+	 * @return	Summary of the cache counters.
+	 */
+	public String toString(){
+		return "file cache: " + hits() + " hits, " + misses() + " misses, "
+				+ evictions() + " evictions, " + size() + " of " + maxSize + " bytes used";
+	}
+}
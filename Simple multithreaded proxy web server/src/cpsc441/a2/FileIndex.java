@@ -0,0 +1,246 @@
+/**
+ * FileIndex Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Caches the FileMeta of requested files, including files that do not
+ * exist, so that a request does not have to stat the file and probe its
+ * content type every time.
+ *
+ * Entries are kept up to date with a WatchService. Before a file is looked
+ * up for the first time, the directory that holds it (or its closest
+ * existing ancestor, for files that do not exist) is registered with the
+ * watch service. Any event in a watched directory removes the entries for
+ * the changed path and everything below it, so the next request reads the
+ * metadata from disk again. If the watch service is not available, or
+ * events were lost, entries are not cached at all or are all dropped.
+ * At most MAX_WATCHED directories are watched, files in other directories
+ * are read from disk on every lookup.
+ *
+ * Paths that lead outside the document root, through ".." segments or a
+ * symbolic link, are treated as missing files before anything is read or
+ * watched.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+class FileIndex implements Runnable {
+
+	// Maximum number of entries, the index is cleared when it grows past this.
+	private static final int MAX_ENTRIES = 100000;
+	// Maximum number of directories registered with the watch service.
+	private static final int MAX_WATCHED = 1000;
+
+	// Directory files are served from.
+	private final String documentRoot;
+	// Canonical path of the document root.
+	private final Path canonicalRoot;
+	// Entries keyed by normalized absolute path, sorted so that everything
+	// below a directory can be found with a range query.
+	private final ConcurrentSkipListMap<String, FileMeta> entries = new ConcurrentSkipListMap<String, FileMeta>();
+	// Directories registered with the watch service.
+	private final ConcurrentHashMap<Path, WatchKey> watched = new ConcurrentHashMap<Path, WatchKey>();
+	// Number of invalidations so far, counted before their entries are removed.
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private WatchService watchService = null;
+	private Thread watchThread = null;
+	private volatile boolean enabled = false;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param documentRoot	Directory files are served from.
+	 */
+	FileIndex(String documentRoot){
+		this.documentRoot = documentRoot;
+		Path root = Paths.get(documentRoot).toAbsolutePath().normalize();
+		try {
+			root = root.toRealPath();
+		} catch (IOException e){
+			// Ok, the root does not exist, so nothing is below it anyway.
+		}
+		this.canonicalRoot = root;
+	}
+
+	/**
+	 * Starts watching for changes. Until this is called, or if the watch
+	 * service can not be opened, every lookup reads the metadata from disk.
+	 */
+	synchronized void start(){
+		if (watchThread != null){
+			return;
+		}
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not open watch service, file metadata will not be cached.");
+			return;
+		}
+		enabled = true;
+		watchThread = new Thread(this, "file-index-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Stops watching for changes and drops every entry.
+	 */
+	synchronized void close(){
+		enabled = false;
+		entries.clear();
+		try {
+			if (watchService != null){
+				watchService.close();
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close watch service.");
+		}
+	}
+
+	/**
+	 * Gets the metadata of a requested file.
+	 *
+	 * @param filename	Name of the requested file, relative to the document root.
+	 * @return			Metadata of the file.
+	 */
+	FileMeta lookup(String filename){
+		File file = new File(documentRoot + filename);
+		String key;
+		try {
+			key = file.toPath().toAbsolutePath().normalize().toString();
+		} catch (InvalidPathException e){
+			return FileMeta.missing(file);
+		}
+		FileMeta meta = enabled ? entries.get(key) : null;
+		if (meta != null){
+			return meta;
+		}
+
+		if (!insideRoot(file)){
+			return FileMeta.missing(file);
+		}
+		if (!enabled){
+			return new FileMeta(file);
+		}
+
+		// Watch the directory before reading the metadata, so a change made
+		// after the metadata is read can not be missed.
+		if (!watch(Paths.get(key).getParent())){
+			return new FileMeta(file);
+		}
+		long before = invalidations.get();
+		meta = new FileMeta(file);
+
+		if (entries.size() >= MAX_ENTRIES){
+			entries.clear();
+		}
+		entries.put(key, meta);
+		// An event handled while the metadata was read found nothing to
+		// remove, and the metadata may be older than the change it reported.
+		if (invalidations.get() != before){
+			entries.remove(key, meta);
+		}
+		return meta;
+	}
+
+	// Checks that the canonical path of the file, with ".." segments and
+	// symbolic links resolved, is in the document root.
+	private boolean insideRoot(File file){
+		try {
+			return file.getCanonicalFile().toPath().startsWith(canonicalRoot);
+		} catch (IOException | InvalidPathException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the entries for a path and everything below it.
+	 *
+	 * @param path	Normalized absolute path.
+	 */
+	void invalidate(String path){
+		invalidations.incrementAndGet();
+		entries.remove(path);
+		// Every key below path starts with path + '/', and '0' is the
+		// character right after '/'.
+		entries.subMap(path + File.separator, path + (char) (File.separatorChar + 1)).clear();
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	void invalidateAll(){
+		invalidations.incrementAndGet();
+		entries.clear();
+	}
+
+	/**
+	 * Handles watch service events until the watch service is closed.
+	 */
+	public void run(){
+		while (true){
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (ClosedWatchServiceException | InterruptedException e){
+				break;
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()){
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+					// Events were lost, so nothing in the index can be trusted.
+					invalidateAll();
+				} else {
+					invalidate(dir.resolve((Path) event.context()).toString());
+				}
+			}
+
+			if (!key.reset()){
+				// The directory is gone, entries below it are out of date.
+				watched.remove(dir);
+				invalidate(dir.toString());
+			}
+		}
+
+		enabled = false;
+		entries.clear();
+	}
+
+	// Registers the directory, or its closest existing ancestor, with the watch service.
+	private boolean watch(Path dir){
+		while (dir != null && !Files.isDirectory(dir)){
+			dir = dir.getParent();
+		}
+		if (dir == null){
+			return false;
+		}
+		if (watched.containsKey(dir)){
+			return true;
+		}
+		if (watched.size() >= MAX_WATCHED){
+			return false;
+		}
+
+		try {
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watched.put(dir, key);
+			return true;
+		} catch (ClosedWatchServiceException e){
+			return false;
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not watch directory " + dir + ".");
+			return false;
+		}
+	}
+}
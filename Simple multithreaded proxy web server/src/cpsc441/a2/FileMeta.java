@@ -0,0 +1,123 @@
+/**
+ * FileMeta Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Everything Web Server mode needs to know about a requested file to build
+ * the response header: whether it exists, its length, last modified time,
+ * entity tag and content type, along with the header fields that only
+ * depend on them. The entity tag is strong and made from the length and
+ * last modified time, so it changes whenever the file does.
+ * Entries for files that do not exist are kept as well, so repeated
+ * requests for a missing file can be answered with 404 Not Found without
+ * touching the disk.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+class FileMeta {
+
+	// The file on disk.
+	final File file;
+	// True if the file exists and is a file.
+	final boolean exists;
+	final long length;
+	final long lastModified;
+	// Last-Modified header field value, empty if the file does not exist.
+	final String lastModifiedDate;
+	// Entity tag including the quotes, empty if the file does not exist.
+	final String etag;
+	// Content type, null if it could not be determined.
+	final String contentType;
+	// True if the content type is text that is worth compressing, such as
+	// HTML, CSS, JavaScript, JSON or SVG.
+	final boolean compressible;
+
+	// Pre-rendered header fields, including the trailing \r\n.
+	final byte[] lastModifiedHeader;
+	final byte[] contentTypeHeader;
+	final byte[] etagHeader;
+	// Vary header field of compressible files, empty for other files.
+	final byte[] varyHeader;
+
+
+	/**
+	 * Reads the metadata of a file from disk.
+	 *
+	 * @param file	The file.
+	 */
+	FileMeta(File file){
+		this(file, file.isFile());
+	}
+
+	/**
+	 * Metadata of a file that is treated as missing without looking at the
+	 * disk, such as a path outside the document root.
+	 *
+	 * @param file	The file.
+	 * @return		Metadata of a file that does not exist.
+	 */
+	static FileMeta missing(File file){
+		return new FileMeta(file, false);
+	}
+
+	private FileMeta(File file, boolean exists){
+		this.file = file;
+		this.exists = exists;
+
+		if (!exists){
+			this.length = 0;
+			this.lastModified = 0;
+			this.lastModifiedDate = "";
+			this.etag = "";
+			this.contentType = null;
+			this.compressible = false;
+			this.lastModifiedHeader = new byte[0];
+			this.contentTypeHeader = new byte[0];
+			this.etagHeader = new byte[0];
+			this.varyHeader = new byte[0];
+			return;
+		}
+
+		this.length = file.length();
+		this.lastModified = file.lastModified();
+		this.lastModifiedDate = Utils.getLastModified(file);
+		this.lastModifiedHeader = ("Last-Modified: " + lastModifiedDate +"\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+		this.etagHeader = ("ETag: " + etag + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+		String type = null;
+		String typeHeader = "";
+		try{
+			type = Utils.getContentType(file);
+			typeHeader = "Content-Type: " + type + "\r\n";
+		} catch(Exception e){
+			UsefulHelpers.log("Warning: Could not get content type of the file.");
+		}
+		this.contentType = type;
+		this.contentTypeHeader = typeHeader.getBytes(StandardCharsets.ISO_8859_1);
+
+		// The body of compressible files depends on the Accept-Encoding of the request.
+		this.compressible = isCompressible(type);
+		this.varyHeader = (compressible ? "Vary: Accept-Encoding\r\n" : "").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param type	Content type, may be null.
+	 * @return		True if files of the type are text that compresses well.
+	 */
+	static boolean isCompressible(String type){
+		if (type == null){
+			return false;
+		}
+		type = type.toLowerCase();
+		return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+				|| type.equals("application/javascript") || type.equals("application/json")
+				|| type.equals("application/xml") || type.equals("application/wasm");
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * FileTransfer Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Sends a response header followed by a file (or a range of it) over a
+ * blocking SocketChannel without copying the file through the Java heap.
+ * The header and the start of the body are sent together with one
+ * gathering write, so the header does not go out in a packet of its own.
+ * The rest of the body is sent with FileChannel.transferTo, which lets the
+ * kernel copy straight from the page cache into the socket.
+ *
+ * A multipart/byteranges response is sent the same way, one range at a
+ * time, with the header of each part sent along with the start of its range.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+class FileTransfer {
+
+	// Size of the first part of the body sent along with the header.
+	private static final int GATHER_SIZE = 64 * 1024;
+
+	// Buffers for the first part of the body.
+	private static final BufferPool buffers = new BufferPool(GATHER_SIZE, 64);
+
+
+	/**
+	 * Sends the header and count bytes of the file starting at position.
+	 *
+	 * @param socket	Blocking client socket channel.
+	 * @param header	Response header.
+	 * @param file		Open file channel, or null if there is no body.
+	 * @param position	Position in the file of the first byte to send.
+	 * @param count		Number of file bytes to send.
+	 * @throws IOException	If reading the file or writing to the client fails.
+	 */
+	static void send(SocketChannel socket, ByteBuffer header, FileChannel file,
+			long position, long count) throws IOException {
+
+		if (file == null || count == 0){
+			writeFully(socket, new ByteBuffer[]{header});
+			return;
+		}
+
+		// Read the start of the body so it can be sent along with the header,
+		// unless the header has already been sent.
+		ByteBuffer first = header.hasRemaining() ? buffers.acquire() : null;
+		if (first != null){
+			try {
+				first.limit((int) Math.min(first.capacity(), count));
+				while (first.hasRemaining()){
+					int read = file.read(first, position + first.position());
+					if (read == -1){
+						// The file was truncated while it was being sent.
+						throw new EOFException("File ended before the requested bytes were sent.");
+					}
+				}
+				first.flip();
+
+				writeFully(socket, new ByteBuffer[]{header, first});
+				position += first.limit();
+				count -= first.limit();
+			} finally {
+				buffers.release(first);
+			}
+		}
+
+		// Send the rest of the body straight from the file.
+		while (count > 0){
+			long sent = file.transferTo(position, count, socket);
+			if (sent == 0 && position >= file.size()){
+				// The file was truncated while it was being sent.
+				throw new EOFException("File ended before the requested bytes were sent.");
+			}
+			position += sent;
+			count -= sent;
+		}
+	}
+
+	/**
+	 * Sends a multipart/byteranges response: the header, then each range of
+	 * the file after its part header, then the closing boundary.
+	 *
+	 * @param socket	Blocking client socket channel.
+	 * @param response	The response, with several ranges.
+	 * @param file		Open file channel.
+	 * @throws IOException	If reading the file or writing to the client fails.
+	 */
+	static void send(SocketChannel socket, WebResponse response, FileChannel file) throws IOException {
+		for (int i = 0; i < response.partCount(); i++){
+			ByteBuffer partHeader = ByteBuffer.wrap(response.partHeader(i));
+			if (i == 0){
+				// Send the response header in the same write as the first part.
+				ByteBuffer header = ByteBuffer.allocate(response.header.remaining() + partHeader.remaining());
+				header.put(response.header.duplicate()).put(partHeader).flip();
+				partHeader = header;
+			}
+			ByteRange range = response.ranges[i];
+			send(socket, partHeader, file, range.first, range.length());
+		}
+		writeFully(socket, new ByteBuffer[]{ByteBuffer.wrap(response.closingBoundary())});
+	}
+
+	/**
+	 * Sends the header and a body that is already in memory with one
+	 * gathering write.
+	 *
+	 * @param socket	Blocking client socket channel.
+	 * @param header	Response header.
+	 * @param body		Response body.
+	 * @throws IOException	If writing to the client fails.
+	 */
+	static void send(SocketChannel socket, ByteBuffer header, ByteBuffer body) throws IOException {
+		writeFully(socket, new ByteBuffer[]{header, body});
+	}
+
+	// Writes all the buffers, a blocking channel may take several calls.
+	private static void writeFully(SocketChannel socket, ByteBuffer[] data) throws IOException {
+		// Gathering writes empty the buffers in order, so the last one is
+		// only empty once all of them have been written.
+		while (data[0].hasRemaining() || data[data.length - 1].hasRemaining()){
+			socket.write(data);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * GzipCache Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A size bounded cache of gzip compressed copies of text files for Web
+ * Server mode, used when a client accepts gzip and there is no precompressed
+ * .gz file next to the requested file. Files are compressed once and the
+ * result is kept in memory keyed by path, and is only used while the file's
+ * last modified time and length still match the ones it was compressed
+ * from. When the cache is full the least recently used copies are evicted.
+ *
+ * Files that do not get smaller are remembered as well, so they are not
+ * compressed again on every request.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+class GzipCache {
+
+	// Files larger than this are never compressed on the fly.
+	private static final long MAX_FILE_SIZE = 1024 * 1024;
+	// Files smaller than this gain too little from compression.
+	private static final long MIN_FILE_SIZE = 256;
+
+	// Compressed file, data is null if compressing did not make it smaller.
+	private static class Entry {
+		final ByteBuffer data;
+		final long lastModified;
+		final long length;
+
+		Entry(ByteBuffer data, long lastModified, long length){
+			this.data = data;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		// Files that do not get smaller are counted with a small size, so
+		// the number of entries stays bounded.
+		long size(){
+			return data == null ? 64 : data.capacity();
+		}
+	}
+
+	private final long maxSize;
+	// Entries in least recently used order, guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+
+	// Counters.
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxSize	Maximum number of compressed bytes held by the cache,
+	 *					0 disables compressing on the fly.
+	 */
+	GzipCache(long maxSize){
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the gzip compressed contents of the file, compressing it if it is
+	 * not cached yet or has changed since it was cached.
+	 *
+	 * @param meta	Metadata of the requested file.
+	 * @return		A read only buffer holding the compressed file, or null if
+	 *				the file is too small or too large to be compressed on the
+	 *				fly, or does not get smaller.
+	 * @throws IOException	If the file could not be read.
+	 */
+	ByteBuffer get(FileMeta meta) throws IOException {
+		long length = meta.length;
+		if (maxSize == 0 || length < MIN_FILE_SIZE || length > MAX_FILE_SIZE){
+			return null;
+		}
+
+		File file = meta.file;
+		String path = file.getPath();
+		long lastModified = meta.lastModified;
+
+		synchronized (this){
+			Entry entry = entries.get(path);
+			if (entry != null && entry.lastModified == lastModified && entry.length == length){
+				hits.increment();
+				return entry.data == null ? null : entry.data.duplicate();
+			}
+		}
+		misses.increment();
+
+		// Compress the file outside of the lock so other requests are not held up.
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) length / 3);
+		try (InputStream in = new FileInputStream(file);
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed){
+					{
+						// The result is cached, so it is worth compressing harder.
+						def.setLevel(Deflater.BEST_COMPRESSION);
+					}
+				}){
+			in.transferTo(gzip);
+		}
+		ByteBuffer data = compressed.size() < length
+				? ByteBuffer.wrap(compressed.toByteArray()).asReadOnlyBuffer() : null;
+		Entry entry = new Entry(data, lastModified, length);
+		if (entry.size() > maxSize){
+			return data;
+		}
+
+		synchronized (this){
+			Entry old = entries.put(path, entry);
+			if (old != null){
+				size -= old.size();
+			}
+			size += entry.size();
+
+			// Evict the least recently used copies until the cache fits.
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+			while (size > maxSize && eldest.hasNext()){
+				Entry evicted = eldest.next().getValue();
+				if (evicted == entry){
+					continue;
+				}
+				eldest.remove();
+				size -= evicted.size();
+				evictions.increment();
+			}
+		}
+
+		return data == null ? null : data.duplicate();
+	}
+
+	/**
+	 * @return	Number of requests served from the cache.
+	 */
+	long hits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return	Number of requests that had to compress the file.
+	 */
+	long misses(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return	Number of bytes currently held by the cache.
+	 */
+	synchronized long size(){
+		return size;
+	}
+
+	/**
+	 * @return	Summary of the cache counters.
+	 */
+	public String toString(){
+		return "gzip cache: " + hits() + " hits, " + misses() + " misses, "
+				+ evictions.sum() + " evictions, " + size() + " of " + maxSize + " bytes used";
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * HeaderWriter Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Builds a response header as bytes in a buffer that is reused for every
+ * response on a connection, instead of concatenating Strings. Text is
+ * written as single byte characters (header fields are ASCII) and numbers
+ * are written digit by digit, so building a header allocates nothing once
+ * the buffer has grown to fit.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.ByteBuffer;
+
+class HeaderWriter {
+
+	private ByteBuffer buffer = ByteBuffer.allocate(512);
+	// Scratch space for the digits of a number.
+	private final byte[] digits = new byte[20];
+
+
+	/**
+	 * Starts a new header, the buffer returned by the previous finish()
+	 * must no longer be in use.
+	 *
+	 * @return	This writer.
+	 */
+	HeaderWriter clear(){
+		buffer.clear();
+		return this;
+	}
+
+	/**
+	 * @param bytes	Encoded text to append.
+	 * @return		This writer.
+	 */
+	HeaderWriter write(byte[] bytes){
+		ensure(bytes.length);
+		buffer.put(bytes);
+		return this;
+	}
+
+	/**
+	 * @param text	ASCII text to append.
+	 * @return		This writer.
+	 */
+	HeaderWriter write(String text){
+		int length = text.length();
+		ensure(length);
+		for (int i = 0; i < length; i++){
+			buffer.put((byte) text.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * @param number	Number to append in decimal.
+	 * @return			This writer.
+	 */
+	HeaderWriter write(long number){
+		if (number < 0){
+			write((byte) '-');
+			if (number == Long.MIN_VALUE){
+				// Can not be negated, only happens if the caller has a bug.
+				return write(Long.toString(number).substring(1));
+			}
+			number = -number;
+		}
+
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + number % 10);
+			number /= 10;
+		} while (number > 0);
+
+		ensure(count);
+		while (count > 0){
+			buffer.put(digits[--count]);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the header written so far, ready to be sent. The buffer is
+	 * reused by the next header, so it must be sent before clear() is called.
+	 *
+	 * @return	Buffer holding the header.
+	 */
+	ByteBuffer finish(){
+		buffer.flip();
+		return buffer;
+	}
+
+	// Appends a single byte.
+	private HeaderWriter write(byte b){
+		ensure(1);
+		buffer.put(b);
+		return this;
+	}
+
+	// Grows the buffer so that count more bytes fit.
+	private void ensure(int count){
+		if (buffer.remaining() < count){
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/**
+ * HostResolver Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Caches host name lookups so that a slow DNS server is not asked about the
+ * same host on every request. Lookups run on a few resolver threads and
+ * return a CompletableFuture, so the NIO event loops never wait for DNS.
+ * Requests for a name that is already being looked up share the same
+ * lookup.
+ *
+ * Addresses are kept for ttl milliseconds and failed lookups for negativeTtl
+ * milliseconds. The Web or Proxy Server mode verdict, whether the Host
+ * header field names the local host, is cached per Host header field value
+ * for as long as the lookup it was worked out from. Both caches hold at most
+ * maxEntries entries, and the least recently used ones are dropped first.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+class HostResolver {
+
+	// Number of threads that run lookups.
+	private static final int RESOLVER_THREADS = 4;
+
+	// A cached lookup or verdict. It does not expire while it is running.
+	private static class Cached<T> {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		volatile long expires = Long.MAX_VALUE;
+	}
+
+	private final int maxEntries;
+	private final long ttl;
+	private final long negativeTtl;
+	private final ExecutorService executor;
+
+	// Lookups keyed by host name and verdicts keyed by Host header field
+	// value, in least recently used order. Guarded by this.
+	private final LinkedHashMap<String, Cached<InetAddress[]>> lookups
+			= new LinkedHashMap<String, Cached<InetAddress[]>>(16, 0.75f, true);
+	private final LinkedHashMap<String, Cached<Boolean>> verdicts
+			= new LinkedHashMap<String, Cached<Boolean>>(16, 0.75f, true);
+
+	// Counters.
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder shared = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxEntries	Maximum number of names and Host header field values cached.
+	 * @param ttl			How long addresses are cached, in milliseconds.
+	 * @param negativeTtl	How long failed lookups are cached, in milliseconds.
+	 */
+	HostResolver(int maxEntries, long ttl, long negativeTtl){
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(RESOLVER_THREADS, task -> {
+			Thread thread = new Thread(task, "host-resolver-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Stops the resolver threads. Lookups that have not finished fail.
+	 */
+	void close(){
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Looks up the addresses of a host.
+	 *
+	 * @param host	Host name or IP address literal.
+	 * @return		The addresses of the host, completed with an
+	 *				UnknownHostException if it can not be found.
+	 */
+	CompletableFuture<InetAddress[]> lookup(String host){
+		return lookupEntry(host).result;
+	}
+
+	/**
+	 * Works out whether a Host header field value names the local host,
+	 * which means the request is handled in Web Server mode.
+	 *
+	 * @param hostHeader	Host header field value without any http:// prefix,
+	 *						possibly with a port number.
+	 * @return				True if the host is the local host, completed with
+	 *						an UnknownHostException if it can not be found.
+	 */
+	CompletableFuture<Boolean> isLocalHost(String hostHeader){
+		long now = System.currentTimeMillis();
+		Cached<Boolean> verdict;
+		synchronized (this){
+			verdict = verdicts.get(hostHeader);
+			if (verdict != null && verdict.expires > now){
+				hits.increment();
+				return verdict.result;
+			}
+			verdict = new Cached<Boolean>();
+			put(verdicts, hostHeader, verdict);
+		}
+
+		// The verdict lasts as long as the lookup it comes from.
+		Cached<InetAddress[]> source = lookupEntry(hostHeader.split(":")[0]);
+		Cached<Boolean> result = verdict;
+		source.result.whenComplete((addresses, failure) -> {
+			result.expires = source.expires;
+			if (failure != null){
+				result.result.completeExceptionally(unwrap(failure));
+			} else {
+				result.result.complete(Utils.isLocalHost(addresses[0]));
+			}
+		});
+		return verdict.result;
+	}
+
+	/**
+	 * Waits for a lookup or verdict, for callers that may block.
+	 *
+	 * @param result	Result of lookup() or isLocalHost().
+	 * @return			The result.
+	 * @throws UnknownHostException	If the host could not be found.
+	 */
+	static <T> T await(CompletableFuture<T> result) throws UnknownHostException {
+		try {
+			return result.get();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException("Interrupted while waiting for a host lookup.");
+		} catch (ExecutionException e){
+			Throwable cause = unwrap(e.getCause());
+			if (cause instanceof UnknownHostException){
+				throw (UnknownHostException) cause;
+			}
+			UnknownHostException unknown = new UnknownHostException("Host lookup failed: " + cause);
+			unknown.initCause(cause);
+			throw unknown;
+		} catch (CancellationException e){
+			throw new UnknownHostException("Host lookup was cancelled.");
+		}
+	}
+
+	/**
+	 * @return	Summary of the resolver counters.
+	 */
+	public String toString(){
+		return "host resolver: " + hits.sum() + " hits, " + shared.sum() + " shared, "
+				+ misses.sum() + " lookups, " + failures.sum() + " failed";
+	}
+
+	// Gets the cached lookup of a host, starting a new one if there is none
+	// or it has expired.
+	private Cached<InetAddress[]> lookupEntry(String host){
+		long now = System.currentTimeMillis();
+		Cached<InetAddress[]> lookup;
+		synchronized (this){
+			lookup = lookups.get(host);
+			if (lookup != null && lookup.expires > now){
+				if (lookup.result.isDone()){
+					hits.increment();
+				} else {
+					// Someone else is already looking the host up.
+					shared.increment();
+				}
+				return lookup;
+			}
+			lookup = new Cached<InetAddress[]>();
+			put(lookups, host, lookup);
+		}
+		misses.increment();
+
+		Cached<InetAddress[]> started = lookup;
+		try {
+			executor.execute(() -> resolve(host, started));
+		} catch (RejectedExecutionException e){
+			// The resolver has been closed, look the host up on this thread.
+			resolve(host, started);
+		}
+		return lookup;
+	}
+
+	// Runs a lookup and sets how long its result is cached.
+	private void resolve(String host, Cached<InetAddress[]> lookup){
+		try {
+			InetAddress[] addresses = InetAddress.getAllByName(host);
+			lookup.expires = System.currentTimeMillis() + ttl;
+			lookup.result.complete(addresses);
+		} catch (UnknownHostException | RuntimeException e){
+			failures.increment();
+			lookup.expires = System.currentTimeMillis() + negativeTtl;
+			lookup.result.completeExceptionally(e);
+		}
+	}
+
+	// Adds an entry, dropping expired entries and then the least recently
+	// used ones when the cache is full. Must be called while holding this.
+	private <T> void put(LinkedHashMap<String, Cached<T>> cache, String key, Cached<T> entry){
+		cache.put(key, entry);
+		if (cache.size() <= maxEntries){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Cached<T>> it = cache.values().iterator();
+		while (it.hasNext()){
+			if (it.next().expires <= now){
+				it.remove();
+			}
+		}
+		it = cache.values().iterator();
+		while (cache.size() > maxEntries && it.hasNext()){
+			it.next();
+			it.remove();
+		}
+	}
+
+	// Gets the exception a lookup failed with.
+	private static Throwable unwrap(Throwable failure){
+		if (failure instanceof CompletionException && failure.getCause() != null){
+			return failure.getCause();
+		}
+		return failure;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * HttpDate Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A shared clock for the Date header field. The date only has a resolution
+ * of one second, so instead of formatting it for every response it is
+ * rendered at most once a second and the encoded bytes are shared by every
+ * thread until the second changes. Dates received from other servers can
+ * be parsed back into milliseconds.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+class HttpDate {
+
+	// Rendered date and the second it was rendered for.
+	private static class Rendered {
+		final long second;
+		final byte[] bytes;
+
+		Rendered(long second, byte[] bytes){
+			this.second = second;
+			this.bytes = bytes;
+		}
+	}
+
+	private static volatile Rendered current = new Rendered(-1, new byte[0]);
+
+
+	/**
+	 * Returns the current date, formatted the same way as Utils.getCurrentDate.
+	 * The returned array is shared and must not be modified.
+	 *
+	 * @return	The current date encoded as bytes.
+	 */
+	static byte[] now(){
+		long second = System.currentTimeMillis() / 1000;
+		Rendered rendered = current;
+		if (rendered.second != second){
+			// Several threads may render the same second at once, which is harmless.
+			rendered = new Rendered(second, Utils.getCurrentDate().getBytes(StandardCharsets.ISO_8859_1));
+			current = rendered;
+		}
+		return rendered.bytes;
+	}
+
+	/**
+	 * Parses a date header field value such as "Sun, 06 Nov 1994 08:49:37 GMT".
+	 * Dates ending in UTC, as sent by this server, are accepted as well.
+	 *
+	 * @param value	The header field value, may be null.
+	 * @return		The date in milliseconds since the epoch, or -1 if the
+	 *				value is missing or not a valid date.
+	 */
+	static long parse(String value){
+		if (value == null){
+			return -1;
+		}
+		value = value.trim();
+		if (value.endsWith(" UTC")){
+			value = value.substring(0, value.length() - 3) + "GMT";
+		}
+		try {
+			return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e){
+			return -1;
+		}
+	}
+}
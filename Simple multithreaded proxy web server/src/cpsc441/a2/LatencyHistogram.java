@@ -0,0 +1,166 @@
+/**
+ * LatencyHistogram Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A histogram of latencies in microseconds, laid out like an HdrHistogram:
+ * below 8 microseconds every value has a bucket of its own, and above that
+ * every power of two is split into 8 buckets of equal width. A recorded
+ * value is therefore counted within 12.5% of its true value at any
+ * magnitude, with a fixed number of buckets and no allocation per record.
+ *
+ * Each bucket is a LongAdder, so threads recording at the same time do not
+ * contend on a single counter. Percentiles are read from a snapshot of the
+ * buckets and report the highest value of the bucket they fall in.
+ *
+ * It is public so the TCPClient load generator reports its latencies the
+ * same way as the server.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+	// Each power of two is split into 2^SUB_BITS buckets.
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	// Largest power of two tracked, larger values go in the last bucket.
+	// 2^40 microseconds is about 12 days.
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private final String name;
+	private final LongAdder[] buckets = new LongAdder[SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param name	Name printed with the summary, for example parse time.
+	 */
+	public LatencyHistogram(String name){
+		this.name = name;
+		for (int i = 0; i < buckets.length; i++){
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos	The latency in nanoseconds, negative values are ignored.
+	 */
+	public void record(long nanos){
+		if (nanos < 0){
+			return;
+		}
+		long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_VALUE);
+		buckets[index(micros)].increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	/**
+	 * Records the time between two times.
+	 *
+	 * @param start	Start time from System.nanoTime(), 0 if it is not known,
+	 *				in which case nothing is recorded.
+	 * @param end	End time from System.nanoTime().
+	 */
+	public void record(long start, long end){
+		if (start != 0){
+			record(end - start);
+		}
+	}
+
+	/**
+	 * @return	Number of latencies recorded.
+	 */
+	public long count(){
+		long count = 0;
+		for (LongAdder bucket : buckets){
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return	Mean latency in microseconds, 0 if nothing was recorded.
+	 */
+	public long mean(){
+		long count = count();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	/**
+	 * @return	Largest latency recorded in microseconds.
+	 */
+	public long max(){
+		return max.get();
+	}
+
+	/**
+	 * @param percentile	Percentile wanted, for example 99.9.
+	 * @return				Latency in microseconds that the given percentage of
+	 *						recorded latencies do not exceed, 0 if nothing was
+	 *						recorded.
+	 */
+	public long percentile(double percentile){
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++){
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0){
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++){
+			seen += counts[i];
+			if (seen >= rank){
+				return Math.min(highestValue(i), max());
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * @return	Summary of the recorded latencies.
+	 */
+	public String toString(){
+		return name + ": " + count() + " recorded, mean " + mean() + " us, p50 " + percentile(50)
+				+ " us, p90 " + percentile(90) + " us, p99 " + percentile(99) + " us, p99.9 "
+				+ percentile(99.9) + " us, max " + max() + " us";
+	}
+
+	// Bucket a value in microseconds is counted in.
+	private static int index(long micros){
+		if (micros < SUB_COUNT){
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) - SUB_COUNT;
+		return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+	}
+
+	// Highest value in microseconds counted in a bucket.
+	private static long highestValue(int index){
+		if (index < SUB_COUNT){
+			return index;
+		}
+		int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+		long sub = (index - SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+		long width = 1L << (exponent - SUB_BITS);
+		return sub * width + width - 1;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Listeners Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Opens the listening sockets of a server. With more than one acceptor,
+ * several sockets are bound to the same port with SO_REUSEPORT, each one
+ * served by its own accepting thread, and the kernel spreads new
+ * connections across them. This way a storm of short lived connections is
+ * not held up by a single thread calling accept(). Where SO_REUSEPORT is
+ * not supported a single socket is opened.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+class Listeners {
+
+	/**
+	 * Opens the listening sockets.
+	 *
+	 * @param port		Port to listen on.
+	 * @param count		Number of sockets wanted.
+	 * @param backlog	Backlog of each socket, 0 for the default.
+	 * @return			The bound sockets, in blocking mode. Only one if
+	 *					SO_REUSEPORT is not supported.
+	 * @throws IOException	If a socket can not be opened or bound.
+	 */
+	static ServerSocketChannel[] open(int port, int count, int backlog) throws IOException {
+		ServerSocketChannel[] channels = new ServerSocketChannel[count];
+		try {
+			for (int i = 0; i < count; i++){
+				channels[i] = ServerSocketChannel.open();
+				if (count > 1){
+					if (!channels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)){
+						System.out.println("Warning: SO_REUSEPORT is not supported, "
+								+ "using a single listening socket.");
+						ServerSocketChannel only = channels[i];
+						only.bind(new InetSocketAddress(port), backlog);
+						channels[i] = null;
+						closeAll(channels);
+						return new ServerSocketChannel[]{only};
+					}
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channels[i].bind(new InetSocketAddress(port), backlog);
+			}
+		} catch (IOException | RuntimeException e){
+			closeAll(channels);
+			throw e;
+		}
+		return channels;
+	}
+
+	/**
+	 * Closes listening sockets, ignoring errors.
+	 *
+	 * @param channels	The sockets, entries may be null.
+	 */
+	static void closeAll(ServerSocketChannel[] channels){
+		for (ServerSocketChannel channel : channels){
+			if (channel == null){
+				continue;
+			}
+			try {
+				channel.close();
+			} catch (IOException e){
+				// Ok, ignore
+			}
+		}
+	}
+}
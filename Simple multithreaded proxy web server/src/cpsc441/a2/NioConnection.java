@@ -0,0 +1,668 @@
+/**
+ * NioConnection Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Non-blocking state machine for a single client connection handled by an
+ * EventLoop. It performs the same work as a Worker thread, but instead of
+ * blocking on streams it reacts to selector readiness events:
+ *
+ *	READ_REQUEST	Reading and parsing the client request header.
+ *	RESOLVE_HOST	Waiting for the HostResolver to look up the host named
+ *					in the request, which is done off the event loop.
+ *	OPEN_FILE		Waiting for the Web Server mode response to be built on
+ *					a file thread of the server, since that may stat, read
+ *					or compress the requested file.
+ *	WRITE_RESPONSE	Writing the response header and then the requested file
+ *					(or range) with FileChannel.transferTo. Persistent
+ *					connections go back to READ_REQUEST afterwards.
+ *	PROXY_FORWARD	Connecting to the requested host and forwarding the
+ *					client request to it.
+ *	PROXY_RELAY		Relaying the response of the host back to the client,
+ *					and the rest of the request body to the host, with a
+ *					full-duplex Relay. CONNECT tunnels use the same state.
+ *
+ * Fresh responses in the proxy cache are sent like files in Web Server mode.
+ * Other Proxy Server mode responses are relayed without being stored, the
+ * threaded Worker is the one that fills the proxy cache.
+ *
+ * Like the Worker, every request is recorded in the metrics of the server
+ * and written to the access log.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+
+class NioConnection {
+
+	// Connection states.
+	private static final int READ_REQUEST = 0;
+	private static final int RESOLVE_HOST = 1;
+	private static final int WRITE_RESPONSE = 2;
+	private static final int PROXY_FORWARD = 3;
+	private static final int PROXY_RELAY = 4;
+	private static final int CLOSED = 5;
+	private static final int OPEN_FILE = 6;
+
+	private final EventLoop loop;
+	private final SocketChannel client;
+	private int state = READ_REQUEST;
+
+	// Client request. With persistent connections this can hold the start
+	// of the next request.
+	private final ByteBuffer requestBuffer;
+	// Parses the request header as it is read.
+	private final RequestParser parser;
+	// End of the request header being handled, including the empty line.
+	private int requestEnd = 0;
+	// Time the first byte of the current request arrived, from
+	// System.nanoTime(), 0 if none has yet or it has been logged.
+	private long requestStart = 0;
+	// Times the request was parsed and the response started, 0 until then.
+	private long parsedAt = 0;
+	private long firstByteAt = 0;
+	// Mode the request is handled in, for the access log.
+	private String requestMode = null;
+
+	// Persistent connection state.
+	private int requestsServed = 0;
+	private int keepAlive = 0;
+	private long lastActive = System.currentTimeMillis();
+
+	// Web Server mode response. The body is either a cached buffer or a file.
+	private final HeaderWriter headerWriter = new HeaderWriter();
+	private ByteBuffer headerBuffer = null;
+	private ByteBuffer bodyBuffer = null;
+	private FileChannel fileChannel = null;
+	private long filePosition = 0;
+	private long fileRemaining = 0;
+	// Multipart/byteranges response being sent and the next part to send.
+	private WebResponse multipart = null;
+	private int nextPart = 0;
+	// Status code and length of the response being sent, recorded in the
+	// metrics once it has been sent. The status is 0 for responses from the
+	// proxy cache, which are not recorded.
+	private int responseStatus = 0;
+	private long responseLength = -1;
+
+	// Proxy Server mode.
+	private SocketChannel upstream = null;
+	private SelectionKey upstreamKey = null;
+	private ByteBuffer forwardBuffer = null;
+	private boolean tunnel = false;
+	private Relay relay = null;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param loop		Event loop that owns the connection.
+	 * @param client	The non-blocking client channel.
+	 */
+	NioConnection(EventLoop loop, SocketChannel client){
+		this.loop = loop;
+		this.client = client;
+
+		ServerConfig config = loop.context().config;
+		this.requestBuffer = ByteBuffer.allocate(config.maxRequestHeaderSize);
+		this.parser = new RequestParser(config.maxRequestHeaderSize, config.maxRequestHeaders);
+		loop.context().metrics.connectionOpened();
+	}
+
+	/**
+	 * Handles a readiness event for either the client channel or the
+	 * channel to the requested host.
+	 *
+	 * @param key	Selection key that is ready.
+	 */
+	void handle(SelectionKey key){
+		try {
+			if (!key.isValid()){
+				close();
+			} else if (key == upstreamKey){
+				handleUpstream(key);
+			} else {
+				handleClient(key);
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "IOException occurred on a non-blocking connection.");
+			close();
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "General exception occurred on a non-blocking connection.");
+			close();
+		}
+	}
+
+	// Handles readiness of the client channel.
+	private void handleClient(SelectionKey key) throws IOException {
+		if (state == READ_REQUEST && key.isReadable()){
+			readRequest(key);
+		} else if (state == WRITE_RESPONSE && key.isWritable()){
+			writeResponse(key);
+		} else if (state == PROXY_RELAY){
+			relay(key);
+		}
+	}
+
+	// Handles readiness of the channel to the requested host.
+	private void handleUpstream(SelectionKey key) throws IOException {
+		if (state == PROXY_FORWARD){
+			if (key.isConnectable()){
+				try {
+					upstream.finishConnect();
+				} catch (IOException e){
+					UsefulHelpers.handleException(e, "IOException occurred when connecting in Proxy Server Mode.");
+					sendBadRequest();
+					return;
+				}
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()){
+				// Forward the client request.
+				upstream.write(forwardBuffer);
+				if (!forwardBuffer.hasRemaining()){
+					forwardBuffer = null;
+					startRelay(key);
+				}
+			}
+		} else if (state == PROXY_RELAY){
+			relay(key);
+		}
+	}
+
+	// Reads the client request, and processes it once it is complete.
+	private void readRequest(SelectionKey key) throws IOException {
+		int read = client.read(requestBuffer);
+		if (read == -1){
+			close();
+			return;
+		}
+		lastActive = System.currentTimeMillis();
+		if (requestStart == 0){
+			requestStart = System.nanoTime();
+		}
+		loop.context().metrics.bytesIn(read);
+
+		processRequest();
+	}
+
+	// Processes the buffered client request if the whole header has arrived.
+	// Only the bytes that arrived since the last call are parsed.
+	private void processRequest() throws IOException {
+		int parsed = parser.parse(requestBuffer.array(), requestBuffer.position());
+
+		if (parsed == RequestParser.INCOMPLETE){
+			// Wait for the rest of the request.
+			return;
+		} else if (parsed == RequestParser.TOO_LARGE){
+			UsefulHelpers.log("Error: Client request header is too large.");
+			sendError("431 Request Header Fields Too Large");
+			return;
+		} else if (parsed == RequestParser.BAD_REQUEST){
+			UsefulHelpers.log("Error: Client request is not properly formatted.");
+			sendBadRequest();
+			return;
+		}
+
+		parsedAt = System.nanoTime();
+		loop.context().metrics.requestParsed(requestStart, parsedAt);
+		requestEnd = parser.headerEnd();
+		requestsServed++;
+		keepAlive = Worker.checkKeepAlive(parser, requestsServed,
+				loop.context().config.maxKeepAliveRequests);
+		dispatchRequest();
+	}
+
+	// Waits for a host lookup that has not finished yet, rather than
+	// blocking the event loop. Returns false if the lookup has finished and
+	// the request can carry on, true if it is dispatched again once it has.
+	private boolean waitForLookup(CompletableFuture<?> lookup){
+		if (lookup == null || lookup.isDone()){
+			return false;
+		}
+		state = RESOLVE_HOST;
+		client.keyFor(loop.selector()).interestOps(0);
+		lookup.whenComplete((result, failure) -> loop.execute(this::resumeRequest));
+		return true;
+	}
+
+	// Carries on with a request once its host has been looked up.
+	private void resumeRequest(){
+		if (state != RESOLVE_HOST){
+			// The connection was closed while waiting.
+			return;
+		}
+		try {
+			dispatchRequest();
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "General exception occurred on a non-blocking connection.");
+			close();
+		}
+	}
+
+	// Handles the parsed request in Web or Proxy Server mode. The server
+	// mode depends on the host named in the request, and a proxied request
+	// or CONNECT tunnel needs the address of its host. Each of them is
+	// looked up before anything else is done, so the request can go back to
+	// waiting if one of them is not in the resolver cache, even if it was
+	// when an earlier one was checked.
+	private void dispatchRequest() throws IOException {
+		HostResolver resolver = loop.context().resolver;
+		if (parser.methodIs("CONNECT")){
+			InetSocketAddress target = Worker.connectAddress(parser);
+			CompletableFuture<InetAddress[]> address = target == null ? null
+					: resolver.lookup(target.getHostString());
+			if (waitForLookup(address)){
+				return;
+			}
+			requestMode = "tunnel";
+			loop.context().metrics.tunnelRequest();
+			if (target == null){
+				sendBadRequest();
+				return;
+			}
+			// Bytes the client sent after the CONNECT request go to the host.
+			startProxy(target, address, Arrays.copyOfRange(requestBuffer.array(), parser.headerEnd(),
+					requestBuffer.position()), true);
+			return;
+		}
+
+		// Check if server should run in Web Server or Proxy Server mode.
+		String host = Worker.requestHost(parser);
+		CompletableFuture<Boolean> verdict = host == null ? null : resolver.isLocalHost(host);
+		if (waitForLookup(verdict)){
+			return;
+		}
+		int mode = Worker.checkMode(verdict);
+		InetSocketAddress origin = null;
+		CompletableFuture<InetAddress[]> address = null;
+		if (mode == 0){
+			// The address is cached apart from the verdict, and may have
+			// been dropped since the verdict was.
+			origin = Worker.upstreamAddress(parser);
+			if (origin == null){
+				// The port number in the Host header field is not valid.
+				sendBadRequest();
+				return;
+			}
+			address = resolver.lookup(origin.getHostString());
+			if (waitForLookup(address)){
+				return;
+			}
+		}
+
+		if (mode == -1){
+			// Error occurred when trying to determine the host.
+			sendBadRequest();
+		} else if (mode == 1){
+			requestMode = "web";
+			loop.context().metrics.webRequest();
+			prepareWebResponse();
+		} else {
+			requestMode = "proxy";
+			loop.context().metrics.proxyRequest();
+			if (Worker.requestBodyLength(parser) == -1){
+				sendBadRequest();
+				return;
+			}
+			if (startCachedResponse()){
+				return;
+			}
+			startProxy(origin, address, forwardedRequest(), false);
+		}
+	}
+
+	// Builds the Web Server mode response and opens its body on a file
+	// thread, then carries on on the event loop once it is ready. Nothing
+	// else touches the connection in the meantime.
+	private void prepareWebResponse(){
+		state = OPEN_FILE;
+		client.keyFor(loop.selector()).interestOps(0);
+		loop.offload(() -> {
+			try {
+				WebResponse response = Worker.prepareWebResponse(loop.context(), headerWriter, parser,
+						keepAlive, null);
+				openBody(response);
+				loop.execute(() -> resumeWebResponse(response, null));
+			} catch (Exception e){
+				loop.execute(() -> resumeWebResponse(null, e));
+			}
+		});
+	}
+
+	// Carries on with a Web Server mode response once it has been built.
+	private void resumeWebResponse(WebResponse response, Exception failure){
+		if (state != OPEN_FILE){
+			// The connection was closed while waiting.
+			closeBody();
+			return;
+		}
+		if (failure != null){
+			UsefulHelpers.handleException(failure, "General exception occurred on a non-blocking connection.");
+			close();
+			return;
+		}
+		startWebResponse(response);
+	}
+
+	// Opens the body of a Web Server mode response. Compressed and small
+	// files are served from memory, other files from their channel.
+	private void openBody(WebResponse response) throws IOException {
+		long length = response.bodyLength();
+		if (response.partCount() > 0){
+			// The header goes out first, then the parts one at a time.
+			fileChannel = new FileInputStream(response.meta.file).getChannel();
+			multipart = response;
+			nextPart = 0;
+		} else if (length > 0){
+			bodyBuffer = response.encodedBody();
+			if (bodyBuffer == null){
+				bodyBuffer = loop.context().fileCache.get(response.meta);
+			}
+			if (bodyBuffer != null){
+				bodyBuffer.position((int) response.bodyStart());
+				bodyBuffer.limit((int) (response.bodyStart() + length));
+			} else {
+				fileChannel = new FileInputStream(response.meta.file).getChannel();
+				filePosition = response.bodyStart();
+				fileRemaining = length;
+			}
+		}
+	}
+
+	// Sends a response whose body, if any, is open, and waits for the
+	// client to be writable.
+	private void startWebResponse(WebResponse response){
+		headerBuffer = response.header;
+		keepAlive = response.keepAlive;
+		responseStatus = response.status();
+		responseLength = response.responseLength();
+
+		state = WRITE_RESPONSE;
+		client.keyFor(loop.selector()).interestOps(SelectionKey.OP_WRITE);
+	}
+
+	// Writes as much of the response header and file as the client will take.
+	private void writeResponse(SelectionKey key) throws IOException {
+		if (firstByteAt == 0 && responseStatus != 0){
+			firstByteAt = System.nanoTime();
+			loop.context().metrics.responseStarted(requestStart, firstByteAt);
+		}
+		if (bodyBuffer != null){
+			// Send the header and the cached body with one gathering write.
+			client.write(new ByteBuffer[]{headerBuffer, bodyBuffer});
+			if (bodyBuffer.hasRemaining()){
+				return;
+			}
+		} else if (headerBuffer.hasRemaining()){
+			client.write(headerBuffer);
+			if (headerBuffer.hasRemaining()){
+				return;
+			}
+		}
+
+		while (fileRemaining > 0){
+			long sent = fileChannel.transferTo(filePosition, fileRemaining, client);
+			if (sent == 0){
+				// Client socket buffer is full, wait until it is writable again.
+				return;
+			}
+			filePosition += sent;
+			fileRemaining -= sent;
+		}
+
+		if (startNextPart()){
+			writeResponse(key);
+			return;
+		}
+
+		// The whole response has been sent.
+		if (responseStatus != 0){
+			loop.context().metrics.responseSent(responseStatus, responseLength, requestStart, System.nanoTime());
+		}
+		logRequest();
+		if (keepAlive == 1){
+			finishRequest();
+		} else {
+			close();
+		}
+	}
+
+	// Moves on to the next part of a multipart body, or the closing boundary
+	// after the last part. Returns false once there is nothing left to send.
+	private boolean startNextPart(){
+		if (multipart == null || nextPart > multipart.partCount()){
+			return false;
+		}
+		if (nextPart == multipart.partCount()){
+			headerBuffer = ByteBuffer.wrap(multipart.closingBoundary());
+		} else {
+			ByteRange range = multipart.ranges[nextPart];
+			headerBuffer = ByteBuffer.wrap(multipart.partHeader(nextPart));
+			filePosition = range.first;
+			fileRemaining = range.length();
+		}
+		nextPart++;
+		return true;
+	}
+
+	// Gets a persistent connection ready for the next request.
+	private void finishRequest() throws IOException {
+		closeBody();
+		headerBuffer = null;
+
+		// Drop the handled request, keeping the start of the next one.
+		requestBuffer.flip();
+		requestBuffer.position(requestEnd);
+		requestBuffer.compact();
+		requestEnd = 0;
+		parser.reset();
+
+		lastActive = System.currentTimeMillis();
+		state = READ_REQUEST;
+		client.keyFor(loop.selector()).interestOps(SelectionKey.OP_READ);
+
+		// The client may have already sent the next request.
+		requestStart = requestBuffer.position() > 0 ? System.nanoTime() : 0;
+		parsedAt = 0;
+		firstByteAt = 0;
+		requestMode = null;
+		responseStatus = 0;
+		responseLength = -1;
+		if (requestBuffer.position() > 0){
+			processRequest();
+		}
+	}
+
+	// Writes the current request to the access log.
+	private void logRequest(){
+		Socket socket = client.socket();
+		loop.context().accessLog.access(socket.getInetAddress(), parsedAt == 0 ? null : parser, requestMode,
+				responseStatus, responseLength, requestStart, parsedAt, firstByteAt, System.nanoTime());
+		requestStart = 0;
+	}
+
+	/**
+	 * Closes a persistent connection that has been waiting for its next
+	 * request for longer than the keep alive timeout, or a relay that has
+	 * been idle for longer than the relay timeout.
+	 *
+	 * @param now		Current time in milliseconds.
+	 * @param timeout	Keep alive timeout in milliseconds.
+	 */
+	void closeIfIdle(long now, int timeout){
+		if (state == READ_REQUEST && requestsServed > 0 && now - lastActive > timeout){
+			close();
+		} else if (state == PROXY_RELAY && relay.idleTime(now) > loop.context().config.relayIdleTimeout){
+			// Nothing has gone either way through the relay or tunnel for too long.
+			close();
+		}
+	}
+
+	// Sends a fresh response from the proxy cache if there is one.
+	private boolean startCachedResponse() throws IOException {
+		ProxyCache proxyCache = loop.context().proxyCache;
+		if (proxyCache == null){
+			return false;
+		}
+		if (!ProxyCache.cacheableRequest(parser)){
+			// Other requests, such as POST, may change what is stored for the URL.
+			proxyCache.invalidateFor(parser);
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		ProxyCache.Entry cached = proxyCache.lookup(parser);
+		if (cached == null || !proxyCache.isFresh(cached, parser, now)){
+			return false;
+		}
+		FileInputStream body = proxyCache.openBody(cached);
+		if (body == null){
+			return false;
+		}
+		proxyCache.hit();
+
+		// The connection is closed after the response, as for relayed responses.
+		keepAlive = 0;
+		headerBuffer = proxyCache.responseHeader(headerWriter, cached, now);
+		fileChannel = body.getChannel();
+		filePosition = 0;
+		fileRemaining = cached.bodyLength;
+
+		state = WRITE_RESPONSE;
+		client.keyFor(loop.selector()).interestOps(SelectionKey.OP_WRITE);
+		return true;
+	}
+
+	// Builds the request forwarded to the host, with the part of the body
+	// that has already been read. The rest of the body is relayed. The host
+	// is asked to close the connection after the response, since the event
+	// loop relays responses until the host closes the connection.
+	private byte[] forwardedRequest(){
+		byte[] header = ProxyCache.upstreamRequest(parser, null, false);
+		int bodyStart = parser.headerEnd();
+		int bodyBuffered = requestBuffer.position() - bodyStart;
+		byte[] request = Arrays.copyOf(header, header.length + bodyBuffered);
+		System.arraycopy(requestBuffer.array(), bodyStart, request, header.length, bodyBuffered);
+		return request;
+	}
+
+	// Connects to the requested host and waits for the connection to complete.
+	// For a tunnel, the client is told the tunnel is open once the bytes it
+	// sent early have been forwarded. The lookup of the host has finished.
+	private void startProxy(InetSocketAddress origin, CompletableFuture<InetAddress[]> lookup, byte[] request,
+			boolean tunnel) throws IOException {
+		forwardBuffer = ByteBuffer.wrap(request);
+		this.tunnel = tunnel;
+		state = PROXY_FORWARD;
+		client.keyFor(loop.selector()).interestOps(0);
+
+		try {
+			InetAddress resolved = HostResolver.await(lookup)[0];
+			InetSocketAddress address = new InetSocketAddress(resolved, origin.getPort());
+			upstream = SocketChannel.open();
+			upstream.configureBlocking(false);
+
+			boolean connected = upstream.connect(address);
+			upstreamKey = upstream.register(loop.selector(),
+					connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "Exception occurred when connecting in Proxy Server Mode.");
+			sendBadRequest();
+		}
+	}
+
+	// Starts relaying in both directions once the request has been forwarded.
+	private void startRelay(SelectionKey key){
+		relay = new Relay(client.keyFor(loop.selector()), key, tunnel);
+		if (tunnel){
+			relay.sendToClient(Worker.CONNECTION_ESTABLISHED);
+		}
+		relay.updateInterest();
+		state = PROXY_RELAY;
+	}
+
+	// Relays between the client and the host, closing both once the relay is finished.
+	private void relay(SelectionKey key) throws IOException {
+		if (relay.handle(key)){
+			close();
+		}
+	}
+
+	// Sends a 400 Bad Request response and closes the connection afterwards.
+	private void sendBadRequest() throws IOException {
+		sendError("400 Bad Request");
+	}
+
+	// Sends an error response and closes the connection afterwards.
+	private void sendError(String statusCode) throws IOException {
+		closeUpstream();
+		startWebResponse(new WebResponse(Worker.responseHeader(headerWriter, 0, statusCode,
+				null, -1, -1, 0)));
+	}
+
+	// Closes the file or drops the buffer the response body was sent from.
+	private void closeBody(){
+		try {
+			if (fileChannel != null){
+				fileChannel.close();
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close streams or socket.");
+		}
+		fileChannel = null;
+		bodyBuffer = null;
+		multipart = null;
+	}
+
+	// Closes the connection to the requested host.
+	private void closeUpstream(){
+		try {
+			if (upstream != null){
+				upstream.close();
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close socket in Proxy Server Mode.");
+		}
+		upstream = null;
+		upstreamKey = null;
+	}
+
+	/**
+	 * Closes the connection and releases everything it holds.
+	 */
+	void close(){
+		if (state == CLOSED){
+			return;
+		}
+		// A response being built on a file thread is closed once it is ready.
+		boolean building = state == OPEN_FILE;
+		state = CLOSED;
+		loop.context().metrics.connectionClosed();
+		// Log the request the connection ended on, if it has not been logged.
+		if (requestStart != 0){
+			logRequest();
+		}
+
+		closeUpstream();
+		if (relay != null){
+			relay.close();
+			relay = null;
+		}
+		if (!building){
+			closeBody();
+		}
+		try {
+			client.close();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close streams or socket.");
+		}
+	}
+}
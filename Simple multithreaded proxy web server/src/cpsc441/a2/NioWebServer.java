@@ -0,0 +1,230 @@
+/**
+ * NioWebServer Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * An alternative to WebServer that does not use a thread per connection.
+ * The main thread accepts connections on a non-blocking ServerSocketChannel
+ * and hands them out round robin to a small number of event loop threads
+ * (one per core by default). Each event loop multiplexes its connections
+ * with a Selector and runs the Web and Proxy Server mode logic as
+ * non-blocking state machines (see NioConnection). Looking up, reading and
+ * compressing requested files may block on the disk, so the event loops
+ * hand that work to a few file threads shared by all of them.
+ *
+ * With more than one acceptor, several listening sockets are bound to the
+ * port with SO_REUSEPORT (see Listeners). Each one has its own accepting
+ * thread and selector, and all of them hand connections to the same event
+ * loops.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class NioWebServer extends BasicWebServer {
+
+	// Backlog of the listening socket.
+	private static final int ACCEPT_BACKLOG = 1024;
+	// How long the event loops are given to finish on shutdown.
+	private static final int TERM_WAIT_TIME = 5000; // 5 seconds
+	// Number of threads that build Web Server mode responses.
+	private static final int FILE_THREADS = 4;
+	// How long accepting pauses after it failed, such as when the process
+	// is out of file descriptors.
+	private static final int ACCEPT_BACKOFF = 100; // 0.1 seconds
+
+	private volatile boolean shutdown = false;
+	private final ServerConfig config;
+	private final ServerContext context;
+	// Event loop the next accepted connection is handed to.
+	private final AtomicInteger next = new AtomicInteger();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param config	The server configuration.
+	 */
+	public NioWebServer(ServerConfig config) {
+		super(config.port);
+		this.config = config;
+		this.context = new ServerContext(config);
+	}
+
+	// Start the server
+	public void run() {
+
+		ServerSocketChannel[] serverChannels = null;
+		Selector[] acceptSelectors = null;
+
+		try {
+			// Open the server socket channels in non-blocking mode, each with
+			// a selector of its own.
+			serverChannels = Listeners.open(serverPort, config.acceptors, ACCEPT_BACKLOG);
+			acceptSelectors = new Selector[serverChannels.length];
+			for (int i = 0; i < serverChannels.length; i++){
+				serverChannels[i].configureBlocking(false);
+				acceptSelectors[i] = Selector.open();
+				serverChannels[i].register(acceptSelectors[i], SelectionKey.OP_ACCEPT);
+			}
+		} catch (IOException ioe) {
+			UsefulHelpers.handleException(ioe, "IO Exception when trying to instantiate ServerSocketChannel.");
+			closeQuietly(serverChannels, acceptSelectors);
+			return;
+		} catch (IllegalArgumentException e){
+			UsefulHelpers.handleException(e, "Port number is outside allowed range.");
+			return;
+		}
+
+		context.start();
+
+		AtomicInteger fileThreads = new AtomicInteger();
+		ExecutorService fileTasks = Executors.newFixedThreadPool(FILE_THREADS, task -> {
+			Thread thread = new Thread(task, "file-task-" + fileThreads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// Start the event loops that handle the accepted connections.
+		EventLoop[] loops = new EventLoop[config.eventLoops];
+		for (int i = 0; i < loops.length; i++){
+			try {
+				loops[i] = new EventLoop(i, context, fileTasks);
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "IO Exception when trying to open an event loop selector.");
+				shutdownLoops(loops);
+				fileTasks.shutdownNow();
+				closeQuietly(serverChannels, acceptSelectors);
+				context.close();
+				return;
+			}
+			loops[i].start();
+		}
+
+		// Every listening socket but the first gets a thread of its own, this
+		// thread accepts on the first one.
+		Thread[] acceptors = new Thread[serverChannels.length - 1];
+		for (int i = 0; i < acceptors.length; i++){
+			ServerSocketChannel serverChannel = serverChannels[i + 1];
+			Selector acceptSelector = acceptSelectors[i + 1];
+			acceptors[i] = new Thread(() -> accept(serverChannel, acceptSelector, loops), "acceptor-" + (i + 1));
+			acceptors[i].start();
+		}
+		accept(serverChannels[0], acceptSelectors[0], loops);
+
+		// --------------------------------------------------------- //
+
+		// Stop accepting connections and stop the event loops.
+		try {
+			for (Thread acceptor : acceptors){
+				acceptor.join();
+			}
+		} catch (InterruptedException e){
+			// Ok, ignore
+		}
+		closeQuietly(serverChannels, acceptSelectors);
+		shutdownLoops(loops);
+		fileTasks.shutdownNow();
+		// Close first, so the access log has been written out before the statistics.
+		context.close();
+		context.printStatistics();
+
+		// --------------------------------------------------------- //
+	}
+
+	// shutdown the server
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	/**
+	 * Accepts connections on a listening socket until the server is shut
+	 * down, handing them out round robin to the event loops.
+	 *
+	 * @param serverChannel		The non-blocking listening socket.
+	 * @param acceptSelector	Selector the socket is registered with.
+	 * @param loops				The event loops.
+	 */
+	private void accept(ServerSocketChannel serverChannel, Selector acceptSelector, EventLoop[] loops){
+		while (!shutdown){
+			try {
+				// Wake up every second to check the shutdown status flag.
+				acceptSelector.select(1000);
+
+				Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+				while (keys.hasNext()){
+					keys.next();
+					keys.remove();
+
+					// Accept every pending connection.
+					SocketChannel channel;
+					while ((channel = serverChannel.accept()) != null){
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+
+						// Hand the connection to the next event loop.
+						loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel);
+					}
+				}
+			} catch (IOException e){
+				// The pending connection stays in the backlog, so retrying at
+				// once would fail the same way until a descriptor is freed.
+				UsefulHelpers.log("Error occurred while accepting a connection: " + e.getMessage());
+				try {
+					Thread.sleep(ACCEPT_BACKOFF);
+				} catch (InterruptedException ie){
+					// Ok, ignore
+				}
+			} catch (Exception e){
+				UsefulHelpers.log("Error occurred while listening for "
+						+ "a connection to be made to the server socket channel.");
+			}
+		}
+	}
+
+	// Signals the event loops to shutdown and waits for them to finish.
+	private void shutdownLoops(EventLoop[] loops){
+		for (EventLoop loop : loops){
+			if (loop != null){
+				loop.shutdown();
+			}
+		}
+		try {
+			for (EventLoop loop : loops){
+				if (loop != null){
+					loop.join(TERM_WAIT_TIME);
+				}
+			}
+		} catch (InterruptedException e){
+			// Ok, ignore
+		}
+	}
+
+	// Closes the listening channels and their selectors.
+	private void closeQuietly(ServerSocketChannel[] serverChannels, Selector[] selectors){
+		try {
+			if (selectors != null){
+				for (Selector selector : selectors){
+					if (selector != null){
+						selector.close();
+					}
+				}
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close the server socket channel.");
+		}
+		if (serverChannels != null){
+			Listeners.closeAll(serverChannels);
+		}
+	}
+
+}
@@ -0,0 +1,1168 @@
+/**
+ * ProxyCache Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * HTTP cache for Proxy Server mode. Responses to GET requests are stored on
+ * disk, one body file and one metadata file per response, and an index of
+ * the stored responses is kept in memory. The index is rebuilt from the
+ * metadata files when the server starts, so the cache survives restarts.
+ *
+ * Responses are stored and reused following the Cache-Control, Expires,
+ * Age and Date header fields, with a heuristic lifetime for responses that
+ * only have a Last-Modified date. Responses with a Vary header field are
+ * stored once per combination of the request header fields they vary on.
+ * Stale responses with an ETag or Last-Modified validator are revalidated
+ * with a conditional request instead of being fetched again. When the
+ * cache is over its size limit the least recently used responses are
+ * evicted.
+ *
+ * Concurrent requests for the same URL are coalesced into one request to
+ * the origin server (a Flight). The first request leads the flight, and the
+ * others follow it: they are sent the stored response as it is written to
+ * disk, or the revalidated stored response. If the response can not be
+ * stored, or varies on request header fields that differ, the followers
+ * send their own requests.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+class ProxyCache {
+
+	// Largest response header the proxy reads before deciding what to do with a response.
+	static final int MAX_HEADER_SIZE = 64 * 1024;
+	// Longest heuristic lifetime given to responses with only a Last-Modified date.
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L; // 1 day
+
+	// File name suffixes of the store.
+	private static final String META = ".meta";
+	private static final String BODY = ".body";
+	private static final String TEMP = ".tmp";
+	// Lock file held by the server using the directory.
+	private static final String LOCK = "lock";
+
+	// Header fields that only apply to one connection and are never forwarded or stored.
+	private static final String[] HOP_BY_HOP = {"Connection", "Keep-Alive", "Proxy-Connection",
+			"Proxy-Authorization", "TE", "Trailer", "Upgrade"};
+
+	// Status codes of responses that may be stored.
+	private static final int[] STORABLE_STATUS = {200, 203, 300, 301, 404, 410};
+
+	/**
+	 * A response stored in the cache.
+	 */
+	static class Entry {
+		// Name of the metadata file, without suffix.
+		final String key;
+		// Name of the body file.
+		final String body;
+		// URL of the request.
+		final String url;
+		// Request header fields the response varies on, in lower case.
+		final String[] vary;
+		// Stored response header.
+		final ResponseHeader header;
+		// Number of bytes in the stored body.
+		final long bodyLength;
+		// When the request was sent and the response received, in milliseconds.
+		final long requestTime;
+		final long responseTime;
+
+		Entry(String key, String body, String url, String[] vary, ResponseHeader header, long bodyLength,
+				long requestTime, long responseTime){
+			this.key = key;
+			this.body = body;
+			this.url = url;
+			this.vary = vary;
+			this.header = header;
+			this.bodyLength = bodyLength;
+			this.requestTime = requestTime;
+			this.responseTime = responseTime;
+		}
+
+		// Number of bytes counted against the cache size.
+		long size(){
+			return bodyLength + header.length;
+		}
+	}
+
+	// Header fields a URL varies on, and how many entries are stored for it.
+	private static class Variants {
+		final String[] vary;
+		int count = 0;
+
+		Variants(String[] vary){
+			this.vary = vary;
+		}
+	}
+
+	private final File directory;
+	private final long maxSize;
+	// Largest single response stored.
+	private final long maxEntrySize;
+
+	// Entries in least recently used order, guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// Variants stored for each URL, guarded by this.
+	private final HashMap<String, Variants> variants = new HashMap<String, Variants>();
+	// Running flights keyed by URL, guarded by this.
+	private final HashMap<String, Flight> flights = new HashMap<String, Flight>();
+	private long size = 0;
+	// Open lock file of the directory, null until load() has locked it.
+	private FileChannel lock = null;
+
+	// Counters.
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder revalidations = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stores = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory	Directory holding the stored responses.
+	 * @param maxSize	Maximum number of bytes stored.
+	 */
+	ProxyCache(File directory, long maxSize){
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxEntrySize = Math.max(1, maxSize / 8);
+	}
+
+	/**
+	 * Locks the cache directory and rebuilds the index from the metadata
+	 * files in it. Unfinished files left behind by a previous run are
+	 * deleted. The directory is created accessible to its owner only.
+	 *
+	 * @return	False if the cache can not be used: the directory could not
+	 *			be locked, is used by another server, or may be written by
+	 *			other users.
+	 */
+	boolean load(){
+		if (!lockDirectory()){
+			return false;
+		}
+		File[] files = directory.listFiles();
+		if (files == null){
+			return true;
+		}
+
+		// Load the entries from least to most recently used.
+		ArrayList<File> metaFiles = new ArrayList<File>();
+		HashSet<String> bodies = new HashSet<String>();
+		for (File file : files){
+			String name = file.getName();
+			if (name.endsWith(TEMP)){
+				file.delete();
+			} else if (name.endsWith(META)){
+				metaFiles.add(file);
+			} else if (name.endsWith(BODY)){
+				bodies.add(name);
+			}
+		}
+		metaFiles.sort(Comparator.comparingLong(File::lastModified));
+
+		synchronized (this){
+			for (File metaFile : metaFiles){
+				String key = metaFile.getName().substring(0, metaFile.getName().length() - META.length());
+				Entry entry = readMeta(key, metaFile);
+				if (entry == null || !bodies.remove(entry.body) || bodyFile(entry).length() != entry.bodyLength){
+					metaFile.delete();
+					continue;
+				}
+				add(entry);
+			}
+		}
+
+		// Bodies without metadata were never finished or have been replaced.
+		for (String body : bodies){
+			new File(directory, body).delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the cache directory if needed and takes its lock, which is
+	 * held until close().
+	 *
+	 * @return	True if the directory is locked by this cache.
+	 */
+	private boolean lockDirectory(){
+		Path path = directory.toPath();
+		try {
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")){
+				Files.createDirectories(path, PosixFilePermissions.asFileAttribute(
+						PosixFilePermissions.fromString("rwx------")));
+				// Files planted by another user would be served as cached responses.
+				Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+				String owner = Files.getOwner(path).getName();
+				if (!owner.equals(System.getProperty("user.name"))
+						|| permissions.contains(PosixFilePermission.GROUP_WRITE)
+						|| permissions.contains(PosixFilePermission.OTHERS_WRITE)){
+					UsefulHelpers.log("Warning: Proxy cache directory " + directory + " belongs to "
+							+ owner + " or may be written by other users, the proxy cache is disabled.");
+					return false;
+				}
+			} else {
+				Files.createDirectories(path);
+			}
+
+			FileChannel channel = FileChannel.open(path.resolve(LOCK), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			FileLock held;
+			try {
+				held = channel.tryLock();
+			} catch (OverlappingFileLockException e){
+				// Locked by another cache in this process.
+				held = null;
+			}
+			if (held == null){
+				channel.close();
+				UsefulHelpers.log("Warning: Proxy cache directory " + directory
+						+ " is used by another server, the proxy cache is disabled.");
+				return false;
+			}
+			lock = channel;
+			return true;
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not lock the proxy cache directory, the proxy cache is disabled.");
+			return false;
+		}
+	}
+
+	/**
+	 * Releases the lock of the cache directory.
+	 */
+	void close(){
+		if (lock != null){
+			try {
+				lock.close();
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not release the proxy cache directory lock.");
+			}
+			lock = null;
+		}
+	}
+
+	/**
+	 * Checks if the response to the request may be served from or stored
+	 * in the cache.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			True if the cache can be used for the request.
+	 */
+	static boolean cacheableRequest(RequestParser request){
+		return request.methodIs("GET") && !request.hasHeader("Range") && !request.hasHeader("Authorization")
+				&& !request.hasHeader("Content-Length") && !request.hasHeader("Transfer-Encoding")
+				&& !ResponseHeader.hasDirective(request.header("Cache-Control"), "no-store")
+				&& Worker.requestHost(request) != null;
+	}
+
+	/**
+	 * @param request	The parsed client request.
+	 * @return			The absolute URL of the request, used as the cache key.
+	 */
+	static String requestUrl(RequestParser request){
+		String target = request.target();
+		if (target.startsWith("http://")){
+			return target;
+		}
+		return "http://" + Worker.requestHost(request) + target;
+	}
+
+	/**
+	 * Finds the stored response for the request, taking the Vary header
+	 * field of the stored responses into account.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			The stored response, or null if there is none.
+	 */
+	Entry lookup(RequestParser request){
+		String url = requestUrl(request);
+		String[] vary;
+		synchronized (this){
+			Variants stored = variants.get(url);
+			vary = stored == null ? null : stored.vary;
+		}
+
+		Entry entry = null;
+		if (vary != null){
+			String key = key(url, vary, request);
+			synchronized (this){
+				entry = entries.get(key);
+			}
+		}
+		if (entry == null){
+			misses.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Checks if a stored response can be sent without asking the origin
+	 * server, following RFC 7234.
+	 *
+	 * @param entry		The stored response.
+	 * @param request	The parsed client request.
+	 * @param now		Current time in milliseconds.
+	 * @return			True if the stored response is fresh enough for the request.
+	 */
+	boolean isFresh(Entry entry, RequestParser request, long now){
+		String requestCacheControl = request.header("Cache-Control");
+		if (ResponseHeader.hasDirective(requestCacheControl, "no-cache")
+				|| (requestCacheControl == null && request.headerHasToken("Pragma", "no-cache"))){
+			return false;
+		}
+		if (ResponseHeader.hasDirective(entry.header.getAll("Cache-Control"), "no-cache")){
+			return false;
+		}
+
+		long age = currentAge(entry, now);
+		long maxAge = ResponseHeader.directiveSeconds(requestCacheControl, "max-age");
+		if (maxAge > -1 && age > maxAge * 1000){
+			return false;
+		}
+		return age < freshnessLifetime(entry.header, entry.responseTime);
+	}
+
+	/**
+	 * Counts a fresh stored response sent to the client without asking
+	 * the origin server.
+	 */
+	void hit(){
+		hits.increment();
+	}
+
+	/**
+	 * Builds the header sent to the client with a stored response. An Age
+	 * header field is added and the connection is closed after the response.
+	 *
+	 * @param writer	Header writer of the connection.
+	 * @param entry		The stored response.
+	 * @param now		Current time in milliseconds.
+	 * @return			The response header, ready to be sent.
+	 */
+	ByteBuffer responseHeader(HeaderWriter writer, Entry entry, long now){
+		writer.clear();
+		writer.write(entry.header.statusLine).write("\r\n");
+		for (String[] field : entry.header.fields){
+			if (!isHopByHop(field[0]) && !field[0].equalsIgnoreCase("Age")){
+				writer.write(field[0]).write(": ").write(field[1]).write("\r\n");
+			}
+		}
+		writer.write("Age: ").write(currentAge(entry, now) / 1000).write("\r\n");
+		writer.write("Connection: close\r\n\r\n");
+		return writer.finish();
+	}
+
+	/**
+	 * Builds the header sent to the client with a relayed response. The
+	 * hop-by-hop header fields of the host are replaced by Connection:
+	 * close, since the client connection is closed after the response.
+	 *
+	 * @param header	Header of the response received from the host.
+	 * @return			The response header, ready to be sent.
+	 */
+	static byte[] relayedHeader(ResponseHeader header){
+		StringBuilder text = new StringBuilder(header.length + 19);
+		text.append(header.statusLine).append("\r\n");
+		for (String[] field : header.fields){
+			if (!isHopByHop(field[0])){
+				text.append(field[0]).append(": ").append(field[1]).append("\r\n");
+			}
+		}
+		text.append("Connection: close\r\n\r\n");
+		return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Opens the body of a stored response.
+	 *
+	 * @param entry	The stored response.
+	 * @return		The open body file, or null if it has been evicted.
+	 */
+	FileInputStream openBody(Entry entry){
+		try {
+			return new FileInputStream(bodyFile(entry));
+		} catch (FileNotFoundException e){
+			remove(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Builds the header of the request forwarded to the origin server.
+	 * Hop-by-hop header fields are dropped and replaced by the proxy's own
+	 * Connection header field. When a stale response is stored, the request
+	 * is made conditional on its validators.
+	 *
+	 * @param request	The parsed client request.
+	 * @param stale		The stored response to revalidate, or null.
+	 * @param keepAlive	True to ask the origin server to keep the connection
+	 *					open, false to have it close the connection after the
+	 *					response.
+	 * @return			The request header to forward.
+	 */
+	static byte[] upstreamRequest(RequestParser request, Entry stale, boolean keepAlive){
+		String connection = request.header("Connection");
+		StringBuilder upstream = new StringBuilder();
+		upstream.append(request.method()).append(' ').append(request.target()).append(" HTTP/1.1\r\n");
+
+		for (int i = 0; i < request.headerCount(); i++){
+			String name = request.headerName(i);
+			if (isHopByHop(name) || (connection != null && ResponseHeader.hasDirective(connection, name))){
+				continue;
+			}
+			// The client's own conditions would make a 304 ambiguous.
+			if (stale != null && (name.equalsIgnoreCase("If-None-Match") || name.equalsIgnoreCase("If-Modified-Since"))){
+				continue;
+			}
+			upstream.append(name).append(": ").append(request.headerValue(i)).append("\r\n");
+		}
+
+		if (stale != null){
+			String etag = stale.header.get("ETag");
+			String lastModified = stale.header.get("Last-Modified");
+			if (etag != null){
+				upstream.append("If-None-Match: ").append(etag).append("\r\n");
+			}
+			if (lastModified != null){
+				upstream.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+			}
+		}
+		upstream.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+
+		return upstream.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Updates a stored response after the origin server answered its
+	 * revalidation with 304 Not Modified.
+	 *
+	 * @param stale			The stored response.
+	 * @param notModified	Header of the 304 Not Modified response.
+	 * @param requestTime	When the conditional request was sent.
+	 * @param responseTime	When the 304 Not Modified response was received.
+	 * @return				The updated stored response.
+	 */
+	Entry revalidated(Entry stale, ResponseHeader notModified, long requestTime, long responseTime){
+		revalidations.increment();
+		Entry entry = new Entry(stale.key, stale.body, stale.url, stale.vary, stale.header.updatedWith(notModified),
+				stale.bodyLength, requestTime, responseTime);
+		try {
+			File meta = writeMeta(entry);
+			synchronized (this){
+				if (entries.get(stale.key) == stale){
+					commitMeta(entry, meta);
+					entries.remove(stale.key);
+					forget(stale);
+					add(entry);
+				} else {
+					meta.delete();
+				}
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not update a response stored in the proxy cache.");
+			remove(stale);
+		}
+		return entry;
+	}
+
+	/**
+	 * Starts storing a response if it may be stored.
+	 *
+	 * @param request		The parsed client request.
+	 * @param header		Header of the response.
+	 * @param requestTime	When the request was sent.
+	 * @param responseTime	When the response header was received.
+	 * @return				A store the response body is written to, or null
+	 *						if the response can not be stored.
+	 */
+	Store store(RequestParser request, ResponseHeader header, long requestTime, long responseTime){
+		if (!storable(header, responseTime)){
+			return null;
+		}
+		long contentLength = contentLength(header);
+		if (contentLength > maxEntrySize){
+			return null;
+		}
+
+		// Work out the request header fields the response varies on.
+		ArrayList<String> varyNames = new ArrayList<String>();
+		for (String name : header.getAll("Vary").split(",")){
+			name = name.trim().toLowerCase();
+			if (name.equals("*")){
+				return null;
+			} else if (!name.isEmpty()){
+				varyNames.add(name);
+			}
+		}
+		String[] vary = varyNames.toArray(new String[0]);
+
+		String url = requestUrl(request);
+		Entry entry = new Entry(key(url, vary, request), null, url, vary, header, 0, requestTime, responseTime);
+		try {
+			directory.mkdirs();
+			return new Store(entry, contentLength, File.createTempFile(entry.key, TEMP, directory));
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not create a file in the proxy cache.");
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a flight for the URL of a request, unless one is already
+	 * running. The caller must end the flight with Flight.revalidated(),
+	 * Store.share() or Flight.fail() as soon as it has the response header.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			The new flight, or null if another request is already
+	 *					fetching the URL.
+	 */
+	synchronized Flight lead(RequestParser request){
+		String url = requestUrl(request);
+		if (flights.containsKey(url)){
+			return null;
+		}
+		Flight flight = new Flight(url);
+		flights.put(url, flight);
+		return flight;
+	}
+
+	/**
+	 * @param request	The parsed client request.
+	 * @return			The running flight for the URL of the request, or null.
+	 */
+	synchronized Flight follow(RequestParser request){
+		return flights.get(requestUrl(request));
+	}
+
+	/**
+	 * Removes the stored responses for the URL of a request that may change
+	 * it, such as POST or DELETE. GET and HEAD requests are left alone.
+	 *
+	 * @param request	The parsed client request.
+	 */
+	void invalidateFor(RequestParser request){
+		if (!request.methodIs("GET") && !request.methodIs("HEAD") && Worker.requestHost(request) != null){
+			invalidate(requestUrl(request));
+		}
+	}
+
+	/**
+	 * Removes every stored response for the URL.
+	 *
+	 * @param url	URL of the request.
+	 */
+	synchronized void invalidate(String url){
+		if (!variants.containsKey(url)){
+			return;
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()){
+			Entry entry = it.next();
+			if (entry.url.equals(url)){
+				it.remove();
+				forget(entry);
+				delete(entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes a stored response.
+	 *
+	 * @param entry	The stored response.
+	 */
+	synchronized void remove(Entry entry){
+		if (entries.get(entry.key) == entry){
+			entries.remove(entry.key);
+			forget(entry);
+			delete(entry);
+		}
+	}
+
+	/**
+	 * Writes the body of a response to a temporary file, and adds it to the
+	 * cache once the whole body has been received.
+	 */
+	class Store {
+		private final Entry entry;
+		private final long contentLength;
+		private final boolean chunked;
+		private final File tempFile;
+		private OutputStream out;
+		private long written = 0;
+		// Flight whose followers are sent the body as it is written, or null.
+		private Flight flight = null;
+		// Last bytes written, to find the end of a chunked body.
+		private final byte[] tail = new byte[5];
+
+		private Store(Entry entry, long contentLength, File tempFile) throws IOException {
+			this.entry = entry;
+			this.contentLength = contentLength;
+			this.chunked = entry.header.getAll("Transfer-Encoding").toLowerCase().contains("chunked");
+			this.tempFile = tempFile;
+			this.out = new BufferedOutputStream(new FileOutputStream(tempFile));
+		}
+
+		/**
+		 * Sends the body to the followers of a flight as it is written.
+		 *
+		 * @param flight	The flight led by the request being stored.
+		 */
+		void share(Flight flight){
+			this.flight = flight;
+			flight.streaming(entry, tempFile);
+		}
+
+		/**
+		 * Writes the next part of the body. The response stops being
+		 * stored if it gets too large or the file can not be written.
+		 *
+		 * @param data		Body bytes.
+		 * @param offset	Index of the first byte in data.
+		 * @param length	Number of bytes.
+		 */
+		void write(byte[] data, int offset, int length){
+			if (out == null || length <= 0){
+				return;
+			}
+			if (written + length > maxEntrySize){
+				abort();
+				return;
+			}
+			try {
+				out.write(data, offset, length);
+				if (flight != null){
+					// Followers may only read what has reached the file.
+					out.flush();
+				}
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not write to the proxy cache.");
+				abort();
+				return;
+			}
+			written += length;
+			if (flight != null){
+				flight.progress(written);
+			}
+
+			// Keep the last bytes written.
+			int keep = Math.min(length, tail.length);
+			System.arraycopy(tail, keep, tail, 0, tail.length - keep);
+			System.arraycopy(data, offset + length - keep, tail, tail.length - keep, keep);
+		}
+
+		/**
+		 * Adds the response to the cache if the whole body was received,
+		 * otherwise throws it away.
+		 */
+		void finish(){
+			if (out == null){
+				return;
+			}
+			boolean complete;
+			if (chunked){
+				complete = written >= tail.length && new String(tail, StandardCharsets.ISO_8859_1).equals("0\r\n\r\n");
+			} else if (contentLength > -1){
+				complete = written == contentLength;
+			} else {
+				complete = true;
+			}
+
+			try {
+				out.close();
+				out = null;
+				if (!complete){
+					tempFile.delete();
+					endFlight(null);
+					return;
+				}
+
+				// Each stored body gets a file of its own, so a response that
+				// replaces another never touches a body that is being sent.
+				String tempName = tempFile.getName();
+				Entry stored = new Entry(entry.key, tempName.substring(0, tempName.length() - TEMP.length()) + BODY,
+						entry.url, entry.vary, entry.header, written, entry.requestTime, entry.responseTime);
+				Files.move(tempFile.toPath(), bodyFile(stored).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				File meta = writeMeta(stored);
+
+				synchronized (ProxyCache.this){
+					commitMeta(stored, meta);
+					Entry old = entries.remove(stored.key);
+					if (old != null){
+						forget(old);
+						new File(directory, old.body).delete();
+					}
+					add(stored);
+				}
+				stores.increment();
+				endFlight(bodyFile(stored));
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not add a response to the proxy cache.");
+				tempFile.delete();
+				endFlight(null);
+			}
+		}
+
+		/**
+		 * Stops storing the response and throws away what was written.
+		 */
+		void abort(){
+			if (out == null){
+				return;
+			}
+			try {
+				out.close();
+			} catch (IOException e){
+				// Ok, ignore
+			}
+			out = null;
+			tempFile.delete();
+			endFlight(null);
+		}
+
+		// Tells the followers the whole body has been written to the file,
+		// or that the body is incomplete if the file is null.
+		private void endFlight(File body){
+			if (flight == null){
+				return;
+			}
+			if (body != null){
+				flight.done(body);
+			} else {
+				flight.fail();
+			}
+			flight = null;
+		}
+	}
+
+	/**
+	 * A request to the origin server that concurrent requests for the same
+	 * URL wait on. Followers wait for the response header, then read the
+	 * body from the file it is being stored in, up to the number of bytes
+	 * written so far.
+	 */
+	class Flight {
+		// States of a flight.
+		static final int WAITING = 0;
+		static final int STREAMING = 1;
+		static final int DONE = 2;
+		static final int REVALIDATED = 3;
+		static final int FAILED = 4;
+
+		private final String url;
+		// Guarded by this flight.
+		private int state = WAITING;
+		// The response being stored and the file its body is written to.
+		private Entry entry = null;
+		private File file = null;
+		// Number of body bytes in the file.
+		private long available = 0;
+
+		private Flight(String url){
+			this.url = url;
+		}
+
+		/**
+		 * Tells the followers the stored response is still valid, so they
+		 * can send it from the cache.
+		 *
+		 * @param entry	The revalidated stored response.
+		 */
+		void revalidated(Entry entry){
+			synchronized (this){
+				if (state == WAITING){
+					this.entry = entry;
+				}
+			}
+			end(REVALIDATED);
+		}
+
+		/**
+		 * Tells the followers the response can not be shared, so they must
+		 * send their own requests. Does nothing once the flight has ended.
+		 */
+		void fail(){
+			end(FAILED);
+		}
+
+		/**
+		 * Waits for the leader to receive the response header.
+		 *
+		 * @param timeout	How long to wait, in milliseconds.
+		 * @return			The state of the flight, WAITING if the response
+		 *					header did not arrive in time.
+		 * @throws InterruptedException	If the thread is interrupted.
+		 */
+		synchronized int awaitResponse(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (state == WAITING && remaining > 0){
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return state;
+		}
+
+		/**
+		 * Checks that the shared response can be sent for a request,
+		 * which means the request has the same values for the header
+		 * fields the response varies on as the leader's request.
+		 *
+		 * @param request	The parsed request of a follower.
+		 * @return			True if the response can be sent for the request.
+		 */
+		synchronized boolean matches(RequestParser request){
+			if (entry == null || !entry.key.equals(key(url, entry.vary, request))){
+				return false;
+			}
+			coalesced.increment();
+			return true;
+		}
+
+		/**
+		 * @return	The revalidated stored response, or the response being
+		 *			stored, with a body length of 0.
+		 */
+		synchronized Entry entry(){
+			return entry;
+		}
+
+		/**
+		 * Opens the file the body is being written to.
+		 *
+		 * @return	The open file, or null if it is gone.
+		 */
+		synchronized FileInputStream openBody(){
+			try {
+				return new FileInputStream(file);
+			} catch (FileNotFoundException e){
+				return null;
+			}
+		}
+
+		/**
+		 * Waits for body bytes past a position to be written.
+		 *
+		 * @param position	Number of body bytes already read.
+		 * @param timeout	How long to wait for more bytes, in milliseconds.
+		 * @return			Number of body bytes that can be read, equal to
+		 *					position once the whole body has been read, or -1
+		 *					if the body will never be complete.
+		 * @throws InterruptedException	If the thread is interrupted.
+		 */
+		synchronized long awaitBody(long position, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (available <= position && state == STREAMING && remaining > 0){
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			if (available > position){
+				return available;
+			}
+			return state == DONE ? position : -1;
+		}
+
+		// The leader has received a response header that can be shared.
+		private synchronized void streaming(Entry entry, File file){
+			if (state != WAITING){
+				return;
+			}
+			this.entry = entry;
+			this.file = file;
+			state = STREAMING;
+			notifyAll();
+		}
+
+		// More of the body has been written to the file.
+		private synchronized void progress(long written){
+			available = written;
+			notifyAll();
+		}
+
+		// The whole body has been written, and the file has been moved.
+		private void done(File body){
+			synchronized (this){
+				file = body;
+			}
+			end(DONE);
+		}
+
+		// Ends the flight, so new requests no longer follow it.
+		private void end(int result){
+			synchronized (this){
+				if (state == DONE || state == REVALIDATED || state == FAILED){
+					return;
+				}
+				state = result;
+				notifyAll();
+			}
+			synchronized (ProxyCache.this){
+				flights.remove(url, this);
+			}
+		}
+	}
+
+	/**
+	 * @return	Number of requests served from the cache without asking the origin server.
+	 */
+	long hits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return	Number of stored responses revalidated with the origin server.
+	 */
+	long revalidations(){
+		return revalidations.sum();
+	}
+
+	/**
+	 * @return	Number of requests with no stored response.
+	 */
+	long misses(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return	Number of bytes currently stored.
+	 */
+	synchronized long size(){
+		return size;
+	}
+
+	/**
+	 * @return	Summary of the cache counters.
+	 */
+	public String toString(){
+		return "proxy cache: " + hits() + " hits, " + revalidations() + " revalidations, " + misses()
+				+ " misses, " + stores.sum() + " stores, " + evictions.sum() + " evictions, "
+				+ coalesced.sum() + " coalesced, "
+				+ size() + " of " + maxSize + " bytes used";
+	}
+
+	// Checks if a response may be stored.
+	private boolean storable(ResponseHeader header, long responseTime){
+		boolean storableStatus = false;
+		for (int status : STORABLE_STATUS){
+			storableStatus |= header.status == status;
+		}
+		String cacheControl = header.getAll("Cache-Control");
+		if (!storableStatus || ResponseHeader.hasDirective(cacheControl, "no-store")
+				|| ResponseHeader.hasDirective(cacheControl, "private")){
+			return false;
+		}
+
+		// Responses that can neither be fresh nor revalidated are of no use.
+		return freshnessLifetime(header, responseTime) > 0 || header.get("ETag") != null
+				|| header.get("Last-Modified") != null;
+	}
+
+	// How long a response is fresh for after it was generated, in milliseconds.
+	private static long freshnessLifetime(ResponseHeader header, long responseTime){
+		String cacheControl = header.getAll("Cache-Control");
+		long seconds = ResponseHeader.directiveSeconds(cacheControl, "s-maxage");
+		if (seconds == -1){
+			seconds = ResponseHeader.directiveSeconds(cacheControl, "max-age");
+		}
+		if (seconds > -1){
+			return seconds * 1000;
+		}
+
+		long date = HttpDate.parse(header.get("Date"));
+		if (date == -1){
+			date = responseTime;
+		}
+		if (header.get("Expires") != null){
+			// Invalid dates, such as 0, mean the response has already expired.
+			long expires = HttpDate.parse(header.get("Expires"));
+			return Math.max(0, expires - date);
+		}
+
+		long lastModified = HttpDate.parse(header.get("Last-Modified"));
+		if (lastModified > -1){
+			return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, date - lastModified) / 10);
+		}
+		return 0;
+	}
+
+	// Age of a stored response, in milliseconds.
+	private static long currentAge(Entry entry, long now){
+		long date = HttpDate.parse(entry.header.get("Date"));
+		long apparentAge = date == -1 ? 0 : Math.max(0, entry.responseTime - date);
+		long ageSeconds = 0;
+		try {
+			ageSeconds = Math.max(0, Long.parseLong(entry.header.get("Age").trim()));
+		} catch (NullPointerException | NumberFormatException e){
+			// No valid Age header field.
+		}
+		long correctedAge = ageSeconds * 1000 + (entry.responseTime - entry.requestTime);
+		return Math.max(apparentAge, correctedAge) + Math.max(0, now - entry.responseTime);
+	}
+
+	// Content-Length of a response, or -1 if the body is not framed by it.
+	private static long contentLength(ResponseHeader header){
+		String value = header.get("Content-Length");
+		if (value == null || header.get("Transfer-Encoding") != null){
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	private static boolean isHopByHop(String name){
+		for (String hopByHop : HOP_BY_HOP){
+			if (hopByHop.equalsIgnoreCase(name)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Name of the entry files for a URL and the request header fields it varies on.
+	private static String key(String url, String[] vary, RequestParser request){
+		StringBuilder text = new StringBuilder(url);
+		for (String name : vary){
+			String value = request.header(name);
+			text.append('\n').append(name).append(": ").append(value == null ? "" : value);
+		}
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					text.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest){
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e){
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private File bodyFile(Entry entry){
+		return new File(directory, entry.body);
+	}
+
+	private File metaFile(String key){
+		return new File(directory, key + META);
+	}
+
+	// Writes the metadata of an entry to a temporary file.
+	private File writeMeta(Entry entry) throws IOException {
+		Properties meta = new Properties();
+		meta.setProperty("body", entry.body);
+		meta.setProperty("url", entry.url);
+		meta.setProperty("vary", String.join(",", entry.vary));
+		meta.setProperty("bodyLength", Long.toString(entry.bodyLength));
+		meta.setProperty("requestTime", Long.toString(entry.requestTime));
+		meta.setProperty("responseTime", Long.toString(entry.responseTime));
+		meta.setProperty("header", entry.header.toText());
+
+		File temp = File.createTempFile(entry.key, TEMP, directory);
+		try (OutputStream out = new FileOutputStream(temp)){
+			meta.store(out, null);
+		} catch (IOException e){
+			temp.delete();
+			throw e;
+		}
+		return temp;
+	}
+
+	// Replaces the metadata of an entry in one step. Must hold the lock, so
+	// metadata is never replaced while an older entry with the same key is
+	// being deleted.
+	private void commitMeta(Entry entry, File temp) throws IOException {
+		Files.move(temp.toPath(), metaFile(entry.key).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Reads the metadata of an entry, null if it is damaged.
+	private Entry readMeta(String key, File metaFile){
+		Properties meta = new Properties();
+		try (InputStream in = new FileInputStream(metaFile)){
+			meta.load(in);
+			String vary = meta.getProperty("vary");
+			byte[] header = (meta.getProperty("header") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			return new Entry(key, meta.getProperty("body"), meta.getProperty("url"), vary.isEmpty() ? new String[0] : vary.split(","),
+					ResponseHeader.parse(header, header.length),
+					Long.parseLong(meta.getProperty("bodyLength")),
+					Long.parseLong(meta.getProperty("requestTime")),
+					Long.parseLong(meta.getProperty("responseTime")));
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	// Adds an entry to the index and evicts the least recently used entries
+	// until the cache fits. Must hold the lock.
+	private void add(Entry entry){
+		entries.put(entry.key, entry);
+		size += entry.size();
+		Variants stored = variants.get(entry.url);
+		if (stored == null || !Arrays.equals(stored.vary, entry.vary)){
+			// A new Vary header field replaces the old one for the URL.
+			Variants replaced = new Variants(entry.vary);
+			if (stored != null){
+				replaced.count = stored.count;
+			}
+			stored = replaced;
+			variants.put(entry.url, stored);
+		}
+		stored.count++;
+
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (size > maxSize && eldest.hasNext()){
+			Entry old = eldest.next();
+			if (old == entry){
+				continue;
+			}
+			eldest.remove();
+			forget(old);
+			delete(old);
+			evictions.increment();
+		}
+	}
+
+	// Updates the size and variants after an entry left the index. Must hold the lock.
+	private void forget(Entry entry){
+		size -= entry.size();
+		Variants stored = variants.get(entry.url);
+		if (stored != null && --stored.count <= 0){
+			variants.remove(entry.url);
+		}
+	}
+
+	// Deletes the files of an entry that left the index. Must hold the lock.
+	private void delete(Entry entry){
+		if (!entries.containsKey(entry.key)){
+			metaFile(entry.key).delete();
+		}
+		bodyFile(entry).delete();
+	}
+}
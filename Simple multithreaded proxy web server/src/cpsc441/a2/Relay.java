@@ -0,0 +1,304 @@
+/**
+ * Relay Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Copies bytes in both directions between a client and a host at the same
+ * time, using non-blocking SocketChannels registered with a Selector. Each
+ * direction has one direct buffer taken from a shared BufferPool. While a
+ * buffer still holds bytes the destination has not taken, nothing more is
+ * read from the source, so a slow reader on either side slows down the
+ * other side instead of making the proxy buffer more data.
+ *
+ * A relayed HTTP response is finished once the host has closed the
+ * connection and everything it sent has been written to the client. Its
+ * header is collected first and sent on with Connection: close in place of
+ * the hop-by-hop fields of the host, since the client connection is closed
+ * after the response. Interim 1xx responses, a 101 Switching Protocols
+ * header and headers that can not be parsed are sent on as they are. A
+ * CONNECT tunnel passes the end of each direction on to the other side with
+ * shutdownOutput(), and is finished once both directions have ended.
+ *
+ * The NioConnection drives a Relay from its event loop. A Worker thread
+ * uses run(), which drives one with a selector of its own.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+class Relay {
+
+	// Size of the buffer of each direction.
+	private static final int BUFFER_SIZE = 16000;
+	// Buffers shared by every relay.
+	private static final BufferPool buffers = new BufferPool(BUFFER_SIZE, 256);
+
+	// Bytes going one way, from one channel to the other.
+	private class Direction {
+		final SocketChannel from;
+		final SocketChannel to;
+		ByteBuffer buffer = buffers.acquire();
+		// Bytes written before the buffer, such as a rewritten header, or null.
+		ByteBuffer queued = null;
+		// True while bytes are waiting to be written.
+		boolean pending = false;
+		// True once the source has closed its side.
+		boolean ended = false;
+		// True once the source has closed and everything has been written.
+		boolean finished = false;
+
+		Direction(SocketChannel from, SocketChannel to){
+			this.from = from;
+			this.to = to;
+		}
+
+		// Nothing is read while bytes are waiting to be written.
+		boolean canRead(){
+			return !ended && !pending;
+		}
+
+		// Reads from the source and passes the bytes straight on if possible.
+		void read() throws IOException {
+			if (from.read(buffer) == -1){
+				ended = true;
+			}
+			buffer.flip();
+			if (this == toClient && responseHeader != null){
+				rewriteHeader();
+			}
+			write();
+		}
+
+		// Writes as much of the buffered bytes as the destination will take.
+		void write() throws IOException {
+			if (queued != null){
+				to.write(queued);
+				if (queued.hasRemaining()){
+					pending = true;
+					return;
+				}
+				queued = null;
+			}
+			if (buffer.hasRemaining()){
+				to.write(buffer);
+			}
+			pending = buffer.hasRemaining();
+			if (pending){
+				return;
+			}
+			buffer.clear();
+			if (ended && !finished){
+				finished = true;
+				if (tunnel){
+					to.shutdownOutput();
+				}
+			}
+		}
+	}
+
+	private final SelectionKey clientKey;
+	private final SelectionKey upstreamKey;
+	private final boolean tunnel;
+	private final Direction toUpstream;
+	private final Direction toClient;
+	// When bytes last went either way.
+	private long lastActive = System.currentTimeMillis();
+	// Response header received from the host so far, null for a tunnel and
+	// once the header has been sent on.
+	private byte[] responseHeader;
+	private int responseHeaderLength = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param clientKey		Selection key of the client channel.
+	 * @param upstreamKey	Selection key of the channel to the host, registered
+	 *						with the same selector.
+	 * @param tunnel		True for a CONNECT tunnel, false for a relayed response.
+	 */
+	Relay(SelectionKey clientKey, SelectionKey upstreamKey, boolean tunnel){
+		this.clientKey = clientKey;
+		this.upstreamKey = upstreamKey;
+		this.tunnel = tunnel;
+		SocketChannel client = (SocketChannel) clientKey.channel();
+		SocketChannel upstream = (SocketChannel) upstreamKey.channel();
+		this.toUpstream = new Direction(client, upstream);
+		this.toClient = new Direction(upstream, client);
+		this.responseHeader = tunnel ? null : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Queues bytes for the client ahead of anything relayed from the host,
+	 * such as the response to a CONNECT request. Must be called before the
+	 * relay starts.
+	 *
+	 * @param data	Bytes to send, no more than the size of a relay buffer.
+	 */
+	void sendToClient(byte[] data){
+		toClient.buffer.put(data);
+		toClient.buffer.flip();
+		toClient.pending = true;
+	}
+
+	// Moves the bytes just read from the host into the response header, and
+	// once the whole header has arrived queues it for the client along with
+	// the bytes that followed it.
+	private void rewriteHeader(){
+		ByteBuffer buffer = toClient.buffer;
+		if (responseHeaderLength + buffer.remaining() > responseHeader.length){
+			responseHeader = Arrays.copyOf(responseHeader, responseHeaderLength + buffer.remaining()
+					+ BUFFER_SIZE);
+		}
+		int read = buffer.remaining();
+		buffer.get(responseHeader, responseHeaderLength, read);
+		responseHeaderLength += read;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while (responseHeader != null){
+			ResponseHeader header;
+			try {
+				header = ResponseHeader.parse(responseHeader, responseHeaderLength);
+			} catch (IllegalArgumentException e){
+				header = null;
+			}
+			if (header == null){
+				if (!toClient.ended && responseHeaderLength < ProxyCache.MAX_HEADER_SIZE){
+					// Wait for the rest of the header.
+					break;
+				}
+				// Sent on as it is, the client makes what it can of it.
+				out.write(responseHeader, 0, responseHeaderLength);
+				responseHeader = null;
+			} else if (header.status / 100 == 1 && header.status != 101){
+				// An interim response, the final one comes after it.
+				out.write(responseHeader, 0, header.length);
+				responseHeaderLength -= header.length;
+				System.arraycopy(responseHeader, header.length, responseHeader, 0, responseHeaderLength);
+			} else {
+				if (header.status == 101){
+					out.write(responseHeader, 0, header.length);
+				} else {
+					out.writeBytes(ProxyCache.relayedHeader(header));
+				}
+				out.write(responseHeader, header.length, responseHeaderLength - header.length);
+				responseHeader = null;
+			}
+		}
+		if (out.size() > 0){
+			toClient.queued = ByteBuffer.wrap(out.toByteArray());
+		}
+	}
+
+	/**
+	 * Sets the interest of both channels from the state of the relay. Must
+	 * be called once before the first select and is called by handle().
+	 */
+	void updateInterest(){
+		clientKey.interestOps((toUpstream.canRead() ? SelectionKey.OP_READ : 0)
+				| (toClient.pending ? SelectionKey.OP_WRITE : 0));
+		upstreamKey.interestOps((toClient.canRead() ? SelectionKey.OP_READ : 0)
+				| (toUpstream.pending ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * Handles a readiness event of either channel.
+	 *
+	 * @param key	Selection key that is ready.
+	 * @return		True once the relay is finished.
+	 * @throws IOException	If reading or writing fails.
+	 */
+	boolean handle(SelectionKey key) throws IOException {
+		Direction incoming = key == clientKey ? toUpstream : toClient;
+		Direction outgoing = key == clientKey ? toClient : toUpstream;
+
+		if (key.isWritable() && outgoing.pending){
+			outgoing.write();
+		}
+		if (key.isReadable() && incoming.canRead()){
+			incoming.read();
+		}
+		lastActive = System.currentTimeMillis();
+
+		if (isFinished()){
+			return true;
+		}
+		updateInterest();
+		return false;
+	}
+
+	/**
+	 * @return	True once the response has been relayed, or for a tunnel,
+	 *			once both sides have closed.
+	 */
+	boolean isFinished(){
+		return toClient.finished && (!tunnel || toUpstream.finished);
+	}
+
+	/**
+	 * @param now	Current time in milliseconds.
+	 * @return		How long nothing has been relayed either way, in milliseconds.
+	 */
+	long idleTime(long now){
+		return now - lastActive;
+	}
+
+	/**
+	 * Hands the buffers back to the pool. The channels are closed by the caller.
+	 */
+	void close(){
+		buffers.release(toUpstream.buffer);
+		buffers.release(toClient.buffer);
+		toUpstream.buffer = null;
+		toClient.buffer = null;
+	}
+
+	/**
+	 * Relays between two channels on the calling thread until the relay is
+	 * finished. The channels are switched to non-blocking mode.
+	 *
+	 * @param client		The client channel.
+	 * @param upstream		The connected channel to the host.
+	 * @param tunnel		True for a CONNECT tunnel, false for a relayed response.
+	 * @param idleTimeout	How long nothing may be relayed either way, in milliseconds.
+	 * @throws IOException	If reading or writing fails, or the relay was idle for too long.
+	 */
+	static void run(SocketChannel client, SocketChannel upstream, boolean tunnel, int idleTimeout)
+			throws IOException {
+		try (Selector selector = Selector.open()){
+			client.configureBlocking(false);
+			upstream.configureBlocking(false);
+			Relay relay = new Relay(client.register(selector, 0), upstream.register(selector, 0), tunnel);
+
+			try {
+				relay.updateInterest();
+				while (true){
+					selector.select(idleTimeout);
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()){
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (relay.handle(key)){
+							return;
+						}
+					}
+					if (relay.idleTime(System.currentTimeMillis()) >= idleTimeout){
+						throw new SocketTimeoutException("Nothing relayed for " + idleTimeout + " milliseconds.");
+					}
+				}
+			} finally {
+				relay.close();
+			}
+		}
+	}
+}
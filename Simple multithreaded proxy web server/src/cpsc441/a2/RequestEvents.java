@@ -0,0 +1,186 @@
+/**
+ * RequestEvents Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Java Flight Recorder events for the phases of a request in the threaded
+ * server: the time a connection waits for a worker thread, parsing the
+ * request header, deciding the mode, opening the file, and in Proxy Server
+ * mode resolving the host, connecting to it, waiting for the first byte of
+ * its response and relaying the response. A Request event spans each whole
+ * request, so in a recording the phase events on the same thread show where
+ * the time of a slow request went. Every event has the mode, status code
+ * and byte count known when it ends.
+ *
+ * Phase events are created, timed and committed within the method of their
+ * phase, the usual pattern for JFR events: when an event is disabled the
+ * JIT removes it entirely. The Queue and Request events outlive the method
+ * that starts them, so they are only created while their event type is
+ * enabled. Every event has a threshold, so a continuous recording only
+ * keeps the slow ones:
+ *
+ *	java -XX:StartFlightRecording:filename=server.jfr,settings=profile ServerDriver
+ *	jfr print --events cpsc441.a2.Request server.jfr
+ *
+ * The thresholds can be changed like those of the JDK events, for example
+ * with cpsc441.a2.Request#threshold=0 ms in the recording settings.
+ *
+ */
+
+package cpsc441.a2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+final class RequestEvents {
+
+	private static final EventType QUEUE = EventType.getEventType(Queue.class);
+	private static final EventType REQUEST = EventType.getEventType(Request.class);
+
+
+	private RequestEvents(){
+	}
+
+	/**
+	 * Fields every event has. Stack traces are not recorded, the thread and
+	 * the kind of event already say where it happened.
+	 */
+	@Category({"Web Server", "Request"})
+	@StackTrace(false)
+	abstract static class Phase extends Event {
+		@Label("Mode")
+		@Description("web, proxy or tunnel, null before the mode is known")
+		String mode;
+
+		@Label("Status")
+		@Description("Status code of the response, 0 if it is not known yet")
+		int status;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("cpsc441.a2.Queue")
+	@Label("Queue")
+	@Description("Accepted connection waiting for a worker thread")
+	@Threshold("1 ms")
+	static class Queue extends Phase {
+		@Label("Client")
+		String client;
+	}
+
+	@Name("cpsc441.a2.Parse")
+	@Label("Parse")
+	@Description("Request header read and parsed, from its first byte")
+	@Threshold("1 ms")
+	static class Parse extends Phase {
+	}
+
+	@Name("cpsc441.a2.ModeDecision")
+	@Label("Mode Decision")
+	@Description("Deciding between Web Server and Proxy Server mode, which may look up the host")
+	@Threshold("1 ms")
+	static class ModeDecision extends Phase {
+		@Label("Host")
+		String host;
+	}
+
+	@Name("cpsc441.a2.FileOpen")
+	@Label("File Open")
+	@Description("Requested file opened, or read through the file cache")
+	@Threshold("1 ms")
+	static class FileOpen extends Phase {
+		@Label("Path")
+		String path;
+
+		@Label("From Cache")
+		boolean cached;
+	}
+
+	@Name("cpsc441.a2.Resolve")
+	@Label("Resolve")
+	@Description("Address of the host looked up")
+	@Threshold("1 ms")
+	static class Resolve extends Phase {
+		@Label("Host")
+		String host;
+	}
+
+	@Name("cpsc441.a2.Connect")
+	@Label("Connect")
+	@Description("Connection to the host opened")
+	@Threshold("1 ms")
+	static class Connect extends Phase {
+		@Label("Host")
+		String host;
+	}
+
+	@Name("cpsc441.a2.UpstreamFirstByte")
+	@Label("Upstream First Byte")
+	@Description("Request sent to the host and its response header received")
+	@Threshold("5 ms")
+	static class UpstreamFirstByte extends Phase {
+		@Label("Host")
+		String host;
+
+		@Label("Reused Connection")
+		boolean reused;
+	}
+
+	@Name("cpsc441.a2.Relay")
+	@Label("Relay")
+	@Description("Response relayed from the host to the client")
+	@Threshold("5 ms")
+	static class ResponseRelay extends Phase {
+		@Label("Host")
+		String host;
+	}
+
+	@Name("cpsc441.a2.Request")
+	@Label("Request")
+	@Description("Whole request, from its first byte until the response was sent")
+	@Threshold("10 ms")
+	static class Request extends Phase {
+		@Label("Method")
+		String method;
+
+		@Label("Target")
+		String target;
+	}
+
+	/**
+	 * Starts a Queue event for a connection that has just been accepted.
+	 *
+	 * @return	The started event, or null if Queue events are disabled.
+	 */
+	static Queue startQueue(){
+		if (!QUEUE.isEnabled()){
+			return null;
+		}
+		Queue event = new Queue();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Starts a Request event when the first byte of a request arrives.
+	 *
+	 * @return	The started event, or null if Request events are disabled.
+	 */
+	static Request startRequest(){
+		if (!REQUEST.isEnabled()){
+			return null;
+		}
+		Request event = new Request();
+		event.begin();
+		return event;
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ * RequestParser Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Incremental parser for the header of a client request. The request is
+ * parsed straight from the bytes read from the client, and parsing can be
+ * resumed when more bytes arrive, so a request split over several TCP
+ * segments is only scanned once. Instead of building Strings for every
+ * line, the parser records where the method, target, version and each
+ * header field name and value start and end, and only makes a String for
+ * the fields that are asked for.
+ *
+ * The request line must have the form "METHOD target HTTP/x.y" and every
+ * header line the form "Name: value". Lines may end with \r\n or \n.
+ * Field values and the target may contain octets 0x80 to 0xFF (obs-text in
+ * RFC 7230), but no other control characters.
+ * Requests with a header larger than maxHeaderSize bytes or with more than
+ * maxHeaders header fields are rejected as too large.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.charset.StandardCharsets;
+
+class RequestParser {
+
+	// Results of parse().
+	static final int INCOMPLETE = 0;
+	static final int COMPLETE = 1;
+	static final int BAD_REQUEST = -1;
+	static final int TOO_LARGE = -2;
+
+	// Parser states.
+	private static final int METHOD = 0;
+	private static final int TARGET = 1;
+	private static final int VERSION = 2;
+	private static final int REQUEST_LINE_LF = 3;
+	private static final int LINE_START = 4;
+	private static final int NAME = 5;
+	private static final int VALUE_START = 6;
+	private static final int VALUE = 7;
+	private static final int HEADER_LF = 8;
+	private static final int END_LF = 9;
+	private static final int DONE = 10;
+
+	private final int maxHeaderSize;
+	private final int maxHeaders;
+
+	// Bytes being parsed and the position of the next byte to look at.
+	private byte[] data;
+	private int pos;
+	private int state;
+	private int result;
+
+	// Slices of the request line.
+	private int methodStart;
+	private int methodEnd;
+	private int targetStart;
+	private int targetEnd;
+	private int versionStart;
+	private int versionEnd;
+
+	// Slices of the header fields, four entries per field: name start,
+	// name end, value start and value end.
+	private final int[] fields;
+	private int fieldCount;
+
+	// End of the header, including the empty line.
+	private int headerEnd;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxHeaderSize	Largest request header accepted, in bytes.
+	 * @param maxHeaders	Largest number of header fields accepted.
+	 */
+	RequestParser(int maxHeaderSize, int maxHeaders){
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxHeaders = maxHeaders;
+		this.fields = new int[maxHeaders * 4];
+		reset();
+	}
+
+	/**
+	 * Gets the parser ready for the next request. The next request must
+	 * start at index 0 of the data passed to parse().
+	 */
+	void reset(){
+		data = null;
+		pos = 0;
+		state = METHOD;
+		result = INCOMPLETE;
+		methodStart = 0;
+		fieldCount = 0;
+		headerEnd = 0;
+	}
+
+	/**
+	 * Parses the request header in data[0...length), carrying on from where
+	 * the previous call stopped. The bytes already parsed must not change
+	 * between calls.
+	 *
+	 * @param data		Bytes read from the client so far.
+	 * @param length	Number of valid bytes in data.
+	 * @return			COMPLETE once the whole header has been parsed,
+	 *					INCOMPLETE if more bytes are needed, BAD_REQUEST if
+	 *					the request is malformed, or TOO_LARGE if it is over
+	 *					the size limits.
+	 */
+	int parse(byte[] data, int length){
+		this.data = data;
+		if (result != INCOMPLETE){
+			return result;
+		}
+
+		int limit = Math.min(length, maxHeaderSize);
+		while (pos < limit && state != DONE){
+			// Compared unsigned, so octets 0x80 to 0xFF are not taken for controls.
+			int b = data[pos] & 0xff;
+
+			switch (state){
+			case METHOD:
+				if (b == ' '){
+					if (pos == methodStart){
+						return fail(BAD_REQUEST);
+					}
+					methodEnd = pos;
+					targetStart = pos + 1;
+					state = TARGET;
+				} else if ((b == '\r' || b == '\n') && pos == methodStart){
+					// Empty lines before the request line are ignored.
+					methodStart = pos + 1;
+				} else if (!isTokenChar(b)){
+					return fail(BAD_REQUEST);
+				}
+				break;
+
+			case TARGET:
+				if (b == ' '){
+					if (pos == targetStart){
+						return fail(BAD_REQUEST);
+					}
+					targetEnd = pos;
+					versionStart = pos + 1;
+					state = VERSION;
+				} else if (b <= ' ' || b == 127){
+					return fail(BAD_REQUEST);
+				}
+				break;
+
+			case VERSION:
+				if (b == '\r' || b == '\n'){
+					versionEnd = pos;
+					if (!isHttpVersion()){
+						return fail(BAD_REQUEST);
+					}
+					state = b == '\r' ? REQUEST_LINE_LF : LINE_START;
+				} else if (b <= ' '){
+					return fail(BAD_REQUEST);
+				}
+				break;
+
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				if (b != '\n'){
+					return fail(BAD_REQUEST);
+				}
+				state = LINE_START;
+				break;
+
+			case LINE_START:
+				if (b == '\r'){
+					state = END_LF;
+				} else if (b == '\n'){
+					headerEnd = pos + 1;
+					state = DONE;
+				} else if (isTokenChar(b)){
+					if (fieldCount == maxHeaders){
+						return fail(TOO_LARGE);
+					}
+					fields[fieldCount * 4] = pos;
+					state = NAME;
+				} else {
+					// Header field names can not be empty or start with whitespace.
+					return fail(BAD_REQUEST);
+				}
+				break;
+
+			case NAME:
+				if (b == ':'){
+					fields[fieldCount * 4 + 1] = pos;
+					state = VALUE_START;
+				} else if (!isTokenChar(b)){
+					return fail(BAD_REQUEST);
+				}
+				break;
+
+			case VALUE_START:
+				if (b == ' ' || b == '\t'){
+					break;
+				}
+				fields[fieldCount * 4 + 2] = pos;
+				fields[fieldCount * 4 + 3] = pos;
+				state = VALUE;
+				// The first byte of the value is handled by the VALUE state.
+				continue;
+
+			case VALUE:
+				if (b == '\r' || b == '\n'){
+					fieldCount++;
+					state = b == '\r' ? HEADER_LF : LINE_START;
+				} else if (b != ' ' && b != '\t'){
+					if (b < ' ' || b == 127){
+						return fail(BAD_REQUEST);
+					}
+					// Trailing whitespace is not part of the value.
+					fields[fieldCount * 4 + 3] = pos + 1;
+				}
+				break;
+
+			case END_LF:
+				if (b != '\n'){
+					return fail(BAD_REQUEST);
+				}
+				headerEnd = pos + 1;
+				state = DONE;
+				break;
+			}
+			pos++;
+		}
+
+		if (state == DONE){
+			result = COMPLETE;
+		} else if (pos >= maxHeaderSize){
+			result = TOO_LARGE;
+		}
+		return result;
+	}
+
+	/**
+	 * @return	Index just past the empty line that ends the header.
+	 */
+	int headerEnd(){
+		return headerEnd;
+	}
+
+	/**
+	 * @return	The request method.
+	 */
+	String method(){
+		return new String(data, methodStart, methodEnd - methodStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param method	Method to compare with, for example GET.
+	 * @return			True if the request uses the method.
+	 */
+	boolean methodIs(String method){
+		return regionEquals(methodStart, methodEnd, method, false);
+	}
+
+	/**
+	 * @return	The request target, for example /index.html.
+	 */
+	String target(){
+		return new String(data, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param version	Version to compare with, for example HTTP/1.1.
+	 * @return			True if the request uses the version.
+	 */
+	boolean versionIs(String version){
+		return regionEquals(versionStart, versionEnd, version, false);
+	}
+
+	/**
+	 * @return	The request version, for example HTTP/1.1.
+	 */
+	String version(){
+		return new String(data, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return	Number of header fields in the request.
+	 */
+	int headerCount(){
+		return fieldCount;
+	}
+
+	/**
+	 * @param field	Index of the header field, in the order they were sent.
+	 * @return		Name of the header field.
+	 */
+	String headerName(int field){
+		int start = fields[field * 4];
+		return new String(data, start, fields[field * 4 + 1] - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param field	Index of the header field, in the order they were sent.
+	 * @return		Value of the header field.
+	 */
+	String headerValue(int field){
+		int start = fields[field * 4 + 2];
+		return new String(data, start, fields[field * 4 + 3] - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param name	Header field name, compared ignoring case.
+	 * @return		True if the request has the header field.
+	 */
+	boolean hasHeader(String name){
+		return findHeader(name) != -1;
+	}
+
+	/**
+	 * @param name	Header field name, compared ignoring case.
+	 * @return		Value of the first header field with the name, or null.
+	 */
+	String header(String name){
+		int field = findHeader(name);
+		if (field == -1){
+			return null;
+		}
+		return headerValue(field);
+	}
+
+	/**
+	 * Checks if a comma separated header field, such as Connection,
+	 * contains a token, without making a String for the value.
+	 *
+	 * @param name	Header field name, compared ignoring case.
+	 * @param token	Token to look for, compared ignoring case.
+	 * @return		True if any header field with the name lists the token.
+	 */
+	boolean headerHasToken(String name, String token){
+		for (int field = 0; field < fieldCount; field++){
+			if (!regionEquals(fields[field * 4], fields[field * 4 + 1], name, true)){
+				continue;
+			}
+			int start = fields[field * 4 + 2];
+			int end = fields[field * 4 + 3];
+			while (start < end){
+				int comma = start;
+				while (comma < end && data[comma] != ','){
+					comma++;
+				}
+				// Trim whitespace around the token.
+				int tokenStart = start;
+				int tokenEnd = comma;
+				while (tokenStart < tokenEnd && (data[tokenStart] == ' ' || data[tokenStart] == '\t')){
+					tokenStart++;
+				}
+				while (tokenEnd > tokenStart && (data[tokenEnd - 1] == ' ' || data[tokenEnd - 1] == '\t')){
+					tokenEnd--;
+				}
+				if (regionEquals(tokenStart, tokenEnd, token, true)){
+					return true;
+				}
+				start = comma + 1;
+			}
+		}
+		return false;
+	}
+
+	// Finds the first header field with the name, -1 if there is none.
+	private int findHeader(String name){
+		for (int field = 0; field < fieldCount; field++){
+			if (regionEquals(fields[field * 4], fields[field * 4 + 1], name, true)){
+				return field;
+			}
+		}
+		return -1;
+	}
+
+	// Compares data[start...end) with the text.
+	private boolean regionEquals(int start, int end, String text, boolean ignoreCase){
+		if (end - start != text.length()){
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++){
+			int a = data[start + i];
+			int b = text.charAt(i);
+			if (a != b && (!ignoreCase || toLower(a) != toLower(b))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Checks the version has the form HTTP/x.y.
+	private boolean isHttpVersion(){
+		return versionEnd - versionStart == 8 && regionEquals(versionStart, versionStart + 5, "HTTP/", false)
+				&& isDigit(data[versionStart + 5]) && data[versionStart + 6] == '.'
+				&& isDigit(data[versionStart + 7]);
+	}
+
+	// Records a failed parse.
+	private int fail(int failure){
+		result = failure;
+		return failure;
+	}
+
+	private static int toLower(int c){
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	private static boolean isDigit(int b){
+		return b >= '0' && b <= '9';
+	}
+
+	// Characters allowed in methods and header field names (RFC 7230 tchar).
+	private static boolean isTokenChar(int b){
+		if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || isDigit(b)){
+			return true;
+		}
+		switch (b){
+		case '!': case '#': case '$': case '%': case '&': case '\'': case '*':
+		case '+': case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+			return true;
+		default:
+			return false;
+		}
+	}
+}
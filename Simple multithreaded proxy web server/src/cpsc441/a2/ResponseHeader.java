@@ -0,0 +1,216 @@
+/**
+ * ResponseHeader Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * The status line and header fields of a response received from another
+ * server in Proxy Server mode. Used by the ProxyCache to decide whether a
+ * response can be stored and for how long, and to store its header next to
+ * the body on disk.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+class ResponseHeader {
+
+	// First line of the response, for example HTTP/1.1 200 OK.
+	final String statusLine;
+	// Status code of the response, for example 200.
+	final int status;
+	// Header fields as name and value pairs, in the order they were received.
+	final ArrayList<String[]> fields;
+	// Number of bytes in the header, including the empty line that ends it.
+	final int length;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param statusLine	First line of the response.
+	 * @param status		Status code of the response.
+	 * @param fields		Header fields as name and value pairs.
+	 * @param length		Number of bytes in the header.
+	 */
+	ResponseHeader(String statusLine, int status, ArrayList<String[]> fields, int length){
+		this.statusLine = statusLine;
+		this.status = status;
+		this.fields = fields;
+		this.length = length;
+	}
+
+	/**
+	 * Parses the response header at the start of data[0...length).
+	 *
+	 * @param data		Bytes received from the server so far.
+	 * @param length	Number of valid bytes in data.
+	 * @return			The parsed header, or null if the whole header has not
+	 *					been received yet.
+	 * @throws IllegalArgumentException	If the header is not properly formatted.
+	 */
+	static ResponseHeader parse(byte[] data, int length){
+		// Find the empty line that ends the header.
+		int end = -1;
+		for (int i = 0; i + 3 < length; i++){
+			if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n'){
+				end = i;
+				break;
+			}
+		}
+		if (end == -1){
+			return null;
+		}
+
+		String[] lines = new String(data, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+		String[] statusParts = lines[0].split(" ", 3);
+		if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")){
+			throw new IllegalArgumentException("Malformed status line: " + lines[0]);
+		}
+		int status;
+		try {
+			status = Integer.parseInt(statusParts[1]);
+		} catch (NumberFormatException e){
+			throw new IllegalArgumentException("Malformed status line: " + lines[0]);
+		}
+
+		ArrayList<String[]> fields = new ArrayList<String[]>();
+		for (int i = 1; i < lines.length; i++){
+			int colon = lines[i].indexOf(':');
+			if (colon < 1){
+				throw new IllegalArgumentException("Malformed header line: " + lines[i]);
+			}
+			fields.add(new String[]{lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim()});
+		}
+
+		return new ResponseHeader(lines[0], status, fields, end + 4);
+	}
+
+	/**
+	 * @param name	Header field name, compared ignoring case.
+	 * @return		Value of the first header field with the name, or null.
+	 */
+	String get(String name){
+		for (String[] field : fields){
+			if (field[0].equalsIgnoreCase(name)){
+				return field[1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets every value of a header field that may be sent more than once,
+	 * such as Cache-Control, joined into one comma separated value.
+	 *
+	 * @param name	Header field name, compared ignoring case.
+	 * @return		The joined values, or an empty String if there are none.
+	 */
+	String getAll(String name){
+		StringBuilder values = new StringBuilder();
+		for (String[] field : fields){
+			if (field[0].equalsIgnoreCase(name)){
+				if (values.length() > 0){
+					values.append(", ");
+				}
+				values.append(field[1]);
+			}
+		}
+		return values.toString();
+	}
+
+	/**
+	 * Builds a copy of this header where the fields of another response
+	 * replace the fields with the same names, as done when a stored
+	 * response is revalidated with a 304 Not Modified response.
+	 *
+	 * @param update	Header of the 304 Not Modified response.
+	 * @return			The updated header.
+	 */
+	ResponseHeader updatedWith(ResponseHeader update){
+		ArrayList<String[]> merged = new ArrayList<String[]>();
+		for (String[] field : fields){
+			if (update.get(field[0]) == null || isFramingField(field[0])){
+				merged.add(field);
+			}
+		}
+		for (String[] field : update.fields){
+			if (!isFramingField(field[0])){
+				merged.add(field);
+			}
+		}
+		return new ResponseHeader(statusLine, status, merged, length);
+	}
+
+	/**
+	 * @return	The status line and header fields, one per line, without the
+	 *			empty line that ends the header.
+	 */
+	String toText(){
+		StringBuilder text = new StringBuilder(statusLine);
+		for (String[] field : fields){
+			text.append("\r\n").append(field[0]).append(": ").append(field[1]);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Checks if a comma separated header field value, such as Cache-Control,
+	 * contains a directive.
+	 *
+	 * @param value		The header field value.
+	 * @param directive	Directive to look for, compared ignoring case.
+	 * @return			True if the directive is present, with or without a value.
+	 */
+	static boolean hasDirective(String value, String directive){
+		return findDirective(value, directive) != null;
+	}
+
+	/**
+	 * Gets the number of seconds given to a directive such as max-age=60.
+	 *
+	 * @param value		The header field value.
+	 * @param directive	Directive to look for, compared ignoring case.
+	 * @return			The number of seconds, or -1 if the directive is
+	 *					missing or its value is not a number.
+	 */
+	static long directiveSeconds(String value, String directive){
+		String found = findDirective(value, directive);
+		if (found == null || !found.contains("=")){
+			return -1;
+		}
+		String seconds = found.substring(found.indexOf('=') + 1).trim();
+		if (seconds.startsWith("\"") && seconds.endsWith("\"") && seconds.length() > 1){
+			seconds = seconds.substring(1, seconds.length() - 1);
+		}
+		try {
+			return Math.max(0, Long.parseLong(seconds));
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	// Finds the directive in a comma separated value, null if it is missing.
+	private static String findDirective(String value, String directive){
+		if (value == null){
+			return null;
+		}
+		for (String part : value.split(",")){
+			String trimmed = part.trim();
+			int equals = trimmed.indexOf('=');
+			String name = equals == -1 ? trimmed : trimmed.substring(0, equals).trim();
+			if (name.equalsIgnoreCase(directive)){
+				return trimmed;
+			}
+		}
+		return null;
+	}
+
+	// Header fields that describe how the stored body is framed.
+	private static boolean isFramingField(String name){
+		return name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")
+				|| name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Range");
+	}
+}
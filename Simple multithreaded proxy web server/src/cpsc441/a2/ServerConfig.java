@@ -0,0 +1,235 @@
+/**
+ * ServerConfig Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Settings used to build and tune the web server. The defaults match the
+ * original behaviour of the server, and each setting can be overridden
+ * from the command line of the ServerDriver.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.File;
+import java.util.HashMap;
+
+public class ServerConfig {
+
+	// Server modes.
+	public static final String MODE_THREADED = "threaded";
+	public static final String MODE_NIO = "nio";
+
+	// Executor modes used by the threaded server.
+	public static final String EXECUTOR_FIXED = "fixed";
+	public static final String EXECUTOR_VIRTUAL = "virtual";
+
+	// Port the server listens on.
+	public int port = 2525;
+	// Either MODE_THREADED (a pool of blocking Worker threads) or
+	// MODE_NIO (a few selector based event loops).
+	public String serverMode = MODE_THREADED;
+	// Number of listening sockets, each with its own accepting thread. More
+	// than one binds them all to the port with SO_REUSEPORT.
+	public int acceptors = 1;
+	// Number of event loop threads used in MODE_NIO.
+	public int eventLoops = Runtime.getRuntime().availableProcessors();
+	// Either EXECUTOR_FIXED (a fixed pool of poolSize threads) or
+	// EXECUTOR_VIRTUAL (a virtual thread per connection) in MODE_THREADED.
+	public String executorMode = EXECUTOR_FIXED;
+	// Number of worker threads used by EXECUTOR_FIXED.
+	public int poolSize = 8;
+	// Maximum number of connections handled or queued at once in MODE_THREADED.
+	// Further connections get 503 Service Unavailable.
+	public int maxConnections = Integer.MAX_VALUE;
+	// Maximum number of connections from one client IP address in MODE_THREADED.
+	public int maxConnectionsPerClient = Integer.MAX_VALUE;
+	// Number of connections that may wait for a worker thread of EXECUTOR_FIXED.
+	public int acceptQueueSize = 1024;
+	// Queueing delay connections should stay below, in milliseconds. Once
+	// it has been exceeded for queueInterval milliseconds, connections that
+	// waited longer get 503 Service Unavailable.
+	public int queueTarget = 100;
+	public int queueInterval = 1000;
+	// Smallest response body, in bytes, that MODE_THREADED sends on the bulk
+	// transfer pool instead of from the worker, 0 sends every response
+	// from the worker.
+	public long bulkThreshold = 1024 * 1024;
+	// Number of threads of the bulk transfer pool.
+	public int bulkThreads = 2;
+	// Maximum number of bulk transfers in progress at once. Further large
+	// responses are sent by the worker.
+	public int maxBulkTransfers = 64;
+	// How long a bulk transfer may go without the client taking any bytes,
+	// in milliseconds.
+	public int bulkWriteTimeout = 30000;
+	// How long a persistent connection may wait for its next request, in milliseconds.
+	public int keepAliveTimeout = 5000;
+	// Maximum number of requests served on one persistent connection.
+	public int maxKeepAliveRequests = 100;
+	// Maximum number of bytes of file contents cached in memory, 0 disables the cache.
+	public long fileCacheSize = 64 * 1024 * 1024;
+	// Maximum number of bytes of files compressed on the fly cached in memory,
+	// 0 only serves precompressed .gz and .br files.
+	public long gzipCacheSize = 16 * 1024 * 1024;
+	// Largest request header accepted, in bytes. Larger requests get a 431 response.
+	public int maxRequestHeaderSize = 8 * 1024;
+	// Largest number of header fields accepted in a request.
+	public int maxRequestHeaders = 100;
+	// Directory where Proxy Server mode responses are cached, private to the
+	// user running the server.
+	public String proxyCacheDir = new File(System.getProperty("user.home"), ".cpsc441-proxy-cache").getPath();
+	// Maximum number of bytes of responses cached on disk, 0 disables the proxy cache.
+	public long proxyCacheSize = 256L * 1024 * 1024;
+	// Maximum number of idle connections kept open to each host in Proxy
+	// Server mode, 0 closes every connection after its response.
+	public int upstreamMaxIdle = 8;
+	// Maximum number of connections in use to each host in Proxy Server mode.
+	public int upstreamMaxPerHost = 64;
+	// How long an idle connection to a host is kept open, in milliseconds.
+	public int upstreamIdleTimeout = 30000;
+	// How long a CONNECT tunnel or relayed response may go without any
+	// bytes being relayed, in milliseconds.
+	public int relayIdleTimeout = 300000;
+	// Maximum number of host names cached by the host resolver.
+	public int resolverCacheSize = 1024;
+	// How long the addresses of a host are cached, in milliseconds.
+	public int resolverTtl = 30000;
+	// How long a failed host lookup is cached, in milliseconds.
+	public int resolverNegativeTtl = 5000;
+	// File the access log is appended to, "-" for standard output.
+	public String accessLog = AccessLog.STANDARD_OUTPUT;
+	// Number of log records that may wait to be written. Further records
+	// are dropped.
+	public int accessLogBuffer = 8192;
+
+
+	/**
+	 * Builds a configuration from command line options of the form
+	 * -flag value. Options that are not given keep their default values.
+	 *
+	 *	-p	Server port number.
+	 *	-m	Server mode, threaded or nio.
+	 *	-a	Number of listening sockets and accepting threads, bound with SO_REUSEPORT.
+	 *	-l	Number of event loop threads in nio mode.
+	 *	-e	Executor mode in threaded mode, fixed or virtual.
+	 *	-t	Number of worker threads for the fixed executor.
+	 *	-c	Maximum number of connections handled at once in threaded mode.
+	 *	-cc	Maximum number of connections per client IP address in threaded mode.
+	 *	-aq	Number of connections that may wait for a fixed executor thread.
+	 *	-qt	Target queueing delay of connections, in milliseconds.
+	 *	-qi	How long the queueing delay may stay above the target, in milliseconds.
+	 *	-bt	Smallest response body sent by the bulk transfer pool in kilobytes, 0 disables it.
+	 *	-bp	Number of threads of the bulk transfer pool.
+	 *	-bm	Maximum number of bulk transfers in progress at once.
+	 *	-bw	How long a bulk transfer may go without sending a byte, in milliseconds.
+	 *	-k	Keep alive timeout of persistent connections, in milliseconds.
+	 *	-r	Maximum number of requests on a persistent connection.
+	 *	-fc	Size of the file cache in megabytes, 0 disables it.
+	 *	-gc	Size of the cache of files compressed on the fly in megabytes, 0 disables it.
+	 *	-hs	Largest request header accepted, in bytes.
+	 *	-hn	Largest number of header fields accepted in a request.
+	 *	-pd	Directory of the proxy cache.
+	 *	-ps	Size of the proxy cache in megabytes, 0 disables it.
+	 *	-ui	Maximum number of idle connections kept per host in Proxy Server mode.
+	 *	-uh	Maximum number of connections in use per host in Proxy Server mode.
+	 *	-ut	How long an idle connection to a host is kept, in milliseconds.
+	 *	-ti	How long a CONNECT tunnel or relayed response may be idle, in milliseconds.
+	 *	-rs	Maximum number of host names cached by the host resolver.
+	 *	-rt	How long the addresses of a host are cached, in milliseconds.
+	 *	-rn	How long a failed host lookup is cached, in milliseconds.
+	 *	-al	File the access log is appended to, - for standard output.
+	 *	-ab	Number of access log records that may wait to be written.
+	 *
+	 * @param params	Command line flags mapped to their values.
+	 * @return			The server configuration.
+	 */
+	public static ServerConfig fromCommandLine(HashMap<String, String> params){
+		ServerConfig config = new ServerConfig();
+
+		config.port = Integer.parseInt(params.getOrDefault("-p", Integer.toString(config.port)));
+		config.serverMode = params.getOrDefault("-m", config.serverMode);
+		config.acceptors = Integer.parseInt(params.getOrDefault("-a", Integer.toString(config.acceptors)));
+		config.eventLoops = Integer.parseInt(params.getOrDefault("-l", Integer.toString(config.eventLoops)));
+		config.executorMode = params.getOrDefault("-e", config.executorMode);
+		config.poolSize = Integer.parseInt(params.getOrDefault("-t", Integer.toString(config.poolSize)));
+		config.maxConnections = Integer.parseInt(params.getOrDefault("-c", Integer.toString(config.maxConnections)));
+		config.maxConnectionsPerClient = Integer.parseInt(params.getOrDefault("-cc", Integer.toString(config.maxConnectionsPerClient)));
+		config.acceptQueueSize = Integer.parseInt(params.getOrDefault("-aq", Integer.toString(config.acceptQueueSize)));
+		config.queueTarget = Integer.parseInt(params.getOrDefault("-qt", Integer.toString(config.queueTarget)));
+		config.queueInterval = Integer.parseInt(params.getOrDefault("-qi", Integer.toString(config.queueInterval)));
+		if (params.containsKey("-bt")){
+			config.bulkThreshold = Long.parseLong(params.get("-bt")) * 1024;
+		}
+		config.bulkThreads = Integer.parseInt(params.getOrDefault("-bp", Integer.toString(config.bulkThreads)));
+		config.maxBulkTransfers = Integer.parseInt(params.getOrDefault("-bm", Integer.toString(config.maxBulkTransfers)));
+		config.bulkWriteTimeout = Integer.parseInt(params.getOrDefault("-bw", Integer.toString(config.bulkWriteTimeout)));
+		config.keepAliveTimeout = Integer.parseInt(params.getOrDefault("-k", Integer.toString(config.keepAliveTimeout)));
+		config.maxKeepAliveRequests = Integer.parseInt(params.getOrDefault("-r", Integer.toString(config.maxKeepAliveRequests)));
+		config.maxRequestHeaderSize = Integer.parseInt(params.getOrDefault("-hs", Integer.toString(config.maxRequestHeaderSize)));
+		config.maxRequestHeaders = Integer.parseInt(params.getOrDefault("-hn", Integer.toString(config.maxRequestHeaders)));
+		config.proxyCacheDir = params.getOrDefault("-pd", config.proxyCacheDir);
+		if (params.containsKey("-ps")){
+			config.proxyCacheSize = Long.parseLong(params.get("-ps")) * 1024 * 1024;
+		}
+		config.upstreamMaxIdle = Integer.parseInt(params.getOrDefault("-ui", Integer.toString(config.upstreamMaxIdle)));
+		config.upstreamMaxPerHost = Integer.parseInt(params.getOrDefault("-uh", Integer.toString(config.upstreamMaxPerHost)));
+		config.upstreamIdleTimeout = Integer.parseInt(params.getOrDefault("-ut", Integer.toString(config.upstreamIdleTimeout)));
+		config.relayIdleTimeout = Integer.parseInt(params.getOrDefault("-ti", Integer.toString(config.relayIdleTimeout)));
+		config.resolverCacheSize = Integer.parseInt(params.getOrDefault("-rs", Integer.toString(config.resolverCacheSize)));
+		config.resolverTtl = Integer.parseInt(params.getOrDefault("-rt", Integer.toString(config.resolverTtl)));
+		config.resolverNegativeTtl = Integer.parseInt(params.getOrDefault("-rn", Integer.toString(config.resolverNegativeTtl)));
+		config.accessLog = params.getOrDefault("-al", config.accessLog);
+		config.accessLogBuffer = Integer.parseInt(params.getOrDefault("-ab", Integer.toString(config.accessLogBuffer)));
+		if (params.containsKey("-fc")){
+			config.fileCacheSize = Long.parseLong(params.get("-fc")) * 1024 * 1024;
+		}
+		if (params.containsKey("-gc")){
+			config.gzipCacheSize = Long.parseLong(params.get("-gc")) * 1024 * 1024;
+		}
+
+		if (!config.serverMode.equals(MODE_THREADED) && !config.serverMode.equals(MODE_NIO)){
+			throw new IllegalArgumentException("Unknown server mode: " + config.serverMode);
+		}
+		if (!config.executorMode.equals(EXECUTOR_FIXED) && !config.executorMode.equals(EXECUTOR_VIRTUAL)){
+			throw new IllegalArgumentException("Unknown executor mode: " + config.executorMode);
+		}
+		if (config.acceptors < 1 || config.eventLoops < 1 || config.poolSize < 1 || config.maxConnections < 1
+				|| config.maxKeepAliveRequests < 1){
+			throw new IllegalArgumentException("Number of acceptors, event loops, worker threads, "
+					+ "connections and requests per connection must be at least 1.");
+		}
+		if (config.maxConnectionsPerClient < 1 || config.acceptQueueSize < 1
+				|| config.queueTarget < 1 || config.queueInterval < 1){
+			throw new IllegalArgumentException("Connections per client, accept queue size, "
+					+ "queue target and queue interval must be at least 1.");
+		}
+		if (config.bulkThreshold < 0 || config.bulkThreads < 1 || config.maxBulkTransfers < 1){
+			throw new IllegalArgumentException("Bulk threshold can not be negative, and bulk threads "
+					+ "and bulk transfers must be at least 1.");
+		}
+		if (config.fileCacheSize < 0 || config.gzipCacheSize < 0 || config.proxyCacheSize < 0){
+			throw new IllegalArgumentException("Cache sizes can not be negative.");
+		}
+		if (config.maxRequestHeaderSize < 64 || config.maxRequestHeaders < 1){
+			throw new IllegalArgumentException("Request header size must be at least 64 bytes "
+					+ "and the number of header fields at least 1.");
+		}
+		if (config.upstreamMaxIdle < 0 || config.upstreamMaxPerHost < 1 || config.upstreamIdleTimeout < 1){
+			throw new IllegalArgumentException("Idle connections per host can not be negative, and connections "
+					+ "per host and the idle timeout must be at least 1.");
+		}
+		if (config.resolverCacheSize < 1 || config.resolverTtl < 0 || config.resolverNegativeTtl < 0){
+			throw new IllegalArgumentException("Host resolver cache size must be at least 1 "
+					+ "and its time to live can not be negative.");
+		}
+		if (config.accessLogBuffer < 1 || config.accessLogBuffer > 1 << 24){
+			throw new IllegalArgumentException("Access log buffer must hold between 1 and 16777216 records.");
+		}
+		if (config.keepAliveTimeout < 1 || config.relayIdleTimeout < 1 || config.bulkWriteTimeout < 1){
+			throw new IllegalArgumentException("Keep alive, relay and bulk write timeouts must be at least 1 millisecond.");
+		}
+
+		return config;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * ServerContext Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * State shared by every connection of a server: its configuration and the
+ * caches used while serving requests, and the metrics recorded while
+ * serving them. One context is made per server and
+ * handed to each Worker or NioConnection. The server calls start() before
+ * accepting connections and close() once it has stopped.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ServerContext {
+
+	// Server configuration.
+	final ServerConfig config;
+	// Contents of recently requested files.
+	final FileCache fileCache;
+	// Files compressed on the fly.
+	final GzipCache gzipCache;
+	// Metadata of requested files.
+	final FileIndex fileIndex;
+	// Responses cached in Proxy Server mode, null if the proxy cache is disabled
+	// or its directory could not be locked by start(), which runs before any
+	// connection is accepted.
+	ProxyCache proxyCache;
+	// Cached host name lookups.
+	final HostResolver resolver;
+	// Connections to hosts kept open in Proxy Server mode.
+	final UpstreamPool upstreamPool;
+	// Live counters and latencies.
+	final ServerMetrics metrics;
+	// Log of requests and errors.
+	final AccessLog accessLog;
+	// Pool that sends large responses in MODE_THREADED.
+	final BulkTransfers bulkTransfers;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param config	The server configuration.
+	 */
+	public ServerContext(ServerConfig config){
+		this.config = config;
+		this.fileCache = new FileCache(config.fileCacheSize);
+		this.gzipCache = new GzipCache(config.gzipCacheSize);
+		this.fileIndex = new FileIndex(System.getProperty("user.dir"));
+		this.proxyCache = config.proxyCacheSize > 0
+				? new ProxyCache(new File(config.proxyCacheDir), config.proxyCacheSize) : null;
+		this.resolver = new HostResolver(config.resolverCacheSize, config.resolverTtl,
+				config.resolverNegativeTtl);
+		this.upstreamPool = new UpstreamPool(resolver, config.upstreamMaxIdle, config.upstreamMaxPerHost,
+				config.upstreamIdleTimeout);
+		this.metrics = new ServerMetrics(fileCache, gzipCache, proxyCache);
+		this.accessLog = new AccessLog(config.accessLog, config.accessLogBuffer);
+		this.bulkTransfers = new BulkTransfers(config.bulkThreshold, config.bulkThreads, config.maxBulkTransfers,
+				config.bulkWriteTimeout);
+	}
+
+	/**
+	 * Starts the background services of the shared caches and the access
+	 * log, and registers the metrics with JMX. From then on error reports
+	 * go through the access log.
+	 */
+	void start(){
+		try {
+			accessLog.start();
+			UsefulHelpers.setLog(accessLog);
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not open the access log, requests are not logged.");
+		}
+		metrics.register(config.port);
+		fileIndex.start();
+		upstreamPool.start();
+		if (proxyCache != null && !proxyCache.load()){
+			// The proxy runs without a cache, the directory is not safe to use.
+			proxyCache = null;
+		}
+	}
+
+	/**
+	 * Stops the background services of the shared caches, and writes out
+	 * and closes the access log.
+	 */
+	void close(){
+		metrics.unregister();
+		bulkTransfers.close();
+		fileIndex.close();
+		upstreamPool.close();
+		resolver.close();
+		if (proxyCache != null){
+			proxyCache.close();
+		}
+		UsefulHelpers.removeLog(accessLog);
+		accessLog.close();
+	}
+
+	/**
+	 * Prints the statistics of the server.
+	 */
+	void printStatistics(){
+		System.out.println(statistics());
+	}
+
+	/**
+	 * @return	The metrics and the statistics of the shared caches, one
+	 *			line each. This is also the body of the status page.
+	 */
+	String statistics(){
+		StringBuilder text = new StringBuilder();
+		text.append(metrics).append('\n');
+		text.append(fileCache).append('\n');
+		text.append(gzipCache).append('\n');
+		if (proxyCache != null){
+			text.append(proxyCache).append('\n');
+		}
+		text.append(resolver).append('\n');
+		text.append(upstreamPool).append('\n');
+		if (config.serverMode.equals(ServerConfig.MODE_THREADED)){
+			text.append(bulkTransfers).append('\n');
+		}
+		text.append(accessLog);
+		return text.toString();
+	}
+}
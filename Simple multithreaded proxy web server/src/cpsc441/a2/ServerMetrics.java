@@ -0,0 +1,339 @@
+/**
+ * ServerMetrics Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Live counters of a server, shared by all its connections: requests per
+ * mode, response status codes, bytes read and written, active and queued
+ * connections, the hit ratios of the caches, and latency histograms for
+ * parsing the request header, the time to the first byte of the response
+ * and the whole request. Latencies are measured from the first byte of the
+ * request, so the time a persistent connection waits between requests is
+ * not counted.
+ *
+ * Status codes, bytes written and latencies after parsing are recorded for
+ * responses the server makes itself: Web Server mode responses and error
+ * responses. Responses relayed from a host in Proxy Server mode are only
+ * counted as requests.
+ *
+ * Every counter is a LongAdder, so recording never takes a lock and
+ * connections on different threads do not contend. The metrics are served
+ * as text on the reserved STATUS_PATH of Web Server mode, and registered
+ * with the platform MBean server as cpsc441.a2:type=ServerMetrics,port=N.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+class ServerMetrics implements ServerMetricsMBean {
+
+	// Path of the status page in Web Server mode, never served from a file.
+	static final String STATUS_PATH = "/__status";
+
+	// Lowest and highest status codes counted.
+	private static final int MIN_STATUS = 100;
+	private static final int MAX_STATUS = 599;
+
+	// Caches whose hit ratios are reported, proxyCache may be null.
+	private final FileCache fileCache;
+	private final GzipCache gzipCache;
+	private final ProxyCache proxyCache;
+	private final long startTime = System.currentTimeMillis();
+
+	// Requests per mode.
+	private final LongAdder webRequests = new LongAdder();
+	private final LongAdder proxyRequests = new LongAdder();
+	private final LongAdder tunnelRequests = new LongAdder();
+	// Responses per status code, indexed from MIN_STATUS.
+	private final LongAdder[] statuses = new LongAdder[MAX_STATUS - MIN_STATUS + 1];
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder queuedConnections = new LongAdder();
+
+	// Latencies.
+	private final LatencyHistogram parseTime = new LatencyHistogram("parse time");
+	private final LatencyHistogram firstByteTime = new LatencyHistogram("first byte time");
+	private final LatencyHistogram requestTime = new LatencyHistogram("request time");
+
+	// Name the metrics are registered under, null if they are not registered.
+	private ObjectName name = null;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileCache		Cache of file contents.
+	 * @param gzipCache		Cache of files compressed on the fly.
+	 * @param proxyCache	Proxy cache, null if it is disabled.
+	 */
+	ServerMetrics(FileCache fileCache, GzipCache gzipCache, ProxyCache proxyCache){
+		this.fileCache = fileCache;
+		this.gzipCache = gzipCache;
+		this.proxyCache = proxyCache;
+		for (int i = 0; i < statuses.length; i++){
+			statuses[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 *
+	 * @param port	Port of the server, used to tell servers in the same
+	 *				process apart.
+	 */
+	synchronized void register(int port){
+		try {
+			ObjectName objectName = new ObjectName("cpsc441.a2:type=ServerMetrics,port=" + port);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new StandardMBean(this, ServerMetricsMBean.class), objectName);
+			name = objectName;
+		} catch (JMException e){
+			UsefulHelpers.handleException(e, "Could not register the server metrics with JMX.");
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 */
+	synchronized void unregister(){
+		if (name == null){
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e){
+			UsefulHelpers.handleException(e, "Could not unregister the server metrics from JMX.");
+		}
+		name = null;
+	}
+
+	/**
+	 * @param target	Target of a Web Server mode request.
+	 * @return			True if the request is for the status page.
+	 */
+	static boolean isStatusRequest(String target){
+		return target.equals(STATUS_PATH) || target.startsWith(STATUS_PATH + "?");
+	}
+
+	void connectionOpened(){
+		activeConnections.increment();
+	}
+
+	void connectionClosed(){
+		activeConnections.decrement();
+	}
+
+	void connectionQueued(){
+		queuedConnections.increment();
+	}
+
+	void connectionDequeued(){
+		queuedConnections.decrement();
+	}
+
+	void webRequest(){
+		webRequests.increment();
+	}
+
+	void proxyRequest(){
+		proxyRequests.increment();
+	}
+
+	void tunnelRequest(){
+		tunnelRequests.increment();
+	}
+
+	/**
+	 * @param count	Number of bytes read from a client.
+	 */
+	void bytesIn(long count){
+		bytesIn.add(count);
+	}
+
+	/**
+	 * Records that a request header has been parsed.
+	 *
+	 * @param start	Time the first byte of the request arrived, from
+	 *				System.nanoTime(), 0 if it is not known.
+	 * @param now	Time the header was parsed, from System.nanoTime().
+	 */
+	void requestParsed(long start, long now){
+		parseTime.record(start, now);
+	}
+
+	/**
+	 * Records that the first byte of a response is being sent.
+	 *
+	 * @param start	Time the first byte of the request arrived, 0 if it is not known.
+	 * @param now	Time the response started to be sent.
+	 */
+	void responseStarted(long start, long now){
+		firstByteTime.record(start, now);
+	}
+
+	/**
+	 * Records a response the server has sent.
+	 *
+	 * @param status	Status code of the response.
+	 * @param length	Number of bytes sent, header included.
+	 * @param start		Time the first byte of the request arrived, 0 if it is not known.
+	 * @param now		Time the response was sent.
+	 */
+	void responseSent(int status, long length, long start, long now){
+		if (status >= MIN_STATUS && status <= MAX_STATUS){
+			statuses[status - MIN_STATUS].increment();
+		}
+		bytesOut.add(length);
+		requestTime.record(start, now);
+	}
+
+	public long getWebRequests(){
+		return webRequests.sum();
+	}
+
+	public long getProxyRequests(){
+		return proxyRequests.sum();
+	}
+
+	public long getTunnelRequests(){
+		return tunnelRequests.sum();
+	}
+
+	public long getResponses2xx(){
+		return statusClass(2);
+	}
+
+	public long getResponses3xx(){
+		return statusClass(3);
+	}
+
+	public long getResponses4xx(){
+		return statusClass(4);
+	}
+
+	public long getResponses5xx(){
+		return statusClass(5);
+	}
+
+	public long getBytesIn(){
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut(){
+		return bytesOut.sum();
+	}
+
+	public long getActiveConnections(){
+		return activeConnections.sum();
+	}
+
+	public long getQueuedConnections(){
+		return queuedConnections.sum();
+	}
+
+	public double getFileCacheHitRatio(){
+		return ratio(fileCache.hits(), fileCache.misses());
+	}
+
+	public double getGzipCacheHitRatio(){
+		return ratio(gzipCache.hits(), gzipCache.misses());
+	}
+
+	public double getProxyCacheHitRatio(){
+		return proxyCache == null ? 0 : ratio(proxyCache.hits(), proxyCache.misses());
+	}
+
+	public long getParseTime50thPercentile(){
+		return parseTime.percentile(50);
+	}
+
+	public long getParseTime99thPercentile(){
+		return parseTime.percentile(99);
+	}
+
+	public long getFirstByteTime50thPercentile(){
+		return firstByteTime.percentile(50);
+	}
+
+	public long getFirstByteTime99thPercentile(){
+		return firstByteTime.percentile(99);
+	}
+
+	public long getRequestTime50thPercentile(){
+		return requestTime.percentile(50);
+	}
+
+	public long getRequestTime99thPercentile(){
+		return requestTime.percentile(99);
+	}
+
+	public long getRequestTime999thPercentile(){
+		return requestTime.percentile(99.9);
+	}
+
+	public long getRequestTimeMax(){
+		return requestTime.max();
+	}
+
+	/**
+	 * @return	Summary of the metrics, one line per group.
+	 */
+	public String toString(){
+		StringBuilder text = new StringBuilder();
+		text.append("uptime: ").append((System.currentTimeMillis() - startTime) / 1000).append(" seconds\n");
+		text.append("connections: ").append(getActiveConnections()).append(" active, ")
+				.append(getQueuedConnections()).append(" queued\n");
+		text.append("requests: ").append(getWebRequests()).append(" web, ").append(getProxyRequests())
+				.append(" proxy, ").append(getTunnelRequests()).append(" tunnel\n");
+		text.append("responses:");
+		for (int i = 0; i < statuses.length; i++){
+			long count = statuses[i].sum();
+			if (count > 0){
+				text.append(' ').append(MIN_STATUS + i).append(' ').append(count).append(',');
+			}
+		}
+		if (text.charAt(text.length() - 1) == ','){
+			text.setLength(text.length() - 1);
+		} else {
+			text.append(" none");
+		}
+		text.append('\n');
+		text.append("bytes: ").append(getBytesIn()).append(" in, ").append(getBytesOut()).append(" out\n");
+		text.append("cache hit ratios: file ").append(percent(getFileCacheHitRatio()))
+				.append(", gzip ").append(percent(getGzipCacheHitRatio()));
+		if (proxyCache != null){
+			text.append(", proxy ").append(percent(getProxyCacheHitRatio()));
+		}
+		text.append('\n');
+		text.append(parseTime).append('\n');
+		text.append(firstByteTime).append('\n');
+		text.append(requestTime);
+		return text.toString();
+	}
+
+	// Sums the responses with status codes starting with the digit.
+	private long statusClass(int digit){
+		long count = 0;
+		for (int i = digit * 100 - MIN_STATUS; i < (digit + 1) * 100 - MIN_STATUS; i++){
+			count += statuses[i].sum();
+		}
+		return count;
+	}
+
+	private static double ratio(long hits, long misses){
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	private static String percent(double ratio){
+		return String.format("%.1f%%", ratio * 100);
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * ServerMetricsMBean Interface
+ *
+ * @author 	Zachary Kahn
+ *
+ * Management interface of ServerMetrics, exposed through JMX so the
+ * counters of a running server can be watched with jconsole or any other
+ * JMX client. Latencies are in microseconds.
+ *
+ */
+
+package cpsc441.a2;
+
+public interface ServerMetricsMBean {
+
+	long getWebRequests();
+
+	long getProxyRequests();
+
+	long getTunnelRequests();
+
+	long getResponses2xx();
+
+	long getResponses3xx();
+
+	long getResponses4xx();
+
+	long getResponses5xx();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getActiveConnections();
+
+	long getQueuedConnections();
+
+	double getFileCacheHitRatio();
+
+	double getGzipCacheHitRatio();
+
+	double getProxyCacheHitRatio();
+
+	long getParseTime50thPercentile();
+
+	long getParseTime99thPercentile();
+
+	long getFirstByteTime50thPercentile();
+
+	long getFirstByteTime99thPercentile();
+
+	long getRequestTime50thPercentile();
+
+	long getRequestTime99thPercentile();
+
+	long getRequestTime999thPercentile();
+
+	long getRequestTimeMax();
+}
@@ -0,0 +1,365 @@
+/**
+ * UpstreamConnection Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * A connection from the proxy to a host, as handed out by the UpstreamPool.
+ * Responses are read with HTTP/1.1 message framing: the body ends after
+ * Content-Length bytes or after the last chunk of a chunked body, instead
+ * of when the host closes the connection, so the connection can be used
+ * again for the next request. Only responses without either are read until
+ * the host closes the connection.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class UpstreamConnection {
+
+	// Initial size of the buffer, it grows to fit large response headers.
+	private static final int BUFFER_SIZE = 16000;
+	// Longest line in a chunked body, such as a chunk size with extensions.
+	private static final int MAX_LINE_SIZE = 4096;
+
+	// Host and port the connection was opened to.
+	final InetSocketAddress origin;
+	private final SocketChannel channel;
+	final OutputStream out;
+	private final InputStream in;
+
+	// Bytes received from the host. Bytes before pos have been handled.
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	// Used to check if an idle connection is still open.
+	private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+	// Header of the response being read.
+	ResponseHeader header = null;
+	// True if the connection was taken from the pool rather than just opened.
+	boolean reused = false;
+	// True once any part of a response has been received on this use.
+	boolean responded = false;
+	// Bytes of the current response sent to the client, header included.
+	long relayed = 0;
+	// When the connection was put back in the pool.
+	long idleSince = 0;
+	// Pool entry of the host the connection was handed out from.
+	UpstreamPool.Host host = null;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param origin	Host and port of the connection.
+	 * @param channel	The connected, blocking socket channel.
+	 * @throws IOException	If the streams of the socket can not be opened.
+	 */
+	private UpstreamConnection(InetSocketAddress origin, SocketChannel channel) throws IOException {
+		this.origin = origin;
+		this.channel = channel;
+		this.out = new BufferedOutputStream(channel.socket().getOutputStream());
+		this.in = channel.socket().getInputStream();
+	}
+
+	/**
+	 * Opens a new connection to a host.
+	 *
+	 * @param origin	Host and port to connect to.
+	 * @param resolver	Looks up the address of the host.
+	 * @return			The new connection.
+	 * @throws IOException	If the host can not be found or the connection
+	 *						can not be made.
+	 */
+	static UpstreamConnection open(InetSocketAddress origin, HostResolver resolver) throws IOException {
+		RequestEvents.Resolve resolveEvent = new RequestEvents.Resolve();
+		resolveEvent.begin();
+		InetAddress address = HostResolver.await(resolver.lookup(origin.getHostString()))[0];
+		resolveEvent.mode = "proxy";
+		resolveEvent.host = origin.getHostString();
+		resolveEvent.commit();
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().setTcpNoDelay(true);
+			RequestEvents.Connect connectEvent = new RequestEvents.Connect();
+			connectEvent.begin();
+			channel.connect(new InetSocketAddress(address, origin.getPort()));
+			connectEvent.mode = "proxy";
+			connectEvent.host = origin.getHostString();
+			connectEvent.commit();
+			return new UpstreamConnection(origin, channel);
+		} catch (IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that an idle connection has not been closed by the host. The
+	 * host should not send anything between responses, so any data or end
+	 * of stream means the connection can not be used again.
+	 *
+	 * @return	True if the connection can be used for another request.
+	 */
+	boolean isOpen(){
+		try {
+			channel.configureBlocking(false);
+			probe.clear();
+			int read = channel.read(probe);
+			channel.configureBlocking(true);
+			return read == 0;
+		} catch (IOException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the header of the next response. Interim 1xx responses, such as
+	 * 100 Continue, are passed on to the client and skipped.
+	 *
+	 * @param client	Client output stream interim responses are sent to.
+	 * @return			The header of the final response, or null if the host
+	 *					closed the connection before sending anything.
+	 * @throws IOException	If reading fails, the host closed the connection
+	 *						part way through, or the header is malformed.
+	 */
+	ResponseHeader readHeader(OutputStream client) throws IOException {
+		responded = false;
+		relayed = 0;
+		while (true){
+			header = null;
+			compact();
+			while ((header = parseHeader()) == null){
+				if (limit == buffer.length){
+					if (buffer.length >= ProxyCache.MAX_HEADER_SIZE){
+						throw new IOException("Response header from the host is too large.");
+					}
+					buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, ProxyCache.MAX_HEADER_SIZE));
+				}
+				int read = in.read(buffer, limit, buffer.length - limit);
+				if (read == -1){
+					if (limit == 0){
+						return null;
+					}
+					throw new EOFException("Host closed the connection part way through the response header.");
+				}
+				limit += read;
+				responded = true;
+			}
+			pos = header.length;
+
+			if (header.status / 100 != 1 || header.status == 101){
+				return header;
+			}
+			// Pass the interim response on and wait for the final one.
+			client.write(buffer, 0, header.length);
+			relayed += header.length;
+		}
+	}
+
+	/**
+	 * Sends the header that was just read to the client. The client
+	 * connection is closed after a relayed response, so the header says
+	 * Connection: close in place of the hop-by-hop fields of the host. A
+	 * 101 Switching Protocols header is sent exactly as it was received.
+	 *
+	 * @param client	Client output stream.
+	 * @throws IOException	If writing to the client fails.
+	 */
+	void writeHeader(OutputStream client) throws IOException {
+		if (header.status == 101){
+			client.write(buffer, 0, header.length);
+			relayed += header.length;
+			return;
+		}
+		byte[] rewritten = ProxyCache.relayedHeader(header);
+		client.write(rewritten);
+		relayed += rewritten.length;
+	}
+
+	/**
+	 * Relays the body of the response whose header was just read.
+	 *
+	 * @param headRequest	True if the request was a HEAD request, whose
+	 *						response never has a body.
+	 * @param client		Client output stream the body is sent to.
+	 * @param store			Proxy cache store that gets a copy of the body, or null.
+	 * @return				True if the connection can be used for another request.
+	 * @throws IOException	If reading or writing fails, or the host closed the
+	 *						connection before the whole body was received.
+	 */
+	boolean relayBody(boolean headRequest, OutputStream client, ProxyCache.Store store) throws IOException {
+		int status = header.status;
+		// The connection is only used again if the host keeps it open and
+		// sent nothing after the end of the response.
+		boolean keepAlive = header.statusLine.startsWith("HTTP/1.1")
+				&& !ResponseHeader.hasDirective(header.getAll("Connection"), "close");
+
+		if (status == 101){
+			// The connection no longer speaks HTTP.
+			relayToEnd(client, store);
+			return false;
+		}
+		if (headRequest || status == 204 || status == 304){
+			return keepAlive && pos == limit;
+		}
+
+		String transferEncoding = header.getAll("Transfer-Encoding");
+		if (!transferEncoding.isEmpty()){
+			if (transferEncoding.toLowerCase().endsWith("chunked")){
+				relayChunked(client, store);
+				return keepAlive && pos == limit;
+			}
+			relayToEnd(client, store);
+			return false;
+		}
+
+		String contentLength = header.get("Content-Length");
+		if (contentLength != null){
+			long length;
+			try {
+				length = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e){
+				throw new IOException("Invalid Content-Length from the host: " + contentLength);
+			}
+			relay(length, client, store);
+			return keepAlive && pos == limit;
+		}
+
+		relayToEnd(client, store);
+		return false;
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	void close(){
+		try {
+			channel.close();
+		} catch (IOException e){
+			// Ok, ignore
+		}
+	}
+
+	// Relays a chunked body, including the chunk sizes and trailer, as received.
+	private void relayChunked(OutputStream client, ProxyCache.Store store) throws IOException {
+		while (true){
+			String sizeLine = relayLine(client, store);
+			int extensions = sizeLine.indexOf(';');
+			String size = (extensions == -1 ? sizeLine : sizeLine.substring(0, extensions)).trim();
+			long chunkSize;
+			try {
+				chunkSize = Long.parseLong(size, 16);
+			} catch (NumberFormatException e){
+				throw new IOException("Invalid chunk size from the host: " + sizeLine);
+			}
+
+			if (chunkSize == 0){
+				// Relay the trailer, which ends with an empty line.
+				while (!relayLine(client, store).isEmpty()){
+					// Keep relaying trailer fields.
+				}
+				return;
+			}
+			// Chunk data followed by \r\n.
+			relay(chunkSize + 2, client, store);
+		}
+	}
+
+	// Relays one line and returns it without the line ending.
+	private String relayLine(OutputStream client, ProxyCache.Store store) throws IOException {
+		int searched = pos;
+		while (true){
+			for (int i = searched; i < limit; i++){
+				if (buffer[i] == '\n'){
+					int end = i > pos && buffer[i - 1] == '\r' ? i - 1 : i;
+					String line = new String(buffer, pos, end - pos, StandardCharsets.ISO_8859_1);
+					relay(i + 1 - pos, client, store);
+					return line;
+				}
+			}
+			if (limit - pos >= MAX_LINE_SIZE){
+				throw new IOException("Line in chunked body from the host is too long.");
+			}
+			searched = limit - pos;
+			compact();
+			if (fill() == -1){
+				throw new EOFException("Host closed the connection part way through a chunked body.");
+			}
+		}
+	}
+
+	// Relays exactly length bytes.
+	private void relay(long length, OutputStream client, ProxyCache.Store store) throws IOException {
+		while (length > 0){
+			if (pos == limit){
+				pos = 0;
+				limit = 0;
+				if (fill() == -1){
+					throw new EOFException("Host closed the connection before the whole body was received.");
+				}
+			}
+			int count = (int) Math.min(length, limit - pos);
+			client.write(buffer, pos, count);
+			relayed += count;
+			if (store != null){
+				store.write(buffer, pos, count);
+			}
+			pos += count;
+			length -= count;
+		}
+	}
+
+	// Relays everything until the host closes the connection.
+	private void relayToEnd(OutputStream client, ProxyCache.Store store) throws IOException {
+		while (true){
+			if (pos < limit){
+				client.write(buffer, pos, limit - pos);
+				relayed += limit - pos;
+				if (store != null){
+					store.write(buffer, pos, limit - pos);
+				}
+			}
+			pos = 0;
+			limit = 0;
+			if (fill() == -1){
+				return;
+			}
+		}
+	}
+
+	// Reads more bytes into the free end of the buffer.
+	private int fill() throws IOException {
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read > 0){
+			limit += read;
+		}
+		return read;
+	}
+
+	// Moves the bytes not handled yet to the start of the buffer.
+	private void compact(){
+		if (pos > 0){
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+	}
+
+	// Parses the response header at the start of the buffer.
+	private ResponseHeader parseHeader() throws IOException {
+		try {
+			return ResponseHeader.parse(buffer, limit);
+		} catch (IllegalArgumentException e){
+			throw new IOException("Malformed response header from the host: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * UpstreamPool Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Keeps connections from the proxy to hosts open between requests, so a
+ * proxied request does not pay for a TCP handshake (and DNS lookup) every
+ * time. Connections are pooled per host and port.
+ *
+ * At most maxPerHost connections to one host are in use at a time, further
+ * requests wait for one to be released. At most maxIdlePerHost connections
+ * per host are kept open while idle, and a background thread closes the ones
+ * that have been idle for longer than idleTimeout. An idle connection is
+ * checked before it is used again, since the host may have closed it.
+ *
+ * A request reserves its host in the same atomic step that looks it up in
+ * the map, and keeps the reservation until it releases its connection, so
+ * the background thread can only drop a host nobody is using or waiting
+ * for. Every request for a host therefore takes its permit from the same
+ * Semaphore, and no more than maxPerHost connections are ever in use.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class UpstreamPool implements Runnable {
+
+	// How long a request waits for a connection to a busy host.
+	private static final int ACQUIRE_TIMEOUT = 10000; // 10 seconds
+	// How often idle connections are checked for eviction.
+	private static final int EVICTION_INTERVAL = 1000; // 1 second
+
+	// Connections of one host.
+	static class Host {
+		// Idle connections, most recently used last. Guarded by the host.
+		final ArrayDeque<UpstreamConnection> idle = new ArrayDeque<UpstreamConnection>();
+		// Connections that may still be handed out.
+		final Semaphore permits;
+		// Requests holding or waiting for a permit, only changed inside
+		// hosts.compute() so it is updated atomically with the map.
+		int users = 0;
+
+		Host(int maxPerHost){
+			this.permits = new Semaphore(maxPerHost);
+		}
+	}
+
+	private final HostResolver resolver;
+	private final int maxIdlePerHost;
+	private final int maxPerHost;
+	private final int idleTimeout;
+	private final ConcurrentHashMap<InetSocketAddress, Host> hosts = new ConcurrentHashMap<InetSocketAddress, Host>();
+
+	private Thread evictionThread = null;
+	private volatile boolean shutdown = false;
+
+	// Counters.
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param resolver			Looks up the addresses of hosts.
+	 * @param maxIdlePerHost	Maximum number of idle connections kept per host, 0 disables pooling.
+	 * @param maxPerHost		Maximum number of connections in use per host.
+	 * @param idleTimeout		How long an idle connection is kept, in milliseconds.
+	 */
+	UpstreamPool(HostResolver resolver, int maxIdlePerHost, int maxPerHost, int idleTimeout){
+		this.resolver = resolver;
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Starts the thread that closes connections that have been idle for too long.
+	 */
+	synchronized void start(){
+		if (evictionThread != null || maxIdlePerHost == 0){
+			return;
+		}
+		evictionThread = new Thread(this, "upstream-pool-evictor");
+		evictionThread.setDaemon(true);
+		evictionThread.start();
+	}
+
+	/**
+	 * Stops the eviction thread and closes every idle connection.
+	 */
+	synchronized void close(){
+		shutdown = true;
+		if (evictionThread != null){
+			evictionThread.interrupt();
+		}
+		for (Host host : hosts.values()){
+			synchronized (host){
+				for (UpstreamConnection connection : host.idle){
+					connection.close();
+				}
+				host.idle.clear();
+			}
+		}
+	}
+
+	/**
+	 * Gets a connection to a host, reusing an idle one if possible. The
+	 * connection must be given back with release().
+	 *
+	 * @param origin		Host and port to connect to.
+	 * @param allowReuse	False if a new connection must be opened, for
+	 *						requests that can not be sent again if an idle
+	 *						connection turns out to have been closed.
+	 * @return				A connection to the host.
+	 * @throws IOException	If no connection could be made or the host has
+	 *						too many connections in use.
+	 */
+	UpstreamConnection acquire(InetSocketAddress origin, boolean allowReuse) throws IOException {
+		Host host = hosts.compute(origin, (key, current) -> {
+			Host reserved = current != null ? current : new Host(maxPerHost);
+			reserved.users++;
+			return reserved;
+		});
+		try {
+			if (!host.permits.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)){
+				unreserve(origin);
+				throw new IOException("Too many connections in use to " + origin);
+			}
+		} catch (InterruptedException e){
+			unreserve(origin);
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + origin);
+		}
+
+		try {
+			if (allowReuse){
+				UpstreamConnection connection;
+				while ((connection = pollIdle(host)) != null){
+					if (System.currentTimeMillis() - connection.idleSince < idleTimeout && connection.isOpen()){
+						connection.host = host;
+						connection.reused = true;
+						reused.increment();
+						return connection;
+					}
+					// The host has closed the connection, or is about to.
+					stale.increment();
+					connection.close();
+				}
+			}
+
+			UpstreamConnection connection = UpstreamConnection.open(origin, resolver);
+			connection.host = host;
+			opened.increment();
+			return connection;
+		} catch (IOException | RuntimeException e){
+			host.permits.release();
+			unreserve(origin);
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a connection from acquire().
+	 *
+	 * @param connection	The connection.
+	 * @param reusable		True if the whole response was read and the host
+	 *						keeps the connection open.
+	 */
+	void release(UpstreamConnection connection, boolean reusable){
+		// The host the permit was taken from, which stays in the map until
+		// it is unreserved.
+		Host host = connection.host;
+		InetSocketAddress origin = connection.origin;
+		if (reusable && !shutdown){
+			connection.reused = false;
+			connection.idleSince = System.currentTimeMillis();
+			synchronized (host){
+				if (host.idle.size() < maxIdlePerHost){
+					host.idle.addLast(connection);
+					connection = null;
+				}
+			}
+		}
+		if (connection != null){
+			connection.close();
+		}
+		host.permits.release();
+		unreserve(origin);
+	}
+
+	// Ends the reservation of a host made by acquire().
+	private void unreserve(InetSocketAddress origin){
+		hosts.computeIfPresent(origin, (key, host) -> {
+			host.users--;
+			return host;
+		});
+	}
+
+	/**
+	 * Closes connections that have been idle for too long, once a second.
+	 */
+	public void run(){
+		while (!shutdown){
+			try {
+				Thread.sleep(EVICTION_INTERVAL);
+			} catch (InterruptedException e){
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			for (InetSocketAddress origin : hosts.keySet()){
+				hosts.computeIfPresent(origin, (key, host) -> {
+					synchronized (host){
+						// The oldest connections are at the front.
+						while (!host.idle.isEmpty() && now - host.idle.peekFirst().idleSince >= idleTimeout){
+							host.idle.pollFirst().close();
+							evicted.increment();
+						}
+						// Drop the host once nothing is left for it. No request
+						// can reserve it while this runs.
+						return host.idle.isEmpty() && host.users == 0 ? null : host;
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @return	Summary of the pool counters.
+	 */
+	public String toString(){
+		return "upstream pool: " + opened.sum() + " opened, " + reused.sum() + " reused, "
+				+ stale.sum() + " stale, " + evicted.sum() + " evicted";
+	}
+
+	// Takes the most recently used idle connection of a host.
+	private UpstreamConnection pollIdle(Host host){
+		synchronized (host){
+			return host.idle.pollLast();
+		}
+	}
+}
@@ -14,6 +14,10 @@ import java.util.HashMap;
 
 public class UsefulHelpers {
 
+	// Access log of the running server, which error reports are written
+	// through. Null to print them straight away.
+	private static volatile AccessLog log = null;
+
 	/**
 	 * Print out the contents of an exception with a detailed message about
 	 * the exception as well as other information provided by the exception itself.
@@ -22,12 +26,49 @@ public class UsefulHelpers {
 	 */
 	public static void handleException(Exception e, String details){
 		// Print out the details of the error.
-		System.out.println(details);
+		StringBuilder text = new StringBuilder(details);
 		if (e != null){
-			System.out.println("Error message: " + e.getMessage());
+			text.append("\nError message: ").append(e.getMessage());
 		}
 		// Terminate the worker.
-		System.out.println("Terminating worker.");
+		text.append("\nTerminating worker.");
+		log(text.toString());
+	}
+
+	/**
+	 * Reports a message through the access log of the running server, or
+	 * prints it if there is none.
+	 *
+	 * @param text	The message, which may span several lines.
+	 */
+	static void log(String text){
+		AccessLog accessLog = log;
+		if (accessLog != null){
+			accessLog.error(text);
+		} else {
+			System.out.println(text);
+		}
+	}
+
+	/**
+	 * Sends error reports through an access log from now on.
+	 *
+	 * @param accessLog	The access log.
+	 */
+	static void setLog(AccessLog accessLog){
+		log = accessLog;
+	}
+
+	/**
+	 * Prints error reports straight away again, unless another access log
+	 * has been set since.
+	 *
+	 * @param accessLog	The access log that is being closed.
+	 */
+	static synchronized void removeLog(AccessLog accessLog){
+		if (log == accessLog){
+			log = null;
+		}
 	}
 
 	/**
@@ -99,13 +140,6 @@ public class UsefulHelpers {
 			}
 		}
 
-		// If the request does not contain connection close, add it.
-		if (!info.containsKey("Connection")){
-			info.put("Connection", "close");
-		} else if (!info.get("Connection").equals("close")){
-			info.replace("Connection", "close");
-		}
-
 		return info;
 
 	}
@@ -116,7 +150,7 @@ public class UsefulHelpers {
 	 * @param url
 	 * @return		Url with http:// or https:// prefix removed.
 	 */
-	private static String removeHTTPprefix(String url){
+	static String removeHTTPprefix(String url){
 		String strippedUrl = url;
 		// Remove http:// prefix
 		if(url.startsWith("http://")){
@@ -35,6 +35,18 @@ public class Utils {
 	}
 
 
+	/**
+	 * Checks if an IP address is an address of the local host
+	 *
+	 * @param ip	The address to compare against the local host
+	 * @return boolean Returns true, if ip is an address of the local host; false otherwise
+	 *
+	 */
+	public static boolean isLocalHost(InetAddress ip) {
+		return localAddresses.contains(ip);
+	}
+
+
 	/**
 	 * Returns the current date of the system
 	 *
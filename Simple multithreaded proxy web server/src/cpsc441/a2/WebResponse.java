@@ -0,0 +1,247 @@
+/**
+ * WebResponse Class
+ *
+ * @author 	Zachary Kahn
+ *
+ * Describes what a Web Server mode request should send back to the client:
+ * the response header and, for a 200 OK or 206 Partial Content response,
+ * the file and byte ranges that follow it. Keeping this separate from the
+ * I/O lets the threaded Worker and the NIO event loop share the same
+ * request handling logic.
+ *
+ * When several ranges are sent the body is multipart/byteranges: each range
+ * is preceded by a small part header naming it, and the body ends with a
+ * closing boundary. The part headers are kept in memory and the ranges are
+ * still sent straight from the file.
+ *
+ * A gzip or brotli encoded body is either a precompressed file next to the
+ * requested one, which is then the file sent, or a copy compressed on the
+ * fly and held in memory. The body of the status page is held in memory
+ * the same way.
+ *
+ */
+
+package cpsc441.a2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+class WebResponse {
+
+	// Response header, including the trailing \r\n\r\n. The buffer belongs
+	// to the HeaderWriter of the connection and is reused by the next response.
+	final ByteBuffer header;
+	// Metadata of the requested file, null for error responses.
+	final FileMeta meta;
+	// Ranges of the file to send, null when the whole file is sent.
+	final ByteRange[] ranges;
+	// Boundary between the parts of a multipart/byteranges body, null unless
+	// several ranges are sent.
+	final String boundary;
+	// False for HEAD requests.
+	final boolean sendBody;
+	// 1 if the connection is kept open after the response, 0 otherwise.
+	final int keepAlive;
+	// Body compressed on the fly, null if the body is sent from the file.
+	private final ByteBuffer encodedBody;
+	// Header of each part of a multipart/byteranges body.
+	private final byte[][] partHeaders;
+
+
+	/**
+	 * Constructor for error responses which only have a header, after
+	 * which the connection is closed.
+	 *
+	 * @param header	The response header.
+	 */
+	WebResponse(ByteBuffer header){
+		this(header, 0);
+	}
+
+	/**
+	 * Constructor for error responses which only have a header.
+	 *
+	 * @param header	The response header.
+	 * @param keepAlive	1 if the connection is kept open after the response.
+	 */
+	WebResponse(ByteBuffer header, int keepAlive){
+		this(header, null, null, null, false, keepAlive);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param header	The response header.
+	 * @param meta		Metadata of the requested file.
+	 * @param ranges	Ranges to send, null to send the whole file.
+	 * @param boundary	Multipart boundary, null unless several ranges are sent.
+	 * @param sendBody	True if the file contents follow the header.
+	 * @param keepAlive	1 if the connection is kept open after the response.
+	 */
+	WebResponse(ByteBuffer header, FileMeta meta, ByteRange[] ranges, String boundary,
+			boolean sendBody, int keepAlive){
+		this(header, meta, ranges, boundary, null, sendBody, keepAlive);
+	}
+
+	/**
+	 * Constructor for responses whose body was compressed on the fly.
+	 *
+	 * @param header		The response header.
+	 * @param meta			Metadata of the requested file, null for the status page.
+	 * @param encodedBody	The compressed body, or the status page.
+	 * @param sendBody		True if the body follows the header.
+	 * @param keepAlive		1 if the connection is kept open after the response.
+	 */
+	WebResponse(ByteBuffer header, FileMeta meta, ByteBuffer encodedBody, boolean sendBody, int keepAlive){
+		this(header, meta, null, null, encodedBody, sendBody, keepAlive);
+	}
+
+	private WebResponse(ByteBuffer header, FileMeta meta, ByteRange[] ranges, String boundary,
+			ByteBuffer encodedBody, boolean sendBody, int keepAlive){
+		this.header = header;
+		this.meta = meta;
+		this.ranges = ranges;
+		this.boundary = boundary;
+		this.encodedBody = encodedBody;
+		this.sendBody = sendBody;
+		this.keepAlive = keepAlive;
+		this.partHeaders = boundary == null ? null : partHeaders(meta, ranges, boundary);
+	}
+
+	/**
+	 * @return	True if the body is multipart/byteranges.
+	 */
+	boolean isMultipart(){
+		return boundary != null;
+	}
+
+	/**
+	 * @return	Position in the file of the first byte to send.
+	 */
+	long bodyStart(){
+		return ranges != null ? ranges[0].first : 0;
+	}
+
+	/**
+	 * @return	Number of file bytes to send after the header. For a
+	 *			multipart body this is only the first range.
+	 */
+	long bodyLength(){
+		if (!sendBody){
+			return 0;
+		}
+		if (encodedBody != null){
+			return encodedBody.remaining();
+		}
+		if (meta == null){
+			return 0;
+		}
+		if (ranges != null){
+			return ranges[0].length();
+		}
+		return meta.length;
+	}
+
+	/**
+	 * @return	Number of bytes in the whole response, header included. Must
+	 *			be called before the header is sent.
+	 */
+	long responseLength(){
+		if (partCount() > 0){
+			return header.remaining() + multipartLength(meta, ranges, boundary);
+		}
+		return header.remaining() + bodyLength();
+	}
+
+	/**
+	 * @return	Status code of the response, read from the status line.
+	 */
+	int status(){
+		return status(header);
+	}
+
+	/**
+	 * @param header	A response header starting with "HTTP/1.1 ".
+	 * @return			Status code of the response.
+	 */
+	static int status(ByteBuffer header){
+		int start = header.position() + 9;
+		return (header.get(start) - '0') * 100 + (header.get(start + 1) - '0') * 10
+				+ (header.get(start + 2) - '0');
+	}
+
+	/**
+	 * @return	The body compressed on the fly, or null if the body is sent
+	 *			from the file. The returned buffer can be consumed.
+	 */
+	ByteBuffer encodedBody(){
+		return encodedBody == null ? null : encodedBody.duplicate();
+	}
+
+	/**
+	 * @return	Number of parts of a multipart body, 0 if there is nothing to
+	 *			send or the body is not multipart.
+	 */
+	int partCount(){
+		return isMultipart() && sendBody ? ranges.length : 0;
+	}
+
+	/**
+	 * @param part	Index of the part.
+	 * @return		Header of a part of a multipart body, starting with the
+	 *				boundary.
+	 */
+	byte[] partHeader(int part){
+		return partHeaders[part];
+	}
+
+	/**
+	 * @return	Boundary that ends a multipart body.
+	 */
+	byte[] closingBoundary(){
+		return closingBoundary(boundary);
+	}
+
+	/**
+	 * @return	A new boundary for a multipart body. It is random so it is very
+	 *			unlikely to appear in the file.
+	 */
+	static String newBoundary(){
+		return "CPSC441-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+	}
+
+	/**
+	 * Works out the Content-Length of a multipart/byteranges body.
+	 *
+	 * @param meta		Metadata of the file.
+	 * @param ranges	Ranges sent.
+	 * @param boundary	Multipart boundary.
+	 * @return			Length of the body, including part headers and boundaries.
+	 */
+	static long multipartLength(FileMeta meta, ByteRange[] ranges, String boundary){
+		long length = closingBoundary(boundary).length;
+		byte[][] headers = partHeaders(meta, ranges, boundary);
+		for (int i = 0; i < ranges.length; i++){
+			length += headers[i].length + ranges[i].length();
+		}
+		return length;
+	}
+
+	// Renders the header of each part, which names the range it holds.
+	private static byte[][] partHeaders(FileMeta meta, ByteRange[] ranges, String boundary){
+		byte[][] headers = new byte[ranges.length][];
+		for (int i = 0; i < ranges.length; i++){
+			String header = "\r\n--" + boundary + "\r\n"
+					+ (meta.contentType != null ? "Content-Type: " + meta.contentType + "\r\n" : "")
+					+ "Content-Range: bytes " + ranges[i].first + "-" + ranges[i].last + "/" + meta.length
+					+ "\r\n\r\n";
+			headers[i] = header.getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return headers;
+	}
+
+	private static byte[] closingBoundary(String boundary){
+		return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
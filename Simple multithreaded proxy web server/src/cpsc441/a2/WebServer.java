@@ -5,7 +5,10 @@
  *
  * The main thread that listens for connection requests.
  * As new requests are accepted from a client, a new worker thread is made
- * to handle the connection.
+ * to handle the connection. AdmissionControl turns connections away with
+ * 503 Service Unavailable when the server is overloaded.
+ * With more than one acceptor, each listening socket (see Listeners) has
+ * its own thread accepting connections.
  *
  */
 
@@ -13,62 +16,95 @@ package cpsc441.a2;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.*;
 
 
 public class WebServer extends BasicWebServer {
 
-	private boolean shutdown = false;
-	private final int POOL_SIZE = 8;
+	private volatile boolean shutdown = false;
+	private final ServerConfig config;
+	private final ServerContext context;
+	// Decides which connections are handled.
+	private final AdmissionControl admission;
 
 	// Call the parent constructor
 	public WebServer(int port) {
 		super(port);
+		this.config = new ServerConfig();
+		this.config.port = port;
+		this.context = new ServerContext(config);
+		this.admission = new AdmissionControl(config, context.metrics);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param config	The server configuration.
+	 */
+	public WebServer(ServerConfig config) {
+		super(config.port);
+		this.config = config;
+		this.context = new ServerContext(config);
+		this.admission = new AdmissionControl(config, context.metrics);
 	}
 
 	// Start the server
 	public void run() {
 
-		// Server socket.
-		ServerSocket serverSocket = null;
+		// Server sockets.
+		ServerSocketChannel[] serverChannels = null;
 
 
 		try {
-			// Open the server socket.
-			serverSocket = new ServerSocket(serverPort);
-			// Set socket timeout.
-			serverSocket.setSoTimeout(1000);
+			// Open the server sockets. They are opened as ServerSocketChannels so
+			// that accepted sockets have a SocketChannel, which the workers use to
+			// send files with FileChannel.transferTo.
+			serverChannels = Listeners.open(serverPort, config.acceptors, 0);
+			for (ServerSocketChannel serverChannel : serverChannels){
+				// Set socket timeout.
+				serverChannel.socket().setSoTimeout(1000);
+			}
 		} catch (IOException ioe) {
 
 			UsefulHelpers.handleException(ioe, "IO Exception when trying to instantiate ServerSocket.");
+			return;
 
 		} catch (IllegalArgumentException e){
 			UsefulHelpers.handleException(e, "Port number is outside allowed range.");
+			return;
 		} catch (Exception e){
 			UsefulHelpers.handleException(e, "General Exception when trying to instantiate ServerSocket.");
+			return;
 		}
 
-		// Create POOL_SIZE threads to handle incoming requests.
-		ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+		context.start();
 
-		while (!shutdown){
-			try {
-				// Accept request.
-				Socket socket = serverSocket.accept();
+		// Create the executor that runs the workers.
+		ExecutorService executor = createExecutor();
 
-				// Let worker thread handle the request.
-				Worker worker = new Worker(socket);
-				executor.execute(worker);
-			} catch (SocketTimeoutException e){
-				// Used to allow process to check the shutdown status flag.
-			} catch (Exception e){
-				System.out.println("Error occurred while listening for "
-						+ "a connection to be made to the server socket.");
-			}
+		// Every listening socket but the first gets a thread of its own, this
+		// thread accepts on the first one.
+		Thread[] acceptors = new Thread[serverChannels.length - 1];
+		for (int i = 0; i < acceptors.length; i++){
+			ServerSocket serverSocket = serverChannels[i + 1].socket();
+			acceptors[i] = new Thread(() -> accept(serverSocket, executor), "acceptor-" + (i + 1));
+			acceptors[i].start();
 		}
+		accept(serverChannels[0].socket(), executor);
 
 		// --------------------------------------------------------- //
 
+		// Stop accepting connections.
+		try {
+			for (Thread acceptor : acceptors){
+				acceptor.join();
+			}
+		} catch (InterruptedException e){
+			// Ok, ignore
+		}
+		Listeners.closeAll(serverChannels);
+
 		// Shutdown the executor.
 		try {
 			// Do not accept any new tasks.
@@ -82,6 +118,12 @@ public class WebServer extends BasicWebServer {
 			executor.shutdownNow();
 		}
 
+		// Close first, so the access log has been written out before the statistics.
+		context.close();
+		admission.close();
+		context.printStatistics();
+		System.out.println(admission);
+
 		// --------------------------------------------------------- //
 	}
 
@@ -90,4 +132,59 @@ public class WebServer extends BasicWebServer {
 		shutdown = true;
 	}
 
+	/**
+	 * Accepts connections on a listening socket until the server is shut
+	 * down, handing each one to a worker.
+	 *
+	 * @param serverSocket	The listening socket, with a one second timeout.
+	 * @param executor		Executor that runs the workers.
+	 */
+	private void accept(ServerSocket serverSocket, ExecutorService executor){
+		while (!shutdown){
+			try {
+				// Accept request.
+				Socket socket = serverSocket.accept();
+
+				// Let worker thread handle the request, unless the server is too busy.
+				admission.submit(socket, new Worker(socket, context), executor);
+			} catch (SocketTimeoutException e){
+				// Used to allow process to check the shutdown status flag.
+			} catch (Exception e){
+				UsefulHelpers.log("Error occurred while listening for "
+						+ "a connection to be made to the server socket.");
+			}
+		}
+	}
+
+	/**
+	 * Creates the executor that runs the workers. In EXECUTOR_FIXED mode a
+	 * fixed pool of config.poolSize threads is used. In EXECUTOR_VIRTUAL mode
+	 * every worker runs on its own virtual thread, so blocking in a worker
+	 * (for example waiting on a slow host in Proxy Server mode) does not tie
+	 * up a carrier thread. Virtual threads need Java 21; on older runtimes a
+	 * thread per connection executor is used instead. Either way the number
+	 * of connections handled at once is bounded by config.maxConnections.
+	 * The queue of the fixed pool holds at most config.acceptQueueSize
+	 * connections, further ones are turned away by AdmissionControl.
+	 *
+	 * @return	The executor for the workers.
+	 */
+	private ExecutorService createExecutor(){
+		if (config.executorMode.equals(ServerConfig.EXECUTOR_VIRTUAL)){
+			try {
+				// Looked up reflectively so the server still builds on older runtimes.
+				return (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e){
+				System.out.println("Warning: Virtual threads are not supported by this "
+						+ "runtime, using a thread per connection instead.");
+				return Executors.newCachedThreadPool();
+			}
+		}
+
+		// Create config.poolSize threads to handle incoming requests.
+		return new ThreadPoolExecutor(config.poolSize, config.poolSize, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(config.acceptQueueSize));
+	}
+
 }
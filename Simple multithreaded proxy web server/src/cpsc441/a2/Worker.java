@@ -7,10 +7,14 @@
  * The worker has two modes, Web and Proxy Server mode.
  * In Proxy Server mode, the worker forwards the client's request to
  * the specified host and port and relays the response back to the client.
+ * CONNECT requests open a tunnel to the requested host and port, which
+ * relays bytes both ways until both sides have closed it.
  * In Web Server mode, the worker searches for the requested file and sends
  * it back to the client. The worker thread also handles range requests.
  * The worker also checks if the client request is incorrectly formatted and if
- * the file requested exists.
+ * the file requested exists. Requests, responses and latencies are
+ * recorded in the metrics of the server (see ServerMetrics), and every
+ * request is written to the access log (see AccessLog).
  *
  */
 
@@ -18,84 +22,208 @@ package cpsc441.a2;
 
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 public class Worker implements Runnable {
 
+	// Encoded parts of the response header.
+	private static final byte[] HTTP_VERSION = ascii("HTTP/1.1 ");
+	private static final byte[] STATUS_OK = ascii("HTTP/1.1 200 OK\r\n");
+	private static final byte[] STATUS_PARTIAL = ascii("HTTP/1.1 206 Partial Content\r\n");
+	private static final byte[] STATUS_NOT_MODIFIED = ascii("HTTP/1.1 304 Not Modified\r\n");
+	private static final byte[] STATUS_NOT_SATISFIABLE = ascii("HTTP/1.1 416 Range Not Satisfiable\r\n");
+	private static final byte[] STATUS_UNAVAILABLE = ascii("HTTP/1.1 503 Service Unavailable\r\n");
+	private static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+	private static final byte[] DATE = ascii("Date: ");
+	private static final byte[] SERVER = ascii("Server: MyAwesomeServer\r\n");
+	private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+	private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+	private static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+	private static final byte[] ETAG = ascii("ETag: ");
+	private static final byte[] CONTENT_TYPE_MULTIPART = ascii("Content-Type: multipart/byteranges; boundary=");
+	private static final byte[] CONTENT_TYPE_TEXT = ascii("Content-Type: text/plain; charset=utf-8\r\n");
+	private static final byte[] CACHE_CONTROL_NO_STORE = ascii("Cache-Control: no-store\r\n");
+	private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n\r\n");
+	private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n\r\n");
+	private static final byte[] CRLF = ascii("\r\n");
+	// Response to a CONNECT request once the tunnel is open.
+	static final byte[] CONNECTION_ESTABLISHED = ascii("HTTP/1.1 200 Connection Established\r\n\r\n");
+
 	// Socket passed into worker.
 	private Socket socket;
+	// Server configuration and shared caches.
+	private final ServerConfig config;
+	private final ServerContext context;
+
+	// Builds the response headers sent on this connection.
+	private final HeaderWriter headerWriter = new HeaderWriter();
+
+	// Bytes read from the client that have not been handled yet. With
+	// persistent connections this can hold the start of the next request.
+	private final byte[] request;
+	private int buffered = 0;
+	// Parses the request header as it is read.
+	private final RequestParser parser;
+	// Time the first byte of the current request arrived, from
+	// System.nanoTime(), 0 if none has yet or it has been logged.
+	private long requestStart = 0;
+	// Times the request was parsed and the response started, 0 until then.
+	private long parsedAt = 0;
+	private long firstByteAt = 0;
+	// Mode the request is handled in, and the status code and length of
+	// the response, recorded for the access log.
+	private String requestMode = null;
+	private int responseStatus = 0;
+	private long responseLength = -1;
+	// Flight recorder event of the current request, null if Request events
+	// are disabled or the request has been logged.
+	private RequestEvents.Request requestEvent = null;
+	// True once a response has been handed to the bulk transfer pool, which
+	// then finishes the request and closes the connection.
+	private boolean handedOff = false;
+	// Run once the bulk transfer pool has closed a connection handed to it,
+	// or null.
+	private Runnable afterHandOff = null;
 
 
 	/**
 	 * Constructor
 	 *
 	 * @param socket	The client socket.
+	 * @param context	State shared by the connections of the server.
 	 */
-	public Worker(Socket socket){
+	public Worker(Socket socket, ServerContext context){
 		this.socket = socket;
+		this.config = context.config;
+		this.context = context;
+		this.request = new byte[config.maxRequestHeaderSize];
+		this.parser = new RequestParser(config.maxRequestHeaderSize, config.maxRequestHeaders);
+	}
+
+	/**
+	 * Sets what runs once the bulk transfer pool has closed the connection,
+	 * if run() hands it over. Must be called before run().
+	 *
+	 * @param task	The task, run on a thread of the pool.
+	 */
+	void setAfterHandOff(Runnable task){
+		this.afterHandOff = task;
+	}
+
+	/**
+	 * @return	True if run() handed the connection to the bulk transfer pool,
+	 *			which closes it.
+	 */
+	boolean handedOff(){
+		return handedOff;
 	}
 
 	/**
-	 * Reads in the client request, determines if the worker should act in
+	 * Reads in the client requests, determines if the worker should act in
 	 * Proxy or Web Server mode, and sends the information requested
-	 * (or error response) to the client.
+	 * (or error response) to the client. In Web Server mode the connection
+	 * is kept open for further requests until the client asks for it to be
+	 * closed, it has been idle for config.keepAliveTimeout, or
+	 * config.maxKeepAliveRequests requests have been served on it.
 	 */
 	public void run(){
 
 		// Necessary streams.
 		DataOutputStream outputStream = null;
 		BufferedInputStream inputStream = null;
-		String clientRequest = null;
 
+		context.metrics.connectionOpened();
 
 		try {
 			// Create required streams.
 			outputStream = new DataOutputStream(this.socket.getOutputStream());
 			inputStream = new BufferedInputStream(this.socket.getInputStream());
 
-			// Create request byte array.
-			byte[] request = new byte[1024];
-
-			// Read in the client request.
-			inputStream.read(request);
-
-
-			// Pattern we are looking to find in the data stream.
-			byte[] sep = "\r\n\r\n".getBytes("UTF-8");
-
-			// Index ahead of where the \r\n\r\n separator ends.
-			int indexOfPayloadSeparator = UsefulHelpers.getIndexOfPayloadSeparator(sep, request);
-
-			// If no \r\n\r\n found, send a 400 Bad Request to the client.
-			if (indexOfPayloadSeparator == -1){
-				System.out.println("Error: No \\r\\n\\r\\n separator found in client request message.");
-				System.out.println("Terminating worker.");
-				this.sendBadRequestToClient(outputStream);
-				return;
-			}
+			int requestsServed = 0;
+			int keepAlive = 1;
+
+			while (keepAlive == 1){
+				int parsed;
+				try {
+					// Wait for the next request only as long as the keep alive timeout.
+					this.socket.setSoTimeout(requestsServed == 0 ? 0 : config.keepAliveTimeout);
+					parsed = this.readRequest(inputStream);
+				} catch (SocketTimeoutException e){
+					// The persistent connection has been idle for too long.
+					return;
+				}
 
-			clientRequest = new String(Arrays.copyOfRange(request, 0, indexOfPayloadSeparator));
+				if (parsed == RequestParser.INCOMPLETE){
+					if (requestsServed > 0 && buffered == 0){
+						// The client closed the persistent connection.
+						return;
+					}
+					// The client closed the connection part way through the request.
+					UsefulHelpers.log("Error: No \\r\\n\\r\\n separator found in client request message.\n"
+							+ "Terminating worker.");
+					this.sendBadRequestToClient(outputStream);
+					return;
+				} else if (parsed == RequestParser.TOO_LARGE){
+					UsefulHelpers.log("Error: Client request header is too large.\nTerminating worker.");
+					this.sendErrorToClient(outputStream, "431 Request Header Fields Too Large");
+					return;
+				} else if (parsed == RequestParser.BAD_REQUEST){
+					UsefulHelpers.log("Error: Client request is not properly formatted.\nTerminating worker.");
+					this.sendBadRequestToClient(outputStream);
+					return;
+				}
+				parsedAt = System.nanoTime();
+				context.metrics.requestParsed(requestStart, parsedAt);
+
+				// End of the request header, including the empty line.
+				int requestEnd = parser.headerEnd();
+				requestsServed++;
+				keepAlive = checkKeepAlive(parser, requestsServed, config.maxKeepAliveRequests);
+
+				if (parser.methodIs("CONNECT")){
+					requestMode = "tunnel";
+					context.metrics.tunnelRequest();
+					// Tunnel to the requested host until either side closes it.
+					this.tunnelMode(outputStream, inputStream, parser);
+					return;
+				}
 
-			// Store key:value pairs of the information in the client request.
-			HashMap<String, String> headerFields = UsefulHelpers.requestInfo(clientRequest);
+				// Check if server should run in Web Server or Proxy Server mode.
+				int mode = this.decideMode();
 
-			// Check if server should run in Web Server or Proxy Server mode.
-			int mode = this.checkMode(headerFields);
+				if(mode == -1){
+					// Error occurred when trying to determine the hose,
+					this.sendBadRequestToClient(outputStream);
+					return;
 
-			if(mode == -1){
-				// Error occurred when trying to determine the hose,
-				this.sendBadRequestToClient(outputStream);
+				} else if (mode  == 1){
+					requestMode = "web";
+					context.metrics.webRequest();
+					// Go into Web Server mode.
+					keepAlive = this.webServerMode(outputStream, parser, keepAlive);
+					if (handedOff){
+						return;
+					}
+					this.logRequest();
 
-			} else if (mode  == 1){
-				System.out.println("In Web Server Mode");
-				// Go into Web Server mode.
-				this.webServerMode(outputStream, headerFields, new String(request, "UTF-8"));
+				} else {
+					requestMode = "proxy";
+					context.metrics.proxyRequest();
+					// Go into Proxy Server mode. The connection to the host goes back
+					// to the upstream pool, but the client connection is closed afterwards.
+					this.proxyServerMode(outputStream, inputStream, parser);
+					return;
+				}
 
-			} else {
-				System.out.println("In Proxy Server Mode");
-				// Go into Proxy Server mode.
-				this.proxyServerMode(outputStream, headerFields, request);
+				// Drop the handled request, keeping the start of the next one.
+				System.arraycopy(request, requestEnd, request, 0, buffered - requestEnd);
+				buffered -= requestEnd;
+				parser.reset();
 			}
 
 		} catch (IOException e){
@@ -105,20 +233,196 @@ public class Worker implements Runnable {
 			UsefulHelpers.handleException(e, "General exception occurred in DataOutputStream or BufferedInputStream.");
 			return;
 		} finally {
-			try{
-				// Close client input stream.
-				if (inputStream != null){
-					inputStream.close();
-				}
-				// Close client output stream.
-				if (outputStream != null){
-					outputStream.close();
+			// A connection handed to the bulk transfer pool is closed by it.
+			if (!handedOff){
+				this.closeConnection(inputStream, outputStream);
+			}
+		}
+	}
+
+	/**
+	 * Logs the request the connection ended on, if it has not been logged,
+	 * and closes the connection.
+	 *
+	 * @param inputStream	Client input stream, or null.
+	 * @param outputStream	Client output stream, or null.
+	 */
+	private void closeConnection(InputStream inputStream, OutputStream outputStream){
+		if (requestStart != 0){
+			this.logRequest();
+		}
+		context.metrics.connectionClosed();
+		try{
+			// Close client input stream.
+			if (inputStream != null){
+				inputStream.close();
+			}
+			// Close client output stream.
+			if (outputStream != null){
+				outputStream.close();
+			}
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "Could not properly close streams or socket in Proxy Server Mode.");
+		}
+	}
+
+	/**
+	 * Reads from the client until a full request header has been parsed.
+	 * Each read only parses the bytes that have just arrived.
+	 *
+	 * @param inputStream	Client input stream.
+	 * @return				RequestParser.COMPLETE once the header has been parsed,
+	 *						RequestParser.INCOMPLETE if the client closed the
+	 *						connection first, or the parser error otherwise.
+	 * @throws IOException	If reading from the client fails or times out.
+	 */
+	private int readRequest(InputStream inputStream) throws IOException {
+		RequestEvents.Parse parseEvent = new RequestEvents.Parse();
+		// Bytes left over from the last request are the start of this one.
+		requestStart = 0;
+		if (buffered > 0){
+			this.requestArrived(parseEvent);
+		}
+		parsedAt = 0;
+		firstByteAt = 0;
+		requestMode = null;
+		responseStatus = 0;
+		responseLength = -1;
+		int parsed = parser.parse(request, buffered);
+		while (parsed == RequestParser.INCOMPLETE){
+			int read = inputStream.read(request, buffered, request.length - buffered);
+			if (read == -1){
+				return RequestParser.INCOMPLETE;
+			}
+			if (requestStart == 0){
+				this.requestArrived(parseEvent);
+			}
+			context.metrics.bytesIn(read);
+			buffered += read;
+			parsed = parser.parse(request, buffered);
+		}
+
+		parseEvent.bytes = parsed == RequestParser.COMPLETE ? parser.headerEnd() : buffered;
+		parseEvent.status = parsed == RequestParser.TOO_LARGE ? 431 : parsed == RequestParser.BAD_REQUEST ? 400 : 0;
+		parseEvent.commit();
+		return parsed;
+	}
+
+	/**
+	 * Records that the first byte of a request has arrived.
+	 *
+	 * @param parseEvent	Parse event of the request, started now.
+	 */
+	private void requestArrived(RequestEvents.Parse parseEvent){
+		requestStart = System.nanoTime();
+		parseEvent.begin();
+		requestEvent = RequestEvents.startRequest();
+	}
+
+	/**
+	 * Decides the mode of the current request with checkMode.
+	 *
+	 * @return	The result of checkMode.
+	 */
+	private int decideMode(){
+		RequestEvents.ModeDecision modeEvent = new RequestEvents.ModeDecision();
+		modeEvent.begin();
+		int mode = checkMode(parser, context.resolver);
+		modeEvent.end();
+		if (modeEvent.shouldCommit()){
+			modeEvent.mode = mode == 1 ? "web" : mode == 0 ? "proxy" : null;
+			modeEvent.status = mode == -1 ? 400 : 0;
+			modeEvent.host = requestHost(parser);
+			modeEvent.commit();
+		}
+		return mode;
+	}
+
+	/**
+	 * Writes the current request to the access log.
+	 */
+	private void logRequest(){
+		context.accessLog.access(socket.getInetAddress(), parsedAt == 0 ? null : parser, requestMode,
+				responseStatus, responseLength, requestStart, parsedAt, firstByteAt, System.nanoTime());
+		requestStart = 0;
+
+		if (requestEvent != null){
+			requestEvent.end();
+			if (requestEvent.shouldCommit()){
+				requestEvent.mode = requestMode;
+				requestEvent.status = responseStatus;
+				requestEvent.bytes = Math.max(0, responseLength);
+				if (parsedAt != 0){
+					requestEvent.method = parser.method();
+					requestEvent.target = parser.target();
 				}
-			} catch (Exception e){
-				UsefulHelpers.handleException(e, "Could not properly close streams or socket in Proxy Server Mode.");
-				return;
+				requestEvent.commit();
 			}
+			requestEvent = null;
+		}
+	}
+
+	/**
+	 * Records that the response to the current request has started to be sent.
+	 */
+	private void responseStarted(){
+		firstByteAt = System.nanoTime();
+		context.metrics.responseStarted(requestStart, firstByteAt);
+	}
+
+	/**
+	 * Records a response the worker has sent in the metrics, and keeps its
+	 * status and length for the access log.
+	 *
+	 * @param status	Status code of the response.
+	 * @param length	Number of bytes sent, header included.
+	 */
+	private void responseSent(int status, long length){
+		responseStatus = status;
+		responseLength = length;
+		context.metrics.responseSent(status, length, requestStart, System.nanoTime());
+	}
+
+	/**
+	 * Checks if the connection can be kept open after responding to the
+	 * request. HTTP/1.1 connections are persistent unless the client sends
+	 * Connection: close, while HTTP/1.0 connections are only kept open if
+	 * the client sends Connection: keep-alive. Requests with a body are not
+	 * kept open since the body is not read by the worker.
+	 *
+	 * @param request			The parsed client request.
+	 * @param requestsServed	Number of requests received on the connection so far.
+	 * @param maxRequests		Maximum number of requests allowed on a connection.
+	 * @return					1 if the connection can be kept open, 0 otherwise.
+	 */
+	static int checkKeepAlive(RequestParser request, int requestsServed, int maxRequests){
+		if (requestsServed >= maxRequests){
+			return 0;
+		}
+		if (request.hasHeader("Content-Length") || request.hasHeader("Transfer-Encoding")){
+			return 0;
+		}
+
+		if (request.versionIs("HTTP/1.1")){
+			return request.headerHasToken("Connection", "close") ? 0 : 1;
+		}
+		return request.headerHasToken("Connection", "keep-alive") ? 1 : 0;
+	}
+
+	/**
+	 * Gets the host named in the Host header field of the request, with
+	 * any http:// or https:// prefix removed.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			The host, possibly with a port number, or null if the
+	 *					request has no Host header field.
+	 */
+	static String requestHost(RequestParser request){
+		String host = request.header("Host");
+		if (host == null){
+			return null;
 		}
+		return UsefulHelpers.removeHTTPprefix(host);
 	}
 
 	/**
@@ -129,21 +433,35 @@ public class Worker implements Runnable {
 	 * -1 means the worker could not determine which mode it should run in,
 	 * and so the worker will be terminated.
 	 *
-	 * @param headerFields	Hashmap containing information about the request.
+	 * @param request	The parsed client request.
+	 * @param resolver	Cached host lookups, used to check if the host is the local host.
+	 * @return	Status that indicates which mode the worker runs in.
+	 */
+	static int checkMode(RequestParser request, HostResolver resolver){
+		String requestHost = requestHost(request);
+		// Check if host is the local host. The verdict is cached per Host
+		// header field value, and the port number is ignored.
+		return checkMode(requestHost == null ? null : resolver.isLocalHost(requestHost));
+	}
+
+	/**
+	 * Check which mode the worker should run in from the verdict of the
+	 * HostResolver on the host of the request, with the same results as
+	 * checkMode(request, resolver).
+	 *
+	 * @param verdict	Result of HostResolver.isLocalHost() for the host, or
+	 *					null if the request does not name a host.
 	 * @return	Status that indicates which mode the worker runs in.
 	 */
-	private int checkMode(HashMap<String, String> headerFields){
-		if (!headerFields.containsKey("Host")){
+	static int checkMode(CompletableFuture<Boolean> verdict){
+		if (verdict == null){
 			// If host was not specified in the request, enter Web Server mode.
 			return 1;
 		}
 
-		// Get the host and parse the port number out if it is included.
-		String host = headerFields.get("Host").split(":")[0];
 		boolean isLocalHost = false;
-		// Check if host is the local host.
 		try {
-			isLocalHost = Utils.isLocalHost(host);
+			isLocalHost = HostResolver.await(verdict);
 		} catch (UnknownHostException e){
 			UsefulHelpers.handleException(e, "UnknownHostException occured when trying to determine server mode.");
 			return -1;
@@ -159,347 +477,1220 @@ public class Worker implements Runnable {
 	}
 
 	/**
-	 * Runs the worker in proxy server mode, which forwards the client
-	 * request to specified socket and relays the response to the client.
+	 * Gets the address of the host the request should be forwarded to in
+	 * Proxy Server mode. If no port number is included in the Host header
+	 * field, a default port number of 80 is used.
 	 *
-	 * @param clientOutputStream	Client output stream where the response is sent.
-	 * @param headerFields			Hashmap containing information about the request.
-	 * @param clientReq				Original client request.
+	 * @param request	The parsed client request.
+	 * @return			Address of the requested host, or null if the port
+	 *					number is not a number from 1 to 65535.
 	 */
-	private void proxyServerMode(DataOutputStream clientOutputStream,
-			HashMap <String, String> headerFields, byte[] clientReq){
-
-		// Necessary streams, file, and socket.
-		DataOutputStream proxyOutputStream = null;
-		BufferedInputStream proxyInputStream = null;
-		Socket proxySocket = null;
-
+	static InetSocketAddress upstreamAddress(RequestParser request){
 		// Get the hostname and port number.
-		String[] hostComponents = headerFields.get("Host").split(":");
-		String hostname;
-		int port;
+		String[] hostComponents = requestHost(request).split(":");
+		String hostname = hostComponents[0];
+		int port = 80;
 
 		if (hostComponents.length > 1 ){
 			// This means a port number was included, so use the port number provided.
-			hostname = hostComponents[0];
-			port = Integer.parseInt(hostComponents[1]);
-		} else{
-			// Use a default port number of 80.
-			hostname = hostComponents[0];
-			port = 80;
+			try {
+				port = Integer.parseInt(hostComponents[1]);
+			} catch (NumberFormatException e){
+				return null;
+			}
+			if (port < 1 || port > 65535){
+				return null;
+			}
 		}
-		try{
-			// Create socket.
-			proxySocket = new Socket(hostname, port);
 
-			// Create required streams.
-			proxyOutputStream = new DataOutputStream(proxySocket.getOutputStream());
-			proxyInputStream = new BufferedInputStream(proxySocket.getInputStream());
+		// Resolved when a connection is opened, so it can be used as the key
+		// of the upstream pool.
+		return InetSocketAddress.createUnresolved(hostname, port);
+	}
+
+	/**
+	 * Gets the address of the host a CONNECT request asks to tunnel to,
+	 * given in the request target as host:port.
+	 *
+	 * @param request	The parsed CONNECT request.
+	 * @return			Address of the requested host, or null if the request
+	 *					target is not a host and port number.
+	 */
+	static InetSocketAddress connectAddress(RequestParser request){
+		String target = request.target();
+		int colon = target.lastIndexOf(':');
+		if (colon < 1){
+			return null;
+		}
+		String hostname = target.substring(0, colon);
+		if (hostname.startsWith("[") && hostname.endsWith("]")){
+			// IPv6 address.
+			hostname = hostname.substring(1, hostname.length() - 1);
+		}
+		try {
+			int port = Integer.parseInt(target.substring(colon + 1));
+			if (port < 1 || port > 65535 || hostname.isEmpty()){
+				return null;
+			}
+			return InetSocketAddress.createUnresolved(hostname, port);
+		} catch (NumberFormatException e){
+			return null;
+		}
+	}
 
+	/**
+	 * Gets the length of the body of a request from its Content-Length
+	 * header field.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			The length of the body, 0 if there is no Content-Length
+	 *					header field, or -1 if its value is not a valid length.
+	 */
+	static long requestBodyLength(RequestParser request){
+		String contentLength = request.header("Content-Length");
+		if (contentLength == null){
+			return 0;
+		}
+		try {
+			long length = Long.parseLong(contentLength.trim());
+			return length < 0 ? -1 : length;
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
 
-			// Forward client request.
-			proxyOutputStream.write(clientReq);
-			proxyOutputStream.flush();
+	/**
+	 * Checks if a request may be sent to the host again after a pooled
+	 * connection turned out to have been closed. Only requests without a
+	 * body that use an idempotent method are sent again (RFC 7230 6.3.1).
+	 *
+	 * @param request	The parsed client request.
+	 * @return			True if the request may be sent again.
+	 */
+	static boolean replayableRequest(RequestParser request){
+		if (requestBodyLength(request) != 0){
+			return false;
+		}
+		return request.methodIs("GET") || request.methodIs("HEAD") || request.methodIs("OPTIONS")
+				|| request.methodIs("TRACE") || request.methodIs("PUT") || request.methodIs("DELETE");
+	}
 
-			// Read in data from proxyInputStream.
-			byte[] proxyData = new byte[16000];
+	/**
+	 * Runs the worker in proxy server mode, which forwards the client
+	 * request to specified socket and relays the response to the client.
+	 * The connection to the host is taken from the upstream pool and given
+	 * back once the whole response has been relayed. GET requests go
+	 * through the proxy cache when it is enabled.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param clientInputStream		Client input stream the request body is read from.
+	 * @param request				The parsed client request.
+	 */
+	private void proxyServerMode(DataOutputStream clientOutputStream, InputStream clientInputStream,
+			RequestParser request){
 
-			int read = proxyInputStream.read(proxyData);
+		if (request.hasHeader("Transfer-Encoding")){
+			// Chunked request bodies are not forwarded.
+			this.sendErrorToClient(clientOutputStream, "411 Length Required");
+			return;
+		}
+		if (requestBodyLength(request) == -1){
+			this.sendBadRequestToClient(clientOutputStream);
+			return;
+		}
 
-			// Write data to client output stream.
-			while (read > -1){
-				clientOutputStream.write(proxyData, 0, read);
-				read = proxyInputStream.read(proxyData);
+		ProxyCache proxyCache = context.proxyCache;
+		if (proxyCache != null){
+			if (ProxyCache.cacheableRequest(request)){
+				this.cachingProxyMode(clientOutputStream, clientInputStream, request, proxyCache);
+				return;
 			}
+			// Other requests, such as POST, may change what is stored for the URL.
+			proxyCache.invalidateFor(request);
+		}
+
+		UpstreamConnection upstream = null;
+		boolean reusable = false;
+
+		try{
+			// Forward the client request and wait for the response header.
+			upstream = this.sendUpstream(request, ProxyCache.upstreamRequest(request, null, true),
+					clientInputStream, clientOutputStream);
+
+			// Relay the response to the client.
+			RequestEvents.ResponseRelay relayEvent = new RequestEvents.ResponseRelay();
+			relayEvent.begin();
+			upstream.writeHeader(clientOutputStream);
+			reusable = upstream.relayBody(request.methodIs("HEAD"), clientOutputStream, null);
 
 			// Flush the contents of the stream.
 			clientOutputStream.flush();
+			this.relayed(relayEvent, upstream);
 		} catch (IOException e){
 			UsefulHelpers.handleException(e, "IOException occurred in DataOutputStream or "
 					+ "BufferedInputStream in Server Mode.");
 			// Send a Bad Request to the client.
 			this.sendBadRequestToClient(clientOutputStream);
-			return;
 
 		} catch (Exception e){
 			UsefulHelpers.handleException(e, "General exception occurred in DataOutputStream or "
 					+ "BufferedInputStream in Server Mode.");
 			// Send a Bad Request to the client.
 			this.sendBadRequestToClient(clientOutputStream);
-			return;
 		} finally {
-			try{
-				// Close socket.
-				if (proxySocket != null){
-					proxySocket.close();
-				}
-				// Close proxy input stream.
-				if (proxyInputStream != null){
-					proxyInputStream.close();
-				}
-				// Close proxy output stream.
-				if (proxyOutputStream != null){
-					proxyOutputStream.close();
-				}
-			} catch (Exception e){
-				UsefulHelpers.handleException(e, "Could not properly close streams or socket in Proxy Server Mode.");
-				return;
+			if (upstream != null){
+				context.upstreamPool.release(upstream, reusable);
 			}
 		}
 	}
 
 	/**
-	 * Checks that request is properly formatted.
+	 * Runs a CONNECT tunnel, used by clients to reach HTTPS hosts through
+	 * the proxy. Once the connection to the requested host is open, the
+	 * client is told so and bytes are relayed both ways by a Relay until
+	 * both sides have closed the tunnel.
 	 *
-	 * @param request	Client request.
-	 * @return			1 if the request is properly formatted, 0 otherwise.
+	 * @param clientOutputStream	Client output stream.
+	 * @param clientInputStream		Client input stream.
+	 * @param request				The parsed CONNECT request.
 	 */
-	private int properlyFormattedRequest(String request){
-		// Check contain the request starts with GET or HEAD.
-		if (!request.startsWith("GET") && !request.startsWith("HEAD")){
-			return 0;
-		}
-		// Check that request is using HTTP/1.1.
-		if (!request.contains("HTTP/1.1")){
-			return 0;
-		}
+	private void tunnelMode(DataOutputStream clientOutputStream, InputStream clientInputStream,
+			RequestParser request){
 
-		// Request should contain \r\n\r\n
-		if (!request.contains("\r\n\r\n")){ // CHECK if this is ok, or I should use ends with?
-			return 0;
+		InetSocketAddress target = connectAddress(request);
+		SocketChannel clientChannel = this.socket.getChannel();
+		if (target == null || clientChannel == null){
+			this.sendBadRequestToClient(clientOutputStream);
+			return;
 		}
 
-		request = request.substring(0, request.indexOf("\r\n\r\n"));
+		SocketChannel upstream = null;
+		try{
+			// Open the connection to the requested host.
+			RequestEvents.Resolve resolveEvent = new RequestEvents.Resolve();
+			resolveEvent.begin();
+			InetAddress address = HostResolver.await(context.resolver.lookup(target.getHostString()))[0];
+			resolveEvent.mode = "tunnel";
+			resolveEvent.host = target.getHostString();
+			resolveEvent.commit();
+
+			RequestEvents.Connect connectEvent = new RequestEvents.Connect();
+			connectEvent.begin();
+			upstream = SocketChannel.open(new InetSocketAddress(address, target.getPort()));
+			upstream.socket().setTcpNoDelay(true);
+			connectEvent.mode = "tunnel";
+			connectEvent.host = target.getHostString();
+			connectEvent.commit();
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "Exception occurred when connecting a tunnel in Proxy Server Mode.");
+			this.sendBadRequestToClient(clientOutputStream);
+			closeTunnel(upstream);
+			return;
+		}
 
-		String[] lines = request.split("\n");
-		for (int i=0; i<lines.length; i++){
+		try{
+			clientOutputStream.write(CONNECTION_ESTABLISHED);
+			clientOutputStream.flush();
 
-			// The first line in the request should have exactly 3 parts.
-			if (i == 0 && lines[i].split("\\s").length != 3){
-				return 0;
+			// Bytes the client sent after the CONNECT request, including any
+			// still held by the input stream, go to the host first.
+			ByteBuffer early = ByteBuffer.wrap(this.request, parser.headerEnd(), buffered - parser.headerEnd());
+			while (early.hasRemaining()){
+				upstream.write(early);
+			}
+			byte[] data = new byte[16000];
+			while (clientInputStream.available() > 0){
+				int read = clientInputStream.read(data);
+				if (read == -1){
+					break;
+				}
+				upstream.write(ByteBuffer.wrap(data, 0, read));
 			}
 
-			// Every line besides the first should have the form Field: Info_for_field
-			// and there should only be exactly one space character.
-			if (i >0 && (!lines[i].replace("\n", "").replace("\r", "").matches(".+:\\s.+") ||
-					lines[i].split("\\s").length != 2)){
-				return 0;
+			Relay.run(clientChannel, upstream, true, config.relayIdleTimeout);
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "IOException occurred in a tunnel in Proxy Server Mode.");
+		} finally {
+			closeTunnel(upstream);
+		}
+	}
+
+	// Closes the connection of a tunnel to the requested host.
+	private static void closeTunnel(SocketChannel upstream){
+		try{
+			if (upstream != null){
+				upstream.close();
 			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close socket in Proxy Server Mode.");
 		}
-		// In this case, the request is valid.
-		return 1;
 	}
 
 	/**
-	 * Check if the requested file exists.
+	 * Sends a request to the host on a connection from the upstream pool
+	 * and reads the response header. If a pooled connection turns out to
+	 * have been closed by the host before it responded, the request is sent
+	 * again on another connection. Requests that can not safely be sent
+	 * twice always get a new connection.
 	 *
-	 * @param filename	Name of the requested file.
-	 * @return			1 if file exists, 0 otherwise.
+	 * @param request				The parsed client request.
+	 * @param upstreamRequest		Request header forwarded to the host.
+	 * @param clientInputStream		Client input stream the request body is read from.
+	 * @param clientOutputStream	Client output stream interim responses are sent to.
+	 * @return						The connection, with the response header read. It
+	 *								must be given back to the upstream pool.
+	 * @throws IOException			If the request could not be sent or no response
+	 *								header was received.
 	 */
-	private int checkFileExists(String filename){
-		// Get the file based on its name.
-		File file = new File(System.getProperty("user.dir") +filename);
+	private UpstreamConnection sendUpstream(RequestParser request, byte[] upstreamRequest,
+			InputStream clientInputStream, OutputStream clientOutputStream) throws IOException {
 
-		// Check if the file exists and is a file.
-		if (file.exists() && file.isFile()){
-			return 1;
+		UpstreamPool pool = context.upstreamPool;
+		InetSocketAddress origin = upstreamAddress(request);
+		if (origin == null){
+			throw new IOException("Host header field has an invalid port number.");
+		}
+		boolean replayable = replayableRequest(request);
+
+		while (true){
+			UpstreamConnection upstream = pool.acquire(origin, replayable);
+			try {
+				RequestEvents.UpstreamFirstByte firstByteEvent = new RequestEvents.UpstreamFirstByte();
+				firstByteEvent.begin();
+				upstream.out.write(upstreamRequest);
+				this.forwardRequestBody(upstream.out, clientInputStream, requestBodyLength(request));
+				upstream.out.flush();
+				ResponseHeader header = upstream.readHeader(clientOutputStream);
+				if (header != null){
+					firstByteEvent.mode = "proxy";
+					firstByteEvent.status = header.status;
+					firstByteEvent.bytes = header.length;
+					firstByteEvent.host = origin.getHostString();
+					firstByteEvent.reused = upstream.reused;
+					firstByteEvent.commit();
+					return upstream;
+				}
+				throw new EOFException("Host closed the connection without responding.");
+			} catch (IOException e){
+				pool.release(upstream, false);
+				if (!upstream.reused || upstream.responded){
+					throw e;
+				}
+				// The pooled connection was closed by the host, try again.
+			}
 		}
-
-		return 0;
 	}
 
 	/**
-	 * Checks if the request byte range if a valid range.
+	 * Records a response relayed from the host, for the access log and the
+	 * flight recorder.
 	 *
-	 * @param file	Name of the requested file.
-	 * @param start	Start of range.
-	 * @param end	End of range.
-	 * @return		1 if the range is valid, 0 otherwise.
+	 * @param relayEvent	Relay event, started before the header was sent.
+	 * @param upstream		The connection the response was read from.
 	 */
-	private int checkValidRangeRequest(File file, int start, int end){
-
-		// A valid range means:
-		// Start and end are both > 0.
-		// Start and end are both < length of file.
-		// Start < end.
-		if ((start <0 || end < 0) || (start > file.length()-1 || end > file.length()-1) ||
-				(start > end)){
-			return 0;
-		}
-
-		return 1;
+	private void relayed(RequestEvents.ResponseRelay relayEvent, UpstreamConnection upstream){
+		responseStatus = upstream.header.status;
+		responseLength = upstream.relayed;
+		relayEvent.mode = "proxy";
+		relayEvent.status = responseStatus;
+		relayEvent.bytes = responseLength;
+		relayEvent.host = upstream.origin.getHostString();
+		relayEvent.commit();
 	}
 
 	/**
-	 * Generates the response header that is sent to the client.
+	 * Forwards the body of the client request to the host. The start of the
+	 * body may already have been read along with the request header.
 	 *
-	 * @param okReq			1 if the request is ok, 0 otherwise.
-	 * @param statusCode	Either 200 OK, 400 Bad Request, or 404 Not Found.
-	 * @param file			File requested.
-	 * @param start			Starting byte of range requested.
-	 * @param end			Ending byte of range requested
-	 * @return				The header response.
+	 * @param upstreamOutputStream	Output stream of the connection to the host.
+	 * @param clientInputStream		Client input stream the rest of the body is read from.
+	 * @param length				Length of the body.
+	 * @throws IOException			If reading or writing fails, or the client closed
+	 *								the connection part way through the body.
 	 */
-	private String responseHeader(int okReq, String statusCode, File file,
-			int start, int end){
-		String response = null;
-
-		// If the request was ok, include the headers required to be compliant with most
-		// browsers.
-		if (okReq == 1){
-			response = "HTTP/1.1 200 OK\r\n";
-			response = response + "Date: " + Utils.getCurrentDate() +"\r\n";
-			response = response + "Server: MyAwesomeServer\r\n";
-			response = response + "Last-Modified: " + Utils.getLastModified(file) +"\r\n";
-			response = response + "Accept-Ranges: bytes\r\n";
-			response = response + "Content-Length: " + file.length() + "\r\n";
-			try{
-				response = response + "Content-Type: " + Utils.getContentType(file) + "\r\n";
-			} catch(Exception e){
-				System.out.println("Warning: Could not get content type of the file.");
+	private void forwardRequestBody(OutputStream upstreamOutputStream, InputStream clientInputStream,
+			long length) throws IOException {
+		int requestEnd = parser.headerEnd();
+		int inBuffer = (int) Math.min(length, buffered - requestEnd);
+		upstreamOutputStream.write(request, requestEnd, inBuffer);
+		length -= inBuffer;
+
+		byte[] bodyData = new byte[16000];
+		while (length > 0){
+			int read = clientInputStream.read(bodyData, 0, (int) Math.min(bodyData.length, length));
+			if (read == -1){
+				throw new EOFException("Client closed the connection part way through the request body.");
 			}
-
-			// Indicate the range of bytes returned for valid range requests.
-			if (start > -1 && end > -1){
-				response = response + "Content-Range: bytes "+ start + "-" + end +"/"+ file.length() +"\r\n";
-			}
-
-		} else {
-			// This means the request was either a 400 404 error.
-			// Only the Date and Server header fields are required for error responses.
-			response = "HTTP/1.1 "+ statusCode +"\r\n";
-			response = response + "Date: " + Utils.getCurrentDate() +"\r\n";
-			response = response + "Server: MyAwesomeServer\r\n";
+			upstreamOutputStream.write(bodyData, 0, read);
+			length -= read;
 		}
-
-		response = response + "Connection: close\r\n\r\n";
-
-		return response;
 	}
 
 	/**
-	 * Runs the worker in Web Server mode, which generates the header
-	 * response, reads the file in (if it exists and the request was properly
-	 * formatted), and sends the entire file (or requested range) to the client.
+	 * Runs proxy server mode for a request whose response may come from the
+	 * proxy cache. Fresh stored responses are sent without contacting the
+	 * host, stale ones are revalidated with a conditional request, and
+	 * other responses are relayed to the client while a copy is stored.
 	 *
 	 * @param clientOutputStream	Client output stream where the response is sent.
-	 * @param headerFields			Hashmap containing information about the request.
-	 * @param clientReq				Original client request.
+	 * @param clientInputStream		Client input stream.
+	 * @param request				The parsed client request.
+	 * @param proxyCache			The proxy cache.
 	 */
-	private void webServerMode(DataOutputStream clientOutputStream,
-			HashMap <String, String> headerFields, String clientRequest){
+	private void cachingProxyMode(DataOutputStream clientOutputStream, InputStream clientInputStream,
+			RequestParser request, ProxyCache proxyCache){
 
-		// Check if the request is properly formatted.
-		int properFormat = this.properlyFormattedRequest(clientRequest);
+		ProxyCache.Entry cached = proxyCache.lookup(request);
+		if (cached != null && proxyCache.isFresh(cached, request, System.currentTimeMillis())
+				&& this.sendCachedResponse(clientOutputStream, proxyCache, cached)){
+			proxyCache.hit();
+			return;
+		}
 
-		// Determine if requested object exists.
-		String objectName = headerFields.get("requestLine").split("\\s")[1];
-		int fileExists = this.checkFileExists(objectName);
+		// Only one request for a URL is sent to the origin server at a time,
+		// the others are sent the response it gets.
+		ProxyCache.Flight flight = proxyCache.lead(request);
+		if (flight == null){
+			ProxyCache.Flight leading = proxyCache.follow(request);
+			if (leading != null && this.followFlight(clientOutputStream, request, proxyCache, leading)){
+				return;
+			}
+		}
 
-		// Necessary stream.
-		FileInputStream webInputStream = null;
+		UpstreamConnection upstream = null;
+		boolean reusable = false;
+		ProxyCache.Store store = null;
 
 		try{
-			String response;
-			// Check if the header request is properly formatted and if the file exists.
-			if (properFormat == 0 || fileExists == 0){
-				if (properFormat == 0){
-					// Send a 400 Bad Request response.
-					response = this.responseHeader(0, "400 Bad Request", null,
-							-1, -1);
-				} else {
-					// Send a 404 Not Found response.
-					response = this.responseHeader(0, "404 Not Found", null,
-							-1, -1);
+			// Forward the client request, conditional on the stored response if there is one.
+			long requestTime = System.currentTimeMillis();
+			upstream = this.sendUpstream(request, ProxyCache.upstreamRequest(request, cached, true),
+					clientInputStream, clientOutputStream);
+			ResponseHeader header = upstream.header;
+			long responseTime = System.currentTimeMillis();
+
+			if (cached != null){
+				if (header.status == 304){
+					// The stored response is still valid. The 304 has no body,
+					// so the connection can go back to the pool straight away.
+					reusable = upstream.relayBody(false, clientOutputStream, null);
+					context.upstreamPool.release(upstream, reusable);
+					upstream = null;
+
+					cached = proxyCache.revalidated(cached, header, requestTime, responseTime);
+					if (flight != null){
+						flight.revalidated(cached);
+					}
+					if (this.sendCachedResponse(clientOutputStream, proxyCache, cached)){
+						return;
+					}
+					throw new IOException("Stored response could not be read from the proxy cache.");
 				}
-
-				// Send the response to the client and terminate the worker.
-				clientOutputStream.write(response.getBytes());
-				clientOutputStream.flush();
-
-				return;
+				// The new response replaces the stored one.
+				proxyCache.remove(cached);
 			}
 
-			//  Get the requested file.
-			File file = new File(System.getProperty("user.dir")+ objectName);
-			// If range request was made, check it is in a valid range.
-			int start = -1;
-			int end = -1;
-			if (headerFields.containsKey("Range")){
-				String range = headerFields.get("Range").split("=")[1];
-				start = Integer.parseInt(range.split("-")[0]);
-				end = Integer.parseInt(range.split("-")[1]);
-				int isValid = this.checkValidRangeRequest(file, start, end);
-
-				if (isValid == 0){
-					// If an invalid range was requested, response with a 400 Bad Request message.
-					this.sendBadRequestToClient(clientOutputStream);
-					return;
+			// Relay the response to the client, storing a copy of the body.
+			store = proxyCache.store(request, header, requestTime, responseTime);
+			if (flight != null){
+				if (store != null){
+					// Requests waiting on the flight are sent the body as it is stored.
+					store.share(flight);
+				} else {
+					// The response can not be shared, so they send their own requests.
+					flight.fail();
 				}
-
 			}
+			RequestEvents.ResponseRelay relayEvent = new RequestEvents.ResponseRelay();
+			relayEvent.begin();
+			upstream.writeHeader(clientOutputStream);
+			reusable = upstream.relayBody(false, clientOutputStream, store);
+			clientOutputStream.flush();
+			this.relayed(relayEvent, upstream);
 
-		// Get the response header for a 200 OK response.
-		response = this.responseHeader(1, "200 OK", file, start, end);
-		clientOutputStream.write(response.getBytes());
-		clientOutputStream.flush();
-		// Stop the worker thread here if request was a HEAD request.
-		if (clientRequest.startsWith("HEAD")){
-			return;
-		}
-			// Create required streams.
-			webInputStream = new FileInputStream(file);
-
-			// Read in data from proxyInputStream.
-			byte[] fileData = new byte[4096];
-
-			// If a range request was made, start reading from the first byte requested.
-			// Recall that the range of the request has already been confirmed to be valid.
-			if (start > -1){
-				webInputStream.skip(start);
+			if (store != null){
+				store.finish();
+				store = null;
 			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "IOException occurred in DataOutputStream or "
+					+ "BufferedInputStream in Server Mode.");
+			// Send a Bad Request to the client.
+			this.sendBadRequestToClient(clientOutputStream);
+		} catch (Exception e){
+			UsefulHelpers.handleException(e, "General exception occurred in DataOutputStream or "
+					+ "BufferedInputStream in Server Mode.");
+			// Send a Bad Request to the client.
+			this.sendBadRequestToClient(clientOutputStream);
+		} finally {
+			if (store != null){
+				store.abort();
+			}
+			if (flight != null){
+				flight.fail();
+			}
+			if (upstream != null){
+				context.upstreamPool.release(upstream, reusable);
+			}
+		}
+	}
+
+	/**
+	 * Sends the response another request for the same URL is fetching,
+	 * instead of sending a request to the origin server. The body is sent
+	 * as the other request writes it to the proxy cache.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param request				The parsed client request.
+	 * @param proxyCache			The proxy cache.
+	 * @param flight				The flight of the other request.
+	 * @return						False if the response can not be used for this
+	 *								request and nothing was sent, true otherwise.
+	 */
+	private boolean followFlight(DataOutputStream clientOutputStream, RequestParser request,
+			ProxyCache proxyCache, ProxyCache.Flight flight){
+
+		FileInputStream body = null;
+		try{
+			int state = flight.awaitResponse(config.relayIdleTimeout);
+			if (state == ProxyCache.Flight.FAILED || !flight.matches(request)){
+				// No response yet, or one that can not be used for this request.
+				return false;
+			}
+			if (state == ProxyCache.Flight.REVALIDATED){
+				return this.sendCachedResponse(clientOutputStream, proxyCache, flight.entry());
+			}
+			body = flight.openBody();
+			if (body == null){
+				return false;
+			}
+
+			ByteBuffer header = proxyCache.responseHeader(headerWriter, flight.entry(), System.currentTimeMillis());
+			clientOutputStream.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+
+			// Send the body as far as it has been written, then wait for more.
+			byte[] bodyData = new byte[16000];
+			long position = 0;
+			long available;
+			while ((available = flight.awaitBody(position, config.relayIdleTimeout)) > position){
+				int read = body.read(bodyData, 0, (int) Math.min(bodyData.length, available - position));
+				if (read == -1){
+					throw new EOFException("Shared response body is shorter than expected.");
+				}
+				clientOutputStream.write(bodyData, 0, read);
+				position += read;
+			}
+			if (available == -1){
+				throw new IOException("Shared response was not received in full from the origin server.");
+			}
+			clientOutputStream.flush();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "IOException occurred when sending a shared response in Proxy Server Mode.");
+		} finally {
+			try{
+				if (body != null){
+					body.close();
+				}
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not properly close a file of the proxy cache.");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a response stored in the proxy cache to the client.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param proxyCache			The proxy cache.
+	 * @param cached				The stored response.
+	 * @return						False if the stored response has been evicted
+	 *								and nothing was sent, true otherwise.
+	 */
+	private boolean sendCachedResponse(DataOutputStream clientOutputStream, ProxyCache proxyCache,
+			ProxyCache.Entry cached){
+
+		FileInputStream body = proxyCache.openBody(cached);
+		if (body == null){
+			return false;
+		}
+
+		try{
+			ByteBuffer header = proxyCache.responseHeader(headerWriter, cached, System.currentTimeMillis());
+			SocketChannel socketChannel = this.socket.getChannel();
 
-			// Read in data from the file.
-			int read = webInputStream.read(fileData);
-
-			// If no range request was made, send the entire file to the client.
-			if (start == -1 && end == -1){
-				// Write data to client output stream.
+			if (socketChannel != null){
+				FileTransfer.send(socketChannel, header, body.getChannel(), 0, cached.bodyLength);
+			} else {
+				clientOutputStream.write(header.array(), header.arrayOffset() + header.position(),
+						header.remaining());
+				byte[] bodyData = new byte[16000];
+				int read = body.read(bodyData);
 				while (read > -1){
-					clientOutputStream.write(fileData, 0, read);
-					read = webInputStream.read(fileData);
+					clientOutputStream.write(bodyData, 0, read);
+					read = body.read(bodyData);
+				}
+				clientOutputStream.flush();
+			}
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "IOException occurred when sending a response from the proxy cache.");
+		} finally {
+			try{
+				body.close();
+			} catch (IOException e){
+				UsefulHelpers.handleException(e, "Could not properly close a file of the proxy cache.");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that request is properly formatted. The request line and
+	 * header lines have already been checked by the parser, so only the
+	 * method and version are left to check.
+	 *
+	 * @param request	The parsed client request.
+	 * @return			1 if the request is properly formatted, 0 otherwise.
+	 */
+	static int properlyFormattedRequest(RequestParser request){
+		// Check the request is a GET or HEAD request.
+		if (!request.methodIs("GET") && !request.methodIs("HEAD")){
+			return 0;
+		}
+		// Check that request is using HTTP/1.1.
+		if (!request.versionIs("HTTP/1.1")){
+			return 0;
+		}
+
+		// In this case, the request is valid.
+		return 1;
+	}
+
+	/**
+	 * Check if the requested file exists.
+	 *
+	 * @param meta	Metadata of the requested file.
+	 * @return		1 if file exists, 0 otherwise.
+	 */
+	static int checkFileExists(FileMeta meta){
+		// Check if the file exists and is a file.
+		if (meta.exists){
+			return 1;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Generates the response header that is sent to the client. The header is
+	 * written as bytes into the reusable buffer of the header writer.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param okReq			1 if the request is ok, 0 otherwise.
+	 * @param statusCode	Either 200 OK, 400 Bad Request, 404 Not Found, or 431 Request
+	 *						Header Fields Too Large. Ok requests get 206 Partial Content
+	 *						instead of 200 OK when a range is sent.
+	 * @param meta			Metadata of the file requested.
+	 * @param start			Starting byte of range sent, -1 for the whole file.
+	 * @param end			Ending byte of range sent, -1 for the whole file.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer responseHeader(HeaderWriter writer, int okReq, String statusCode,
+			FileMeta meta, long start, long end, int keepAlive){
+		writer.clear();
+
+		// If the request was ok, include the headers required to be compliant with most
+		// browsers.
+		if (okReq == 1){
+			writer.write(start > -1 && end > -1 ? STATUS_PARTIAL : STATUS_OK);
+			writer.write(DATE).write(HttpDate.now()).write(CRLF);
+			writer.write(SERVER);
+			writer.write(meta.lastModifiedHeader);
+			writer.write(meta.etagHeader);
+			writer.write(ACCEPT_RANGES);
+			// Content-Length is the number of bytes in the body, which is only the
+			// requested range for range requests.
+			if (start > -1 && end > -1){
+				writer.write(CONTENT_LENGTH).write(end - start + 1).write(CRLF);
+			} else {
+				writer.write(CONTENT_LENGTH).write(meta.length).write(CRLF);
+			}
+			writer.write(meta.contentTypeHeader);
+			writer.write(meta.varyHeader);
+
+			// Indicate the range of bytes returned for valid range requests.
+			if (start > -1 && end > -1){
+				writer.write(CONTENT_RANGE).write(start).write("-").write(end)
+						.write("/").write(meta.length).write(CRLF);
+			}
+
+		} else {
+			// This means the request was either a 400 404 error.
+			// Only the Date and Server header fields are required for error responses.
+			writer.write(HTTP_VERSION).write(statusCode).write(CRLF);
+			writer.write(DATE).write(HttpDate.now()).write(CRLF);
+			writer.write(SERVER);
+			// Error responses have no body.
+			writer.write(CONTENT_LENGTH).write(0).write(CRLF);
+		}
+
+		if (keepAlive == 1){
+			writer.write(CONNECTION_KEEP_ALIVE);
+		} else {
+			writer.write(CONNECTION_CLOSE);
+		}
+
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of a 206 Partial Content response whose body is
+	 * several ranges of the file, sent as multipart/byteranges.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param meta			Metadata of the file requested.
+	 * @param boundary		Boundary between the parts of the body.
+	 * @param length		Length of the whole multipart body.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer multipartResponseHeader(HeaderWriter writer, FileMeta meta, String boundary,
+			long length, int keepAlive){
+		writer.clear();
+		writer.write(STATUS_PARTIAL);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(meta.lastModifiedHeader);
+		writer.write(meta.etagHeader);
+		writer.write(ACCEPT_RANGES);
+		writer.write(CONTENT_LENGTH).write(length).write(CRLF);
+		writer.write(CONTENT_TYPE_MULTIPART).write(boundary).write(CRLF);
+		writer.write(meta.varyHeader);
+		writer.write(keepAlive == 1 ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of a 200 OK response whose body is the file
+	 * compressed with gzip or brotli.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param meta			Metadata of the file requested.
+	 * @param encoding		Content coding of the body, gzip or br.
+	 * @param etag			Entity tag of the compressed body.
+	 * @param length		Length of the compressed body.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer encodedResponseHeader(HeaderWriter writer, FileMeta meta, String encoding,
+			String etag, long length, int keepAlive){
+		writer.clear();
+		writer.write(STATUS_OK);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(meta.lastModifiedHeader);
+		writer.write(ETAG).write(etag).write(CRLF);
+		writer.write(CONTENT_ENCODING).write(encoding).write(CRLF);
+		writer.write(CONTENT_LENGTH).write(length).write(CRLF);
+		writer.write(meta.contentTypeHeader);
+		writer.write(meta.varyHeader);
+		writer.write(keepAlive == 1 ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of a 304 Not Modified response, which tells the
+	 * client its copy of the file is still current. It has no body.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param meta			Metadata of the file requested.
+	 * @param etag			Entity tag of the body the client has.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer notModifiedResponseHeader(HeaderWriter writer, FileMeta meta, String etag,
+			int keepAlive){
+		writer.clear();
+		writer.write(STATUS_NOT_MODIFIED);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(meta.lastModifiedHeader);
+		writer.write(ETAG).write(etag).write(CRLF);
+		writer.write(meta.varyHeader);
+		writer.write(keepAlive == 1 ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of a 416 Range Not Satisfiable response, sent when
+	 * none of the requested ranges overlap the file. It tells the client the
+	 * length of the file.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param meta			Metadata of the file requested.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer notSatisfiableResponseHeader(HeaderWriter writer, FileMeta meta, int keepAlive){
+		writer.clear();
+		writer.write(STATUS_NOT_SATISFIABLE);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(CONTENT_RANGE).write("*/").write(meta.length).write(CRLF);
+		writer.write(CONTENT_LENGTH).write(0).write(CRLF);
+		writer.write(keepAlive == 1 ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of a 503 Service Unavailable response, sent to
+	 * connections the server is too busy to handle. The connection is closed
+	 * afterwards.
+	 *
+	 * @param writer		Header writer to use.
+	 * @param retryAfter	Seconds the client should wait before trying again.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer serviceUnavailableResponseHeader(HeaderWriter writer, int retryAfter){
+		writer.clear();
+		writer.write(STATUS_UNAVAILABLE);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(RETRY_AFTER).write(retryAfter).write(CRLF);
+		writer.write(CONTENT_LENGTH).write(0).write(CRLF);
+		writer.write(CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Generates the header of the status page, a 200 OK response with a
+	 * plain text body that must not be cached.
+	 *
+	 * @param writer		Header writer of the connection.
+	 * @param length		Length of the body.
+	 * @param keepAlive		1 if the connection is kept open after the response, 0 otherwise.
+	 * @return				The header response, ready to be sent.
+	 */
+	static ByteBuffer statusResponseHeader(HeaderWriter writer, long length, int keepAlive){
+		writer.clear();
+		writer.write(STATUS_OK);
+		writer.write(DATE).write(HttpDate.now()).write(CRLF);
+		writer.write(SERVER);
+		writer.write(CACHE_CONTROL_NO_STORE);
+		writer.write(CONTENT_LENGTH).write(length).write(CRLF);
+		writer.write(CONTENT_TYPE_TEXT);
+		writer.write(keepAlive == 1 ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		return writer.finish();
+	}
+
+	/**
+	 * Checks the conditional request header fields (RFC 7232) of a GET or
+	 * HEAD request. If-None-Match is checked first and If-Modified-Since is
+	 * only used when there is no If-None-Match.
+	 *
+	 * @param request	The parsed client request.
+	 * @param meta		Metadata of the file requested.
+	 * @param etag		Entity tag of the body that would be sent.
+	 * @return			1 if the client's copy is current and 304 Not Modified
+	 *					should be sent, 0 otherwise.
+	 */
+	static int checkNotModified(RequestParser request, FileMeta meta, String etag){
+		if (!request.methodIs("GET") && !request.methodIs("HEAD")){
+			return 0;
+		}
+
+		String ifNoneMatch = request.header("If-None-Match");
+		if (ifNoneMatch != null){
+			// Entity tags are compared without any weak W/ prefix.
+			for (String tag : ifNoneMatch.split(",")){
+				tag = tag.trim();
+				if (tag.startsWith("W/")){
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)){
+					return 1;
 				}
+			}
+			return 0;
+		}
+
+		String ifModifiedSince = request.header("If-Modified-Since");
+		if (ifModifiedSince == null){
+			return 0;
+		}
+		ifModifiedSince = ifModifiedSince.trim();
+		// Clients usually send back the Last-Modified date they were given.
+		if (ifModifiedSince.equals(meta.lastModifiedDate)){
+			return 1;
+		}
+		long date = HttpDate.parse(ifModifiedSince);
+		if (date != -1 && meta.lastModified / 1000 <= date / 1000){
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks if the client accepts a content coding, from the Accept-Encoding
+	 * header field of the request.
+	 *
+	 * @param request	The parsed client request.
+	 * @param coding	Content coding in lower case, such as gzip or br.
+	 * @return			1 if the coding is accepted, 0 otherwise.
+	 */
+	static int checkAcceptEncoding(RequestParser request, String coding){
+		String acceptEncoding = request.header("Accept-Encoding");
+		if (acceptEncoding == null){
+			return 0;
+		}
 
-			} else { // A range request has been made.
-				int cur = start;
-				// Continue reading in the file until the requested range of bytes have
-				// been sent to the client.
-				while (cur < end && read >-1){
-					int t = end - cur +1;
-					if (read < end - cur + 1){
-						clientOutputStream.write(fileData, 0, read);
-					} else{
-						clientOutputStream.write(fileData, 0, end - cur + 1);
+		// Codings may be weighted with q=0 to 1, where 0 means not acceptable.
+		// A coding that is not listed takes the weight of *, if given.
+		double anyWeight = 0;
+		for (String element : acceptEncoding.split(",")){
+			String[] params = element.split(";");
+			String name = params[0].trim().toLowerCase();
+			double weight = 1;
+			for (int i = 1; i < params.length; i++){
+				String param = params[i].trim().toLowerCase();
+				if (param.startsWith("q=")){
+					try {
+						weight = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException e){
+						weight = 0;
 					}
-					read = webInputStream.read(fileData, 0, read);
+				}
+			}
 
-					// Keep track of how many bytes have been read in.
-					cur += read;
+			if (name.equals(coding) || (coding.equals("gzip") && name.equals("x-gzip"))){
+				return weight > 0 ? 1 : 0;
+			}
+			if (name.equals("*")){
+				anyWeight = weight;
+			}
+		}
+		return anyWeight > 0 ? 1 : 0;
+	}
 
+	/**
+	 * Looks for a precompressed copy of the requested file, such as
+	 * index.html.gz next to index.html.
+	 *
+	 * @param fileIndex		Metadata of the files being served.
+	 * @param name			Name of the compressed copy.
+	 * @param meta			Metadata of the requested file.
+	 * @return				Metadata of the compressed copy, or null if there is
+	 *						none or it is older than the file.
+	 */
+	static FileMeta precompressedFile(FileIndex fileIndex, String name, FileMeta meta){
+		FileMeta compressed = fileIndex.lookup(name);
+		if (checkFileExists(compressed) == 0 || compressed.lastModified < meta.lastModified){
+			return null;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Checks the If-Range header field, which asks for the ranges only if
+	 * the file has not changed and for the whole file otherwise.
+	 *
+	 * @param request	The parsed client request.
+	 * @param meta		Metadata of the file requested.
+	 * @return			1 if the ranges should be sent, 0 if the whole file should be sent.
+	 */
+	static int checkIfRange(RequestParser request, FileMeta meta){
+		String ifRange = request.header("If-Range");
+		if (ifRange == null){
+			return 1;
+		}
+		ifRange = ifRange.trim();
+
+		// An entity tag must match the one of the file exactly.
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+			return ifRange.equals(meta.etag) ? 1 : 0;
+		}
+
+		// The date must be exactly the Last-Modified date of the file.
+		if (ifRange.equals(meta.lastModifiedDate)){
+			return 1;
+		}
+		long date = HttpDate.parse(ifRange);
+		if (date != -1 && date / 1000 == meta.lastModified / 1000){
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Validates a Web Server mode request and works out what should be sent
+	 * back to the client: the response header and, for a 200 OK or 206 Partial
+	 * Content response, the file and byte ranges to send after it. Used by
+	 * both the threaded Worker and the NIO event loop.
+	 *
+	 * Compressible files are sent gzip or brotli encoded to clients that
+	 * accept it, from a precompressed .br or .gz file next to the requested
+	 * file or, for gzip, from a copy compressed on the fly. Conditional
+	 * requests whose If-None-Match or If-Modified-Since header field shows
+	 * the client's copy is current get 304 Not Modified. Range requests
+	 * follow RFC 7233 and always get ranges of the uncompressed file. A
+	 * malformed Range header field is ignored and the whole file is sent, as
+	 * it is when If-Range does not match. Ranges that do not overlap the file
+	 * get 416 Range Not Satisfiable.
+	 *
+	 * @param context				Shared file metadata and caches of the server.
+	 * @param writer				Header writer of the connection.
+	 * @param request				The parsed client request.
+	 * @param keepAlive				1 if the connection may be kept open after the response.
+	 * @param bulk					Bulk transfer pool that will send a large body, which
+	 *								closes the connection after it, or null.
+	 * @return						The response to send to the client.
+	 */
+	static WebResponse prepareWebResponse(ServerContext context, HeaderWriter writer,
+			RequestParser request, int keepAlive, BulkTransfers bulk){
+
+		// Check if the request is properly formatted.
+		int properFormat = properlyFormattedRequest(request);
+
+		// Determine if requested object exists.
+		String objectName = request.target();
+		FileMeta meta = context.fileIndex.lookup(objectName);
+		int fileExists = checkFileExists(meta);
+
+		// Check if the header request is properly formatted and if the file exists.
+		if (properFormat == 0){
+			// Send a 400 Bad Request response and close the connection.
+			return new WebResponse(responseHeader(writer, 0, "400 Bad Request", null, -1, -1, 0));
+		} else if (ServerMetrics.isStatusRequest(objectName)){
+			// The status page takes the place of any file with the same name.
+			ByteBuffer body = ByteBuffer.wrap((context.statistics() + "\n").getBytes(StandardCharsets.UTF_8));
+			ByteBuffer response = statusResponseHeader(writer, body.remaining(), keepAlive);
+			return new WebResponse(response, null, body, !request.methodIs("HEAD"), keepAlive);
+		} else if (fileExists == 0){
+			// Send a 404 Not Found response.
+			return new WebResponse(responseHeader(writer, 0, "404 Not Found", null, -1, -1, keepAlive),
+					keepAlive);
+		}
+
+		// Pick the content coding of the body, brotli only comes precompressed.
+		String encoding = null;
+		FileMeta encodedFile = null;
+		ByteBuffer encodedBody = null;
+		if (meta.compressible && (request.header("Range") == null || !request.methodIs("GET"))){
+			if (checkAcceptEncoding(request, "br") == 1){
+				encodedFile = precompressedFile(context.fileIndex, objectName + ".br", meta);
+				encoding = encodedFile != null ? "br" : null;
+			}
+			if (encoding == null && checkAcceptEncoding(request, "gzip") == 1){
+				encodedFile = precompressedFile(context.fileIndex, objectName + ".gz", meta);
+				if (encodedFile == null){
+					encodedBody = compress(context.gzipCache, meta);
 				}
+				encoding = encodedFile != null || encodedBody != null ? "gzip" : null;
 			}
+		}
+		// Each encoding of the file has its own entity tag.
+		String etag = meta.etag;
+		if (encoding != null){
+			String base = encodedFile != null ? encodedFile.etag : meta.etag;
+			etag = base.substring(0, base.length() - 1) + "-" + encoding + "\"";
+		}
 
-			// Flush the contents of the stream.
-			clientOutputStream.flush();
+		// A client whose copy of the file is current only gets a header. The
+		// file is not opened.
+		if (checkNotModified(request, meta, etag) == 1){
+			return new WebResponse(notModifiedResponseHeader(writer, meta, etag, keepAlive), keepAlive);
+		}
+
+		// No body is sent back for a HEAD request.
+		boolean sendBody = !request.methodIs("HEAD");
+
+		if (encodedFile != null){
+			// The precompressed file is sent instead of the requested one.
+			keepAlive = bulkKeepAlive(bulk, sendBody, encodedFile.length, keepAlive);
+			ByteBuffer response = encodedResponseHeader(writer, meta, encoding, etag,
+					encodedFile.length, keepAlive);
+			return new WebResponse(response, encodedFile, null, null, sendBody, keepAlive);
+		}
+		if (encodedBody != null){
+			ByteBuffer response = encodedResponseHeader(writer, meta, encoding, etag,
+					encodedBody.remaining(), keepAlive);
+			return new WebResponse(response, meta, encodedBody, sendBody, keepAlive);
+		}
+
+		// Ranges are only sent for GET requests.
+		ByteRange[] ranges = null;
+		String rangeHeader = request.header("Range");
+		if (rangeHeader != null && request.methodIs("GET") && checkIfRange(request, meta) == 1){
+			ranges = ByteRange.parse(rangeHeader, meta.length);
+			if (ranges != null && ranges.length == 0){
+				return new WebResponse(notSatisfiableResponseHeader(writer, meta, keepAlive), keepAlive);
+			}
+		}
+
+		if (ranges == null){
+			// Get the response header for a 200 OK response.
+			keepAlive = bulkKeepAlive(bulk, sendBody, meta.length, keepAlive);
+			ByteBuffer response = responseHeader(writer, 1, "200 OK", meta, -1, -1, keepAlive);
+			return new WebResponse(response, meta, null, null, sendBody, keepAlive);
+		}
+		if (ranges.length == 1){
+			// Get the response header for a 206 Partial Content response with one range.
+			keepAlive = bulkKeepAlive(bulk, sendBody, ranges[0].length(), keepAlive);
+			ByteBuffer response = responseHeader(writer, 1, "206 Partial Content", meta,
+					ranges[0].first, ranges[0].last, keepAlive);
+			return new WebResponse(response, meta, ranges, null, sendBody, keepAlive);
+		}
+
+		// Several ranges are sent as a multipart body.
+		String boundary = WebResponse.newBoundary();
+		ByteBuffer response = multipartResponseHeader(writer, meta, boundary,
+				WebResponse.multipartLength(meta, ranges, boundary), keepAlive);
+		return new WebResponse(response, meta, ranges, boundary, sendBody, keepAlive);
+	}
+
+	/**
+	 * Works out if the connection can be kept open after a response whose
+	 * body is one range of a file.
+	 *
+	 * @param bulk			Bulk transfer pool that will send a large body, or null.
+	 * @param sendBody		True if the body follows the header.
+	 * @param bodyLength	Number of bytes of the body.
+	 * @param keepAlive		1 if the connection may be kept open after the response.
+	 * @return				0 if the body is sent by the bulk transfer pool, which
+	 *						closes the connection after it, keepAlive otherwise.
+	 */
+	private static int bulkKeepAlive(BulkTransfers bulk, boolean sendBody, long bodyLength, int keepAlive){
+		return bulk != null && sendBody && bulk.isBulk(bodyLength) ? 0 : keepAlive;
+	}
+
+	/**
+	 * Gets the gzip compressed copy of a file from the gzip cache.
+	 *
+	 * @param gzipCache	Cache of files compressed on the fly.
+	 * @param meta		Metadata of the requested file.
+	 * @return			The compressed file, or null if it should be sent
+	 *					uncompressed.
+	 */
+	private static ByteBuffer compress(GzipCache gzipCache, FileMeta meta){
+		try {
+			return gzipCache.get(meta);
+		} catch (IOException e){
+			// Send the file uncompressed instead.
+			UsefulHelpers.handleException(e, "Could not compress the file in Web Server Mode.");
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the worker in Web Server mode, which generates the header
+	 * response, reads the file in (if it exists and the request was properly
+	 * formatted), and sends the entire file (or requested range) to the client.
+	 * When the client socket has a channel the file is sent with FileTransfer,
+	 * otherwise it is copied through the client output stream.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param request				The parsed client request.
+	 * @param keepAlive				1 if the connection may be kept open after the response.
+	 * @return						1 if the connection can be used for another request, 0 otherwise.
+	 */
+	private int webServerMode(DataOutputStream clientOutputStream,
+			RequestParser request, int keepAlive){
+
+		// Necessary stream.
+		FileInputStream webInputStream = null;
+
+		try{
+			SocketChannel socketChannel = this.socket.getChannel();
+			// A large response says the connection closes after it, since it is
+			// sent by the bulk transfer pool.
+			WebResponse webResponse = prepareWebResponse(context, headerWriter, request, keepAlive,
+					socketChannel != null ? context.bulkTransfers : null);
+			if (socketChannel != null && context.bulkTransfers.isBulk(webResponse)
+					&& this.startBulkTransfer(webResponse, socketChannel)){
+				// The bulk transfer pool sends the response, leaving this worker
+				// free for short ones.
+				return 0;
+			}
+
+			// Number of file bytes to send, 0 for error responses and HEAD requests.
+			long remaining = webResponse.bodyLength();
+			// The header is consumed as it is sent, so it is measured first.
+			int status = webResponse.status();
+			long length = webResponse.responseLength();
+			this.responseStarted();
+
+			if (webResponse.partCount() > 0){
+				webInputStream = openFile(webResponse.meta, status, length);
+				if (socketChannel != null){
+					FileTransfer.send(socketChannel, webResponse, webInputStream.getChannel());
+				} else {
+					sendMultipart(clientOutputStream, webResponse, webInputStream.getChannel());
+				}
+
+			} else if (socketChannel != null){
+				ByteBuffer header = webResponse.header;
+
+				// Compressed and small files are served from memory.
+				ByteBuffer cached = webResponse.encodedBody();
+				if (cached == null && remaining > 0){
+					cached = this.cachedFile(webResponse.meta, status, length);
+				}
+				if (cached != null){
+					cached.position((int) webResponse.bodyStart());
+					cached.limit((int) (webResponse.bodyStart() + remaining));
+					FileTransfer.send(socketChannel, header, cached);
+				} else {
+					// Send the header and the file (or requested range) straight from
+					// the file to the socket, without copying it through the heap.
+					if (remaining > 0){
+						webInputStream = openFile(webResponse.meta, status, length);
+					}
+					FileTransfer.send(socketChannel, header,
+							webInputStream == null ? null : webInputStream.getChannel(),
+							webResponse.bodyStart(), remaining);
+				}
+
+			} else {
+				// Send the response header to the client.
+				ByteBuffer header = webResponse.header;
+				clientOutputStream.write(header.array(), header.arrayOffset() + header.position(),
+						header.remaining());
+
+				// Send the file (or requested range) unless this was an error response or a HEAD request.
+				ByteBuffer encodedBody = webResponse.encodedBody();
+				if (remaining > 0 && encodedBody != null){
+					byte[] body = new byte[encodedBody.remaining()];
+					encodedBody.get(body);
+					clientOutputStream.write(body);
+				} else if (remaining > 0){
+					// Create required streams.
+					webInputStream = openFile(webResponse.meta, status, length);
+
+					// Write exactly Content-Length bytes to the client output stream,
+					// so the client can tell where the response ends. Reads start at the
+					// first byte requested, instead of skipping up to it.
+					copyRange(webInputStream.getChannel(), webResponse.bodyStart(), remaining,
+							clientOutputStream, new byte[4096]);
+				}
+
+				// Flush the contents of the stream.
+				clientOutputStream.flush();
+			}
+
+			this.responseSent(status, length);
+			return webResponse.keepAlive;
 		} catch (IOException e){ // Handle IO exceptions.
 			UsefulHelpers.handleException(e, "IOException occurred in DataOutputStream or "
 					+ "FileInputStream in Web Server Mode.");
-			return;
+			return 0;
 
 		} catch (Exception e){ // Handle all other exceptions.
 			UsefulHelpers.handleException(e, "General exception occurred in DataOutputStream or "
 					+ "FileInputStream in Web Server Mode.");
-			return;
+			return 0;
 		} finally {
 			try{
 				// Close web input stream.
@@ -508,25 +1699,213 @@ public class Worker implements Runnable {
 				}
 			} catch (Exception e){
 				UsefulHelpers.handleException(e, "Could not properly close streams or socket in Proxy Server Mode.");
-				return;
 			}
 		}
 	}
 
+	/**
+	 * Hands a large response to the bulk transfer pool, which sends it in
+	 * chunks while this worker goes back to other connections. The pool
+	 * closes the connection once the response has been sent.
+	 *
+	 * @param webResponse		The response, whose header says the connection closes.
+	 * @param socketChannel		Client socket channel.
+	 * @return					True if the pool sends the response, false if it is
+	 *							full and the worker should send it.
+	 * @throws IOException		If the file can not be opened.
+	 */
+	private boolean startBulkTransfer(WebResponse webResponse, SocketChannel socketChannel)
+			throws IOException {
+		if (!context.bulkTransfers.reserve()){
+			return false;
+		}
+		int status = webResponse.status();
+		long length = webResponse.responseLength();
+		FileInputStream file;
+		try {
+			file = openFile(webResponse.meta, status, length);
+		} catch (IOException e){
+			context.bulkTransfers.unreserve();
+			throw e;
+		}
+		this.responseStarted();
+
+		// Set first, the pool may finish the request before send() returns.
+		handedOff = true;
+		context.bulkTransfers.send(socketChannel, webResponse.header, file.getChannel(),
+				webResponse.bodyStart(), webResponse.bodyLength(),
+				error -> this.bulkTransferDone(error, status, length, file));
+		return true;
+	}
+
+	/**
+	 * Finishes a request whose response was sent by the bulk transfer pool,
+	 * and closes the connection. Runs on a thread of the pool.
+	 *
+	 * @param error		Null if the response was sent, otherwise the reason
+	 *					it was not.
+	 * @param status	Status code of the response.
+	 * @param length	Number of bytes of the response, header included.
+	 * @param file		The file that was sent.
+	 */
+	private void bulkTransferDone(IOException error, int status, long length, FileInputStream file){
+		if (error == null){
+			this.responseSent(status, length);
+		} else {
+			UsefulHelpers.handleException(error, "IOException occurred in a bulk transfer in Web Server Mode.");
+		}
+		try{
+			file.close();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close streams or socket in Web Server Mode.");
+		}
+		this.closeConnection(null, null);
+		try{
+			this.socket.close();
+		} catch (IOException e){
+			UsefulHelpers.handleException(e, "Could not properly close streams or socket in Web Server Mode.");
+		}
+		if (afterHandOff != null){
+			afterHandOff.run();
+		}
+	}
+
+	/**
+	 * Opens the file of a Web Server mode response.
+	 *
+	 * @param meta		Metadata of the file.
+	 * @param status	Status code of the response.
+	 * @param length	Number of bytes of the response, header included.
+	 * @return			The open file.
+	 * @throws IOException	If the file can not be opened.
+	 */
+	private static FileInputStream openFile(FileMeta meta, int status, long length) throws IOException {
+		RequestEvents.FileOpen fileEvent = new RequestEvents.FileOpen();
+		fileEvent.begin();
+		FileInputStream file = new FileInputStream(meta.file);
+		fileEvent.end();
+		if (fileEvent.shouldCommit()){
+			fileEvent.mode = "web";
+			fileEvent.status = status;
+			fileEvent.bytes = length;
+			fileEvent.path = meta.file.getPath();
+			fileEvent.commit();
+		}
+		return file;
+	}
+
+	/**
+	 * Gets the contents of the file of a Web Server mode response from the
+	 * file cache.
+	 *
+	 * @param meta		Metadata of the file.
+	 * @param status	Status code of the response.
+	 * @param length	Number of bytes of the response, header included.
+	 * @return			The contents, or null if the file is not cached.
+	 * @throws IOException	If the file can not be read.
+	 */
+	private ByteBuffer cachedFile(FileMeta meta, int status, long length) throws IOException {
+		RequestEvents.FileOpen fileEvent = new RequestEvents.FileOpen();
+		fileEvent.begin();
+		ByteBuffer cached = context.fileCache.get(meta);
+		fileEvent.end();
+		if (cached != null && fileEvent.shouldCommit()){
+			fileEvent.mode = "web";
+			fileEvent.status = status;
+			fileEvent.bytes = length;
+			fileEvent.path = meta.file.getPath();
+			fileEvent.cached = true;
+			fileEvent.commit();
+		}
+		return cached;
+	}
+
+	/**
+	 * Sends a multipart/byteranges response through the client output stream.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param webResponse			The response, with several ranges.
+	 * @param file					Open channel of the requested file.
+	 * @throws IOException	If reading the file or writing to the client fails.
+	 */
+	private static void sendMultipart(DataOutputStream clientOutputStream, WebResponse webResponse,
+			FileChannel file) throws IOException {
+		ByteBuffer header = webResponse.header;
+		clientOutputStream.write(header.array(), header.arrayOffset() + header.position(),
+				header.remaining());
+
+		byte[] fileData = new byte[4096];
+		for (int i = 0; i < webResponse.partCount(); i++){
+			clientOutputStream.write(webResponse.partHeader(i));
+			ByteRange range = webResponse.ranges[i];
+			copyRange(file, range.first, range.length(), clientOutputStream, fileData);
+		}
+
+		clientOutputStream.write(webResponse.closingBoundary());
+		clientOutputStream.flush();
+	}
+
+	/**
+	 * Copies a range of a file to the client output stream with positional
+	 * reads, so the time taken only depends on the length of the range and
+	 * not on where it is in the file.
+	 *
+	 * @param file					Open channel of the file.
+	 * @param position				Position in the file of the first byte to send.
+	 * @param count					Number of bytes to send.
+	 * @param clientOutputStream	Client output stream where the bytes are sent.
+	 * @param fileData				Buffer the bytes are copied through.
+	 * @throws IOException	If reading the file or writing to the client fails.
+	 */
+	private static void copyRange(FileChannel file, long position, long count,
+			OutputStream clientOutputStream, byte[] fileData) throws IOException {
+		while (count > 0){
+			ByteBuffer data = ByteBuffer.wrap(fileData, 0, (int) Math.min(fileData.length, count));
+			int read = file.read(data, position);
+			if (read == -1){
+				// The file was truncated while it was being sent.
+				throw new EOFException("File ended before the requested bytes were sent.");
+			}
+			clientOutputStream.write(fileData, 0, read);
+			position += read;
+			count -= read;
+		}
+	}
+
 	/**
 	 * Used to send a bad request to the client.
 	 *
 	 * @param clientOutputStream	Client output stream where the response is sent.
 	 */
 	private void sendBadRequestToClient(DataOutputStream clientOutputStream){
-		String response = this.responseHeader(0, "400 Bad Request", null,
-				-1, -1);
+		sendErrorToClient(clientOutputStream, "400 Bad Request");
+	}
+
+	/**
+	 * Used to send an error response to the client. The connection is
+	 * closed afterwards.
+	 *
+	 * @param clientOutputStream	Client output stream where the response is sent.
+	 * @param statusCode			Status of the response, for example 400 Bad Request.
+	 */
+	private void sendErrorToClient(DataOutputStream clientOutputStream, String statusCode){
+		ByteBuffer response = responseHeader(headerWriter, 0, statusCode, null,
+				-1, -1, 0);
+		int length = response.remaining();
+		this.responseStarted();
 		// Send the response to the client and terminate the worker.
 		try{
-			clientOutputStream.write(response.getBytes());
+			clientOutputStream.write(response.array(), response.arrayOffset() + response.position(),
+					response.remaining());
 			clientOutputStream.flush();
+			this.responseSent(WebResponse.status(response), length);
 		} catch (Exception e2){
-			UsefulHelpers.handleException(e2, "Could not send Bad Request message to client.");
+			UsefulHelpers.handleException(e2, "Could not send " + statusCode + " message to client.");
 		}
 	}
+
+	// Encodes header text that is known to be ASCII.
+	private static byte[] ascii(String text){
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
 }